@@ -0,0 +1,161 @@
+package org.embulk.output.td;
+
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.BooleanType;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.StringType;
+import org.embulk.spi.type.TimestampType;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Schemas and records shared by benchmarks. Records are generated with a fixed seed so that runs are comparable.
+public final class BenchmarkRecords
+{
+    private static final PartBufferPool PART_BUFFER_POOL = new PartBufferPool(1L << 30);
+    private static final long BASE_EPOCH_SECOND = 1442595600L;
+
+    private BenchmarkRecords()
+    {
+    }
+
+    // narrow_numeric, wide_string, json_heavy or timestamp_heavy
+    public static Schema schema(String shape)
+    {
+        Schema.Builder builder = Schema.builder();
+        switch (shape) {
+        case "narrow_numeric":
+            builder.add("time", Types.LONG);
+            addColumns(builder, "l", Types.LONG, 6);
+            addColumns(builder, "d", Types.DOUBLE, 4);
+            addColumns(builder, "b", Types.BOOLEAN, 1);
+            break;
+        case "wide_string":
+            builder.add("time", Types.LONG);
+            addColumns(builder, "s", Types.STRING, 40);
+            break;
+        case "json_heavy":
+            builder.add("time", Types.LONG);
+            builder.add("id", Types.LONG);
+            addColumns(builder, "j", Types.JSON, 4);
+            break;
+        case "timestamp_heavy":
+            builder.add("time", Types.TIMESTAMP);
+            builder.add("id", Types.LONG);
+            addColumns(builder, "t", Types.TIMESTAMP, 8);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown schema: " + shape);
+        }
+        return builder.build();
+    }
+
+    private static void addColumns(Schema.Builder builder, String prefix, Type type, int count)
+    {
+        for (int i = 0; i < count; i++) {
+            builder.add(prefix + i, type);
+        }
+    }
+
+    public static List<Object[]> records(Schema schema, int count)
+    {
+        Random random = new Random(0);
+        List<Object[]> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Object[] record = new Object[schema.getColumnCount()];
+            for (Column column : schema.getColumns()) {
+                record[column.getIndex()] = value(column, i, random);
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static Object value(Column column, int index, Random random)
+    {
+        Type type = column.getType();
+        if (column.getName().equals("time")) {
+            Instant time = Instant.ofEpochSecond(BASE_EPOCH_SECOND + index);
+            return type instanceof TimestampType ? time : (Object) time.getEpochSecond();
+        }
+        if (type instanceof BooleanType) {
+            return random.nextBoolean();
+        }
+        else if (type instanceof LongType) {
+            return random.nextLong() >> random.nextInt(64);
+        }
+        else if (type instanceof DoubleType) {
+            return random.nextDouble() * 1000000;
+        }
+        else if (type instanceof StringType) {
+            return randomString(random, 8 + random.nextInt(32));
+        }
+        else if (type instanceof TimestampType) {
+            return Instant.ofEpochSecond(BASE_EPOCH_SECOND + random.nextInt(86400 * 365), random.nextInt(1000000) * 1000L);
+        }
+        else if (type instanceof JsonType) {
+            return randomJson(random);
+        }
+        throw new IllegalArgumentException("Unsupported type: " + type);
+    }
+
+    public static String randomString(Random random, int length)
+    {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    // {"id": long, "name": string, "tags": [string, ...], "attributes": {"score": double, "active": boolean}}
+    public static Value randomJson(Random random)
+    {
+        Value[] tags = new Value[1 + random.nextInt(4)];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = ValueFactory.newString(randomString(random, 4 + random.nextInt(8)));
+        }
+        return ValueFactory.newMap(
+                ValueFactory.newString("id"), ValueFactory.newInteger(random.nextInt(1000000)),
+                ValueFactory.newString("name"), ValueFactory.newString(randomString(random, 8 + random.nextInt(16))),
+                ValueFactory.newString("tags"), ValueFactory.newArray(tags),
+                ValueFactory.newString("attributes"), ValueFactory.newMap(
+                        ValueFactory.newString("score"), ValueFactory.newFloat(random.nextDouble()),
+                        ValueFactory.newString("active"), ValueFactory.newBoolean(random.nextBoolean())));
+    }
+
+    public static ConfigSource config()
+    {
+        return TdOutputPlugin.CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("apikey", "xxx")
+                .set("endpoint", "localhost")
+                .set("database", "my_db")
+                .set("table", "my_table");
+    }
+
+    public static TdOutputPlugin.PluginTask task(ConfigSource config)
+    {
+        return TdOutputPlugin.CONFIG_MAPPER.map(config, TdOutputPlugin.PluginTask.class);
+    }
+
+    // a builder that keeps the part in memory. Call delete() to return the memory.
+    public static MsgpackGZFileBuilder newBuilder(PartCompressor compressor)
+            throws IOException
+    {
+        PartBuffer buffer = new PartBuffer(PART_BUFFER_POOL, 4 * 1024 * 1024, new File(System.getProperty("java.io.tmpdir")),
+                "embulk-output-td-jmh-");
+        return new MsgpackGZFileBuilder(buffer, compressor);
+    }
+}
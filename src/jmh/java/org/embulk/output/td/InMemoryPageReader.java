@@ -0,0 +1,157 @@
+package org.embulk.output.td;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// PageReader that reads records from memory, so that benchmarks measure the plugin instead of decoding Embulk pages.
+// A value is Boolean, Long, Double, String, Instant, Value or null depending on the column type.
+// Strings and JSON values are returned as instances of pages in the same way as PageReader: equal strings in a page
+// are the same instance because PageBuilder stores a string once per page, and instances of different pages are
+// different. Records are copied to COPIES sets of pages with their own instances, and rewind moves to the next set,
+// so that caches keyed by the identity of instances (e.g. PageStringCache) don't hit across invocations. Copies are
+// made by the constructor, and not included in the score.
+@SuppressWarnings("deprecation")  // PageReader(Schema)
+public class InMemoryPageReader
+        extends PageReader
+{
+    public static final int DEFAULT_RECORDS_PER_PAGE = 128;
+    private static final int COPIES = 4;
+
+    private final List<List<Object[]>> copies;
+    private int copy;
+    private List<Object[]> records;
+    private int position;
+    private Object[] record;
+
+    public InMemoryPageReader(Schema schema, List<Object[]> records)
+    {
+        this(schema, records, DEFAULT_RECORDS_PER_PAGE);
+    }
+
+    public InMemoryPageReader(Schema schema, List<Object[]> records, int recordsPerPage)
+    {
+        super(schema);
+        this.copies = new ArrayList<>(COPIES);
+        for (int i = 0; i < COPIES; i++) {
+            copies.add(copyToPages(records, recordsPerPage));
+        }
+        this.copy = -1;
+        rewind();
+    }
+
+    private static List<Object[]> copyToPages(List<Object[]> records, int recordsPerPage)
+    {
+        List<Object[]> copied = new ArrayList<>(records.size());
+        Map<String, String> pageStrings = new HashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            if (i % recordsPerPage == 0) {
+                pageStrings.clear();
+            }
+            Object[] record = records.get(i).clone();
+            for (int j = 0; j < record.length; j++) {
+                if (record[j] instanceof String) {
+                    record[j] = pageStrings.computeIfAbsent((String) record[j], String::new);
+                }
+                else if (record[j] instanceof Value) {
+                    record[j] = copyValue((Value) record[j]);
+                }
+            }
+            copied.add(record);
+        }
+        return copied;
+    }
+
+    private static Value copyValue(Value value)
+    {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(MsgpackGZFileBuilder.encodeValue(value))) {
+            return unpacker.unpackValue();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // starts reading the records again, from instances of the next set of pages
+    public void rewind()
+    {
+        copy = (copy + 1) % COPIES;
+        records = copies.get(copy);
+        position = 0;
+        record = null;
+    }
+
+    @Override
+    public boolean nextRecord()
+    {
+        if (position >= records.size()) {
+            return false;
+        }
+        record = records.get(position++);
+        return true;
+    }
+
+    @Override
+    public boolean isNull(Column column)
+    {
+        return record[column.getIndex()] == null;
+    }
+
+    @Override
+    public boolean getBoolean(Column column)
+    {
+        return (Boolean) record[column.getIndex()];
+    }
+
+    @Override
+    public long getLong(Column column)
+    {
+        return (Long) record[column.getIndex()];
+    }
+
+    @Override
+    public double getDouble(Column column)
+    {
+        return (Double) record[column.getIndex()];
+    }
+
+    @Override
+    public String getString(Column column)
+    {
+        return (String) record[column.getIndex()];
+    }
+
+    @Override
+    public Instant getTimestampInstant(Column column)
+    {
+        return (Instant) record[column.getIndex()];
+    }
+
+    @Override
+    public org.embulk.spi.time.Timestamp getTimestamp(Column column)
+    {
+        return org.embulk.spi.time.Timestamp.ofInstant(getTimestampInstant(column));
+    }
+
+    @Override
+    public Value getJson(Column column)
+    {
+        return (Value) record[column.getIndex()];
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,110 @@
+package org.embulk.output.td;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Writing and compressing a part with MsgpackGZFileBuilder, per record, with different compression settings
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MsgpackGZFileBuilderBenchmark
+{
+    private static final int RECORDS = 10000;
+    private static final int LONG_COLUMNS = 8;
+    private static final int STRING_COLUMNS = 8;
+
+    @Param({"1", "6", "9"})
+    public int compressionLevel;
+
+    @Param({"default", "huffman_only"})
+    public String compressionStrategy;
+
+    // inline: compressed on the writer thread, pipelined: compression_threads: 1, parallel_gzip: parallel_gzip_threads: 4
+    @Param({"inline", "pipelined", "parallel_gzip"})
+    public String compressor;
+
+    private String[] keys;
+    private long[][] longs;
+    private String[][] strings;
+    private PartCompressor partCompressor;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(0);
+        keys = new String[LONG_COLUMNS + STRING_COLUMNS];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "column_" + i;
+        }
+        longs = new long[RECORDS][LONG_COLUMNS];
+        strings = new String[RECORDS][STRING_COLUMNS];
+        for (int i = 0; i < RECORDS; i++) {
+            for (int j = 0; j < LONG_COLUMNS; j++) {
+                longs[i][j] = random.nextInt(1 << (j * 4));
+            }
+            for (int j = 0; j < STRING_COLUMNS; j++) {
+                // low-cardinality columns compress better than random ones
+                strings[i][j] = j % 2 == 0 ? "value_" + random.nextInt(16) : BenchmarkRecords.randomString(random, 16);
+            }
+        }
+
+        partCompressor = new PartCompressor(BenchmarkRecords.task(BenchmarkRecords.config()
+                .set("compression_level", compressionLevel)
+                .set("compression_strategy", compressionStrategy)
+                .set("compression_threads", compressor.equals("pipelined") ? 1 : 0)
+                .set("parallel_gzip_threads", compressor.equals("parallel_gzip") ? 4 : 0)
+                .set("parallel_gzip_block_size", 256)));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        partCompressor.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long writePart()
+            throws IOException
+    {
+        MsgpackGZFileBuilder builder = BenchmarkRecords.newBuilder(partCompressor);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                builder.writeMapBegin(keys.length);
+                for (int j = 0; j < LONG_COLUMNS; j++) {
+                    builder.writeString(keys[j]);
+                    builder.writeLong(longs[i][j]);
+                }
+                for (int j = 0; j < STRING_COLUMNS; j++) {
+                    builder.writeString(keys[LONG_COLUMNS + j]);
+                    builder.writeString(strings[i][j]);
+                }
+                builder.writeMapEnd();
+            }
+            builder.finish();
+            return builder.getWrittenSize();
+        }
+        finally {
+            builder.close();
+            builder.delete();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.BenchmarkRecords;
+import org.embulk.output.td.InMemoryPageReader;
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.embulk.output.td.PartCompressor;
+import org.embulk.output.td.TdOutputPlugin.ConvertTimestampType;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.msgpack.value.ValueFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Each conversion of a FieldWriter, per value. A conversion is "<embulk type>:<value_type>" where value_type is the
+// value_type of column_options. Parts are not compressed so that the score is dominated by the conversion.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldWriterBenchmark
+{
+    private static final int VALUES = 10000;
+
+    @Param({
+            "boolean:boolean", "boolean:long", "boolean:double", "boolean:string",
+            "long:long", "long:boolean", "long:double", "long:string",
+            "double:double", "double:boolean", "double:long", "double:string",
+            "string:string", "string:boolean", "string:long", "string:double",
+            "timestamp:string", "timestamp:sec",
+            "json:string", "json:array", "json:map"})
+    public String conversion;
+
+    private InMemoryPageReader reader;
+    private Column column;
+    private ColumnEncoder encoder;
+    private PartCompressor compressor;
+
+    @Setup
+    public void setup()
+    {
+        String[] types = conversion.split(":");
+        Type type = embulkType(types[0]);
+        Schema schema = Schema.builder().add("c0", type).build();
+        column = schema.getColumn(0);
+
+        Random random = new Random(0);
+        List<Object[]> records = new ArrayList<>(VALUES);
+        for (int i = 0; i < VALUES; i++) {
+            records.add(new Object[] {value(types[0], types[1], random)});
+        }
+        reader = new InMemoryPageReader(schema, records);
+
+        TimestampStringEncoder formatter = TimestampStringEncoder.create("%Y-%m-%d %H:%M:%S.%6N", "UTC");
+        FieldWriter writer;
+        if (types[1].equals("sec")) {
+            writer = FieldWriterSet.newSimpleTimestampFieldWriter("c0", type, ConvertTimestampType.SEC, formatter);
+        }
+        else {
+            writer = FieldWriterSet.newAdvancedFieldWriter("c0", types[1], ConvertTimestampType.STRING, formatter);
+        }
+        encoder = writer.newColumnEncoder(column);
+        compressor = new PartCompressor(BenchmarkRecords.task(BenchmarkRecords.config().set("compression_level", 0)));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        compressor.close();
+    }
+
+    private static Type embulkType(String name)
+    {
+        switch (name) {
+        case "boolean":
+            return Types.BOOLEAN;
+        case "long":
+            return Types.LONG;
+        case "double":
+            return Types.DOUBLE;
+        case "string":
+            return Types.STRING;
+        case "timestamp":
+            return Types.TIMESTAMP;
+        case "json":
+            return Types.JSON;
+        default:
+            throw new IllegalArgumentException("Unknown type: " + name);
+        }
+    }
+
+    private static Object value(String embulkType, String valueType, Random random)
+    {
+        switch (embulkType) {
+        case "boolean":
+            return random.nextBoolean();
+        case "long":
+            return random.nextLong() >> random.nextInt(64);
+        case "double":
+            return random.nextDouble() * 1000000;
+        case "string":
+            // strings that can be parsed as the value type
+            switch (valueType) {
+            case "boolean":
+                return random.nextBoolean() ? "true" : "false";
+            case "long":
+                return String.valueOf(random.nextInt());
+            case "double":
+                return String.valueOf(random.nextDouble());
+            default:
+                return BenchmarkRecords.randomString(random, 8 + random.nextInt(32));
+            }
+        case "timestamp":
+            return Instant.ofEpochSecond(1442595600L + random.nextInt(86400 * 365), random.nextInt(1000000) * 1000L);
+        case "json":
+            if (valueType.equals("array")) {
+                return ValueFactory.newArray(BenchmarkRecords.randomJson(random), BenchmarkRecords.randomJson(random));
+            }
+            return BenchmarkRecords.randomJson(random);
+        default:
+            throw new IllegalArgumentException("Unknown type: " + embulkType);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public long writeValue()
+            throws IOException
+    {
+        MsgpackGZFileBuilder builder = BenchmarkRecords.newBuilder(compressor);
+        try {
+            reader.rewind();
+            while (reader.nextRecord()) {
+                encoder.encode(builder, reader);
+            }
+            builder.finish();
+            return builder.getWrittenSize();
+        }
+        finally {
+            builder.close();
+            builder.delete();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.BenchmarkRecords;
+import org.embulk.output.td.InMemoryPageReader;
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.embulk.output.td.PartCompressor;
+import org.embulk.output.td.TdOutputPlugin.PluginTask;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// FieldWriterSet.addRecord per record. Parts are stored without compression (compression_level: 0) so that
+// the score is dominated by encoding. See MsgpackGZFileBuilderBenchmark for the cost of compression.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldWriterSetBenchmark
+{
+    private static final int RECORDS = 1000;
+
+    @Param({"narrow_numeric", "wide_string", "json_heavy", "timestamp_heavy"})
+    public String schema;
+
+    private InMemoryPageReader reader;
+    private FieldWriterSet fieldWriters;
+    private PartCompressor compressor;
+
+    @Setup
+    public void setup()
+    {
+        Schema schema = BenchmarkRecords.schema(this.schema);
+        PluginTask task = BenchmarkRecords.task(BenchmarkRecords.config().set("compression_level", 0));
+        reader = new InMemoryPageReader(schema, BenchmarkRecords.records(schema, RECORDS));
+        fieldWriters = FieldWriterSet.createWithValidation(task, schema, false);
+        compressor = new PartCompressor(task);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        compressor.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long addRecord()
+            throws IOException
+    {
+        MsgpackGZFileBuilder builder = BenchmarkRecords.newBuilder(compressor);
+        try {
+            reader.rewind();
+            while (reader.nextRecord()) {
+                fieldWriters.addRecord(builder, reader);
+            }
+            builder.finish();
+            return builder.getWrittenSize();
+        }
+        finally {
+            builder.close();
+            builder.delete();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.embulk.output.td;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Decides the number of concurrent uploads of a task, and adjusts it AIMD-style from the finished uploads:
+// - additive increase: once every window of `limit` uploads, the limit is raised by 1 if the throughput of the
+//   window (uploaded bytes per wall-clock second) improved compared to the previous window.
+// - multiplicative decrease: the limit is halved if an upload attempt is throttled (429 or 5xx), or if its latency
+//   per byte spikes compared to the best latency observed so far.
+// The limit is applied by FinalizableExecutorService when parts are handed to upload threads, so that waiting
+// parts don't occupy threads. RecordWriter retries uploads by itself so that every throttled attempt is recorded.
+public class AdaptiveUploadConcurrency
+{
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveUploadConcurrency.class);
+
+    private static final double THROUGHPUT_IMPROVEMENT_RATIO = 1.05;
+    private static final double LATENCY_SPIKE_RATIO = 3.0;
+    // the best latency slowly rises so that a permanent slowdown is not regarded as a spike forever
+    private static final double BEST_LATENCY_DECAY_RATIO = 1.05;
+
+    private final int maxConcurrency;
+    private final LongSupplier nanoTime;
+    private final long startNanos;
+    private final List<Map<String, Object>> timeline;
+
+    private int limit;
+
+    private long windowStartNanos;
+    private long windowBytes;
+    private int windowUploads;
+    private double lastWindowThroughput;
+    private double bestNanosPerByte;
+
+    public AdaptiveUploadConcurrency(int initialConcurrency, int maxConcurrency)
+    {
+        this(initialConcurrency, maxConcurrency, System::nanoTime);
+    }
+
+    @VisibleForTesting
+    AdaptiveUploadConcurrency(int initialConcurrency, int maxConcurrency, LongSupplier nanoTime)
+    {
+        checkArgument(initialConcurrency > 0 && initialConcurrency <= maxConcurrency,
+                "initialConcurrency must be between 1 and %s", maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+        this.nanoTime = nanoTime;
+        this.startNanos = nanoTime.getAsLong();
+        this.timeline = new ArrayList<>();
+        this.limit = initialConcurrency;
+        this.lastWindowThroughput = Double.NaN;
+        this.bestNanosPerByte = Double.NaN;
+        resetWindow();
+        addTimeline("initial");
+    }
+
+    public synchronized int getLimit()
+    {
+        return limit;
+    }
+
+    // changes of the limit: [{elapsed_millis, concurrency, reason}, ...]
+    public synchronized List<Map<String, Object>> getTimeline()
+    {
+        return new ArrayList<>(timeline);
+    }
+
+    // called when an upload attempt is finished. throttled is true if the server rejected it with 429 or 5xx.
+    public synchronized void recordUpload(long bytes, long elapsedNanos, boolean throttled)
+    {
+        if (throttled) {
+            decrease("throttled");
+            return;
+        }
+
+        double nanosPerByte = (double) elapsedNanos / Math.max(bytes, 1L);
+        if (!Double.isNaN(bestNanosPerByte) && nanosPerByte > bestNanosPerByte * LATENCY_SPIKE_RATIO) {
+            decrease("latency spike");
+            bestNanosPerByte *= BEST_LATENCY_DECAY_RATIO;
+            return;
+        }
+        if (Double.isNaN(bestNanosPerByte) || nanosPerByte < bestNanosPerByte) {
+            bestNanosPerByte = nanosPerByte;
+        }
+
+        windowBytes += bytes;
+        windowUploads++;
+        if (windowUploads >= limit) {
+            long windowNanos = Math.max(nanoTime.getAsLong() - windowStartNanos, 1L);
+            double throughput = windowBytes * 1e9 / windowNanos;
+            boolean improved = Double.isNaN(lastWindowThroughput)
+                    || throughput > lastWindowThroughput * THROUGHPUT_IMPROVEMENT_RATIO;
+            lastWindowThroughput = throughput;
+            resetWindow();
+            if (improved && limit < maxConcurrency) {
+                limit++;
+                addTimeline("throughput improved");
+            }
+        }
+    }
+
+    private void decrease(String reason)
+    {
+        int decreased = Math.max(1, limit / 2);
+        // the throughput measured with the previous limit is not comparable any more
+        lastWindowThroughput = Double.NaN;
+        resetWindow();
+        if (decreased != limit) {
+            limit = decreased;
+            addTimeline(reason);
+        }
+    }
+
+    private void resetWindow()
+    {
+        windowStartNanos = nanoTime.getAsLong();
+        windowBytes = 0;
+        windowUploads = 0;
+    }
+
+    private void addTimeline(String reason)
+    {
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(nanoTime.getAsLong() - startNanos);
+        Map<String, Object> change = new LinkedHashMap<>();
+        change.put("elapsed_millis", elapsedMillis);
+        change.put("concurrency", limit);
+        change.put("reason", reason);
+        timeline.add(change);
+        log.info("{upload_concurrency: {concurrency: {}, elapsed_millis: {}, reason: {}}}", limit, elapsedMillis, reason);
+    }
+}
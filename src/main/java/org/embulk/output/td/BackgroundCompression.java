@@ -0,0 +1,10 @@
+package org.embulk.output.td;
+
+// A compressing stream that compresses on other threads than the writer (compression_threads or
+// parallel_gzip_threads). Time of the writer spent in write and close is mostly handing data over to
+// the threads, so the stream measures time spent by the threads instead.
+interface BackgroundCompression
+{
+    // time spent compressing the data written to the stream so far, summed over threads
+    long getCompressNanos();
+}
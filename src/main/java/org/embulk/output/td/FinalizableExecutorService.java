@@ -1,15 +1,36 @@
 package org.embulk.output.td;
 
+import org.embulk.output.td.metrics.Gauge;
+
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Optional;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
+// Runs up to maxRunningTasks tasks at the same time. Up to queueCapacity tasks wait in addition to
+// running tasks, and submit blocks only when the queue is full. maxRunningTasks may change while tasks
+// run (e.g. AdaptiveUploadConcurrency), and both limits follow its current value. Owned threads are started up to
+// the current limit, so that a pool sized for the maximum limit doesn't start all of its threads while the limit is low. Waiting tasks are kept here and handed
+// to the threads only when a running task completes, so that they don't occupy threads shared with
+// others (e.g. SharedUploadScheduler). Finalizers are called in the order that tasks complete, so that
+// a slow task doesn't delay the finalizers of tasks submitted after it.
 public class FinalizableExecutorService
 {
     public static class NotCloseable
@@ -23,31 +44,121 @@ public class FinalizableExecutorService
         }
     }
 
-    protected ExecutorService threads;
-    protected Queue<RunningTask> runningTasks;
+    private final Executor threads;
+    private final Optional<ThreadPoolExecutor> ownedThreads;  // shut down by shutdown()
+    private final Set<RunningTask> runningTasks;  // submitted tasks whose finalizers are not called yet
+    private final BlockingQueue<RunningTask> completedTasks;
+    private final IntSupplier maxRunningTasks;
+    private final int queueCapacity;
+    private final Object dispatchLock = new Object();
+    private final Queue<RunningTask> waitingTasks;  // guarded by dispatchLock
+    private int dispatchedTasks;  // tasks handed to the threads and not completed yet. guarded by dispatchLock
+    private Optional<Gauge> queuedTaskGauge = Optional.empty();  // tasks waiting for a thread
+    private Optional<Gauge> runningTaskGauge = Optional.empty();
+
+    public FinalizableExecutorService(int workerThreads, int queueCapacity)
+    {
+        this(workerThreads, () -> workerThreads, queueCapacity);
+    }
+
+    // maxRunningTasks must not exceed workerThreads
+    public FinalizableExecutorService(int workerThreads, IntSupplier maxRunningTasks, int queueCapacity)
+    {
+        this(newThreadPool(workerThreads, maxRunningTasks.getAsInt()), true, maxRunningTasks, queueCapacity);
+    }
+
+    // threads are started when tasks are handed to them, up to corePoolSize that grows with maxRunningTasks
+    private static ThreadPoolExecutor newThreadPool(int workerThreads, int initialThreads)
+    {
+        return new ThreadPoolExecutor(Math.min(initialThreads, workerThreads), workerThreads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    }
+
+    // runs tasks on threads owned by the caller, e.g. SharedUploadScheduler. The threads are not shut down by shutdown().
+    public FinalizableExecutorService(Executor threads, IntSupplier maxRunningTasks, int queueCapacity)
+    {
+        this(threads, false, maxRunningTasks, queueCapacity);
+    }
+
+    private FinalizableExecutorService(Executor threads, boolean ownsThreads, IntSupplier maxRunningTasks, int queueCapacity)
+    {
+        checkArgument(maxRunningTasks.getAsInt() > 0, "maxRunningTasks must be positive");
+        checkArgument(queueCapacity >= 0, "queueCapacity must not be negative");
+        this.threads = threads;
+        this.ownedThreads = ownsThreads ? Optional.of((ThreadPoolExecutor) threads) : Optional.empty();
+        this.runningTasks = new LinkedHashSet<>();
+        this.completedTasks = new LinkedBlockingQueue<>();
+        this.maxRunningTasks = maxRunningTasks;
+        this.queueCapacity = queueCapacity;
+        this.waitingTasks = new ArrayDeque<>();
+        this.dispatchedTasks = 0;
+    }
+
+    // gauges are updated when tasks are submitted, start and complete. Call this before submitting tasks.
+    public void setGauges(Gauge queuedTasks, Gauge runningTasks)
+    {
+        this.queuedTaskGauge = Optional.of(queuedTasks);
+        this.runningTaskGauge = Optional.of(runningTasks);
+    }
 
-    public FinalizableExecutorService()
+    private static void addToGauge(Optional<Gauge> gauge, long delta)
     {
-        this.threads = Executors.newCachedThreadPool();
-        this.runningTasks = new LinkedList<>();
+        if (gauge.isPresent()) {
+            gauge.get().add(delta);
+        }
     }
 
-    private static class RunningTask
+    private class RunningTask
+            extends FutureTask<Void>
     {
-        private Future<Void> future;
         private Closeable finalizer;
+        private final AtomicBoolean dequeued = new AtomicBoolean();
+        private volatile boolean started;  // the task is given to a thread, and stopped is counted down when it returns
+        private final CountDownLatch stopped = new CountDownLatch(1);
 
-        RunningTask(Future<Void> future, Closeable finalizer)
+        RunningTask(Callable<Void> task, Closeable finalizer)
         {
-            this.future = future;
+            super(task);
             this.finalizer = finalizer;
         }
 
+        @Override
+        public void run()
+        {
+            try {
+                if (!dequeued.compareAndSet(false, true)) {
+                    return;  // cancelled before started
+                }
+                started = true;
+                addToGauge(queuedTaskGauge, -1);
+                addToGauge(runningTaskGauge, 1);
+                try {
+                    super.run();
+                }
+                finally {
+                    addToGauge(runningTaskGauge, -1);
+                    stopped.countDown();
+                }
+            }
+            finally {
+                taskFinished();
+            }
+        }
+
+        @Override
+        protected void done()
+        {
+            if (dequeued.compareAndSet(false, true)) {
+                addToGauge(queuedTaskGauge, -1);
+            }
+            completedTasks.add(this);
+        }
+
         public void join()
                 throws IOException
         {
             try {
-                future.get();
+                get();
             }
             catch (InterruptedException e) {
                 throw new IOException(e);
@@ -55,28 +166,164 @@ public class FinalizableExecutorService
             catch (ExecutionException e) {
                 throw new IOException(e.getCause());
             }
-            finalizer.close();
+            finally {
+                finalizer.close();
+            }
+        }
+
+        private void rejected(RuntimeException e)
+        {
+            setException(e);
         }
 
+        // the finalizer is called after the task stops, because a running task may still use resources closed by
+        // the finalizer (e.g. a part file being uploaded)
         public void abort()
                 throws IOException
         {
+            cancel(true);
+            synchronized (dispatchLock) {
+                waitingTasks.remove(this);
+            }
+            if (started) {
+                try {
+                    stopped.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
             finalizer.close();
         }
     }
 
+    // hands waiting tasks to the threads while less than maxRunningTasks tasks are running
+    private void dispatch()
+    {
+        synchronized (dispatchLock) {
+            growThreads();
+            while (dispatchedTasks < maxRunningTasks.getAsInt() && !waitingTasks.isEmpty()) {
+                RunningTask task = waitingTasks.poll();
+                dispatchedTasks++;
+                try {
+                    threads.execute(task);
+                }
+                catch (RuntimeException e) {
+                    dispatchedTasks--;
+                    task.rejected(e);
+                }
+            }
+        }
+    }
+
+    // caller holds dispatchLock
+    private void growThreads()
+    {
+        if (ownedThreads.isPresent()) {
+            ThreadPoolExecutor pool = ownedThreads.get();
+            int threads = Math.min(maxRunningTasks.getAsInt(), pool.getMaximumPoolSize());
+            if (pool.getCorePoolSize() < threads) {
+                pool.setCorePoolSize(threads);
+            }
+        }
+    }
+
+    private void taskFinished()
+    {
+        synchronized (dispatchLock) {
+            dispatchedTasks--;
+        }
+        dispatch();
+    }
+
+    // reserves a slot of running tasks for a task that starts before it's submitted, e.g. a part streamed while it's
+    // written. Returns false if maxRunningTasks tasks are running or tasks are waiting. The slot is handed over by
+    // submitReserved, or released by cancelReservation. Thread-safe, unlike submit.
+    public boolean tryReserve()
+    {
+        synchronized (dispatchLock) {
+            growThreads();
+            if (dispatchedTasks < maxRunningTasks.getAsInt() && waitingTasks.isEmpty()) {
+                dispatchedTasks++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public void cancelReservation()
+    {
+        taskFinished();
+    }
+
+    // runs the task with the slot reserved by tryReserve. It doesn't wait for other tasks because the slot is already
+    // counted, and waiting could never end if the tasks are waiting for the slot.
+    public void submitReserved(Callable<Void> task, Closeable finalizer)
+            throws IOException
+    {
+        joinCompleted();
+        RunningTask runningTask = new RunningTask(task, finalizer);
+        runningTasks.add(runningTask);
+        addToGauge(queuedTaskGauge, 1);
+        try {
+            threads.execute(runningTask);
+        }
+        catch (RuntimeException e) {
+            runningTask.rejected(e);
+            taskFinished();
+        }
+    }
+
     public void submit(Callable<Void> task, Closeable finalizer)
+            throws IOException
+    {
+        joinCompleted();
+        // the limit is read every time a task completes, because it may be lowered while waiting
+        while (runningTasks.size() >= maxRunningTasks.getAsInt() + queueCapacity) {
+            try {
+                join(completedTasks.take());
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        RunningTask runningTask = new RunningTask(task, finalizer);
+        runningTasks.add(runningTask);
+        addToGauge(queuedTaskGauge, 1);
+        synchronized (dispatchLock) {
+            waitingTasks.add(runningTask);
+        }
+        dispatch();
+    }
+
+    // call finalizers of completed tasks as early as possible to release their resources
+    private void joinCompleted()
+            throws IOException
+    {
+        RunningTask completed;
+        while ((completed = completedTasks.poll()) != null) {
+            join(completed);
+        }
+    }
+
+    public int getPendingTaskCount()
     {
-        Future<Void> future = threads.submit(task);
-        runningTasks.add(new RunningTask(future, finalizer));
+        return runningTasks.size();
     }
 
+    // waits until the number of pending tasks becomes upto or less. any task that completes first is joined.
     public void joinPartial(long upto)
             throws IOException
     {
         while (runningTasks.size() > upto) {
-            runningTasks.peek().join();
-            runningTasks.remove();
+            try {
+                join(completedTasks.take());
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
         }
     }
 
@@ -86,6 +333,13 @@ public class FinalizableExecutorService
         joinPartial(0);
     }
 
+    private void join(RunningTask task)
+            throws IOException
+    {
+        runningTasks.remove(task);
+        task.join();
+    }
+
     public void shutdown()
             throws IOException
     {
@@ -93,8 +347,11 @@ public class FinalizableExecutorService
             joinAll();
         }
         finally {
-            threads.shutdown();
-            for (RunningTask task : runningTasks) {
+            if (ownedThreads.isPresent()) {
+                ownedThreads.get().shutdown();
+            }
+            for (RunningTask task : new ArrayList<>(runningTasks)) {
+                runningTasks.remove(task);
                 task.abort();
             }
         }
@@ -0,0 +1,104 @@
+package org.embulk.output.td;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Counts values in buckets whose width is 1/8 of their magnitude, so that percentiles are within 12.5% of the
+// exact values. Values less than 16 are counted exactly. Histograms of tasks can be merged through toMap and merge.
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private final TreeMap<Long, Long> counts = new TreeMap<>();  // lower bound of a bucket -> count
+    private long count = 0;
+    private long max = 0;
+
+    public synchronized void record(long value)
+    {
+        value = Math.max(0L, value);
+        counts.merge(lowerBound(value), 1L, Long::sum);
+        count++;
+        max = Math.max(max, value);
+    }
+
+    // merges a histogram created by toMap
+    public synchronized void merge(Map<String, ? extends Number> buckets)
+    {
+        for (Map.Entry<String, ? extends Number> bucket : buckets.entrySet()) {
+            long lowerBound = Long.parseLong(bucket.getKey());
+            long n = bucket.getValue().longValue();
+            counts.merge(lowerBound, n, Long::sum);
+            count += n;
+            max = Math.max(max, upperBound(lowerBound));
+        }
+    }
+
+    // {"lower bound of a bucket": count}. Keys are strings so that the map can be stored in a TaskReport.
+    public synchronized Map<String, Long> toMap()
+    {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Map.Entry<Long, Long> bucket : counts.entrySet()) {
+            map.put(String.valueOf(bucket.getKey()), bucket.getValue());
+        }
+        return map;
+    }
+
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    // exact if values were recorded, the upper bound of the highest bucket if histograms were merged
+    public synchronized long getMax()
+    {
+        return max;
+    }
+
+    // upper bound of the bucket that includes the percentile-th value. percentile is from 0 to 100.
+    public synchronized long getPercentile(double percentile)
+    {
+        if (count == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (Map.Entry<Long, Long> bucket : counts.entrySet()) {
+            seen += bucket.getValue();
+            if (seen >= rank) {
+                return Math.min(upperBound(bucket.getKey()), max);
+            }
+        }
+        return max;
+    }
+
+    // {count, p50, p90, p99, max}
+    public synchronized Map<String, Long> getSummary()
+    {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("p50", getPercentile(50));
+        summary.put("p90", getPercentile(90));
+        summary.put("p99", getPercentile(99));
+        summary.put("max", max);
+        return summary;
+    }
+
+    static long lowerBound(long value)
+    {
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift <= 0) {
+            return value;
+        }
+        return (value >> shift) << shift;
+    }
+
+    static long upperBound(long lowerBound)
+    {
+        int shift = 63 - Long.numberOfLeadingZeros(lowerBound) - SUB_BUCKET_BITS;
+        if (shift <= 0) {
+            return lowerBound;
+        }
+        return lowerBound + (1L << shift) - 1;
+    }
+}
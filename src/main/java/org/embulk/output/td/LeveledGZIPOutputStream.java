@@ -0,0 +1,18 @@
+package org.embulk.output.td;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// GZIPOutputStream with configurable deflate level, strategy and buffer size
+public class LeveledGZIPOutputStream
+        extends GZIPOutputStream
+{
+    public LeveledGZIPOutputStream(OutputStream out, int bufferSize, int level, int strategy)
+            throws IOException
+    {
+        super(out, bufferSize);
+        def.setLevel(level);
+        def.setStrategy(strategy);
+    }
+}
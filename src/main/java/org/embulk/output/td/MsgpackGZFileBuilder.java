@@ -1,5 +1,6 @@
 package org.embulk.output.td;
 
+import org.msgpack.core.MessageBufferPacker;
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.value.Value;
@@ -11,9 +12,11 @@ import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 public class MsgpackGZFileBuilder
         implements Closeable
@@ -21,7 +24,7 @@ public class MsgpackGZFileBuilder
     static class DataSizeFilter
             extends FilterOutputStream
     {
-        private long size = 0;
+        private volatile long size = 0;
 
         public DataSizeFilter(OutputStream out)
         {
@@ -41,7 +44,8 @@ public class MsgpackGZFileBuilder
                 throws IOException
         {
             size += len;
-            super.write(b, off, len);
+            // FilterOutputStream.write(byte[], int, int) writes bytes one by one through write(int)
+            out.write(b, off, len);
         }
 
         @Override
@@ -57,24 +61,235 @@ public class MsgpackGZFileBuilder
         }
     }
 
-    private final File file;
+    // writes bytes to both out and mirror. close doesn't close mirror: a streamed part must not be ended
+    // unless all bytes are written successfully.
+    static class MirrorFilter
+            extends FilterOutputStream
+    {
+        private final OutputStream mirror;
+
+        public MirrorFilter(OutputStream out, OutputStream mirror)
+        {
+            super(out);
+            this.mirror = mirror;
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            out.write(b);
+            mirror.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            out.write(b, off, len);
+            mirror.write(b, off, len);
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            out.flush();
+            mirror.flush();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            out.close();
+        }
+    }
+
+    // measures time spent in the compressing stream
+    static class CompressTimer
+            extends FilterOutputStream
+    {
+        private long nanos = 0;
+
+        public CompressTimer(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            long startNanos = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            long startNanos = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            long startNanos = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            long startNanos = System.nanoTime();
+            out.close();
+            nanos += System.nanoTime() - startNanos;
+        }
+
+        public long getNanos()
+        {
+            return nanos;
+        }
+    }
+
+    // copies the first bytes written to the compressing stream, and estimates their compression ratio by
+    // PartCompressor.sampleCompressionRatio once enough bytes are copied. Does nothing unless start is called.
+    static class RatioSampler
+            extends FilterOutputStream
+    {
+        private final PartCompressor compressor;
+        private byte[] sample;  // null unless sampling
+        private int sampleLength;
+        private volatile double ratio = Double.NaN;
+
+        public RatioSampler(OutputStream out, PartCompressor compressor)
+        {
+            super(out);
+            this.compressor = compressor;
+        }
+
+        public void start(int sampleSize)
+        {
+            if (sample == null && Double.isNaN(ratio)) {
+                sample = new byte[sampleSize];
+                sampleLength = 0;
+            }
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            if (sample != null) {
+                sample(new byte[] {(byte) b}, 0, 1);
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            if (sample != null) {
+                sample(b, off, len);
+            }
+            out.write(b, off, len);
+        }
+
+        private void sample(byte[] b, int off, int len)
+        {
+            int n = Math.min(len, sample.length - sampleLength);
+            System.arraycopy(b, off, sample, sampleLength, n);
+            sampleLength += n;
+            if (sampleLength == sample.length) {
+                ratio = compressor.sampleCompressionRatio(sample, sampleLength);
+                sample = null;
+            }
+        }
+
+        public double getRatio()
+        {
+            return ratio;
+        }
+    }
+
+    private final File file;  // null if the part is written to partBuffer
+    private final PartBuffer partBuffer;  // null if the part is written to file
+    private final Optional<StreamingPartUploader.StreamingPart> streamingPart;
     private final DataSizeFilter out;
-    private final GZIPOutputStream gzout;
+    private final OutputStream compressing;  // the stream opened by PartCompressor
+    private final CompressTimer compressTimer;
+    private final RatioSampler ratioSampler;
 
     private MessagePacker packer;
     private long recordCount;
+    private long uncompressedSize;
 
     public MsgpackGZFileBuilder(File file)
             throws IOException
+    {
+        this(file, PartCompressor.inline());
+    }
+
+    public MsgpackGZFileBuilder(File file, PartCompressor compressor)
+            throws IOException
+    {
+        this(file, compressor, Optional.empty());
+    }
+
+    // compressed bytes are also sent to streamingPart while they are written to the file
+    public MsgpackGZFileBuilder(File file, PartCompressor compressor, Optional<StreamingPartUploader.StreamingPart> streamingPart)
+            throws IOException
     {
         this.file = checkNotNull(file);
-        this.out = new DataSizeFilter(new BufferedOutputStream(new FileOutputStream(file)));
-        this.gzout = new GZIPOutputStream(this.out);
-        this.packer = MessagePack.newDefaultPacker(this.gzout);
+        this.partBuffer = null;
+        this.streamingPart = streamingPart;
+        this.out = new DataSizeFilter(mirror(new BufferedOutputStream(new FileOutputStream(file)), streamingPart));
+        this.compressing = compressor.open(this.out);
+        this.ratioSampler = new RatioSampler(compressing, compressor);
+        this.compressTimer = new CompressTimer(ratioSampler);
+        this.packer = MessagePack.newDefaultPacker(compressTimer);
+
+        this.recordCount = 0;
+    }
+
+    public MsgpackGZFileBuilder(PartBuffer partBuffer, PartCompressor compressor)
+            throws IOException
+    {
+        this(partBuffer, compressor, Optional.empty());
+    }
+
+    public MsgpackGZFileBuilder(PartBuffer partBuffer, PartCompressor compressor,
+            Optional<StreamingPartUploader.StreamingPart> streamingPart)
+            throws IOException
+    {
+        this.file = null;
+        this.partBuffer = checkNotNull(partBuffer);
+        this.streamingPart = streamingPart;
+        this.out = new DataSizeFilter(mirror(partBuffer, streamingPart));
+        this.compressing = compressor.open(this.out);
+        this.ratioSampler = new RatioSampler(compressing, compressor);
+        this.compressTimer = new CompressTimer(ratioSampler);
+        this.packer = MessagePack.newDefaultPacker(compressTimer);
 
         this.recordCount = 0;
     }
 
+    private static OutputStream mirror(OutputStream out, Optional<StreamingPartUploader.StreamingPart> streamingPart)
+    {
+        if (streamingPart.isPresent()) {
+            return new MirrorFilter(out, streamingPart.get());
+        }
+        return out;
+    }
+
     public long getRecordCount()
     {
         return recordCount;
@@ -85,25 +300,105 @@ public class MsgpackGZFileBuilder
         return out.size();
     }
 
+    // time spent compressing the part so far. If the part is compressed by compression threads, it's the time of
+    // the threads, which is accurate after finish is called.
+    public long getCompressNanos()
+    {
+        if (compressing instanceof BackgroundCompression) {
+            return ((BackgroundCompression) compressing).getCompressNanos();
+        }
+        return compressTimer.getNanos();
+    }
+
+    // time of the writer spent in the compressing stream, including handing data over to compression threads.
+    // The packer writes to the compressing stream in chunks of its buffer size.
+    public long getCompressWriteNanos()
+    {
+        return compressTimer.getNanos();
+    }
+
+    // size of msgpack data written so far, including data buffered in the packer
+    public long getUncompressedSize()
+    {
+        if (packer != null) {
+            return packer.getTotalWrittenBytes();
+        }
+        return uncompressedSize;
+    }
+
+    // compressed size / uncompressed size. it's accurate after finish is called.
+    public double getCompressionRatio()
+    {
+        long uncompressedSize = getUncompressedSize();
+        return uncompressedSize > 0 ? (double) getWrittenSize() / uncompressedSize : 0.0;
+    }
+
+    // estimates the compression ratio from the first sampleSize bytes of msgpack data, so that the size of the part can be
+    // predicted before compressed data are written. The sampled ratio is NaN until sampleSize bytes are written.
+    public void sampleCompressionRatio(int sampleSize)
+    {
+        ratioSampler.start(sampleSize);
+    }
+
+    public double getSampledCompressionRatio()
+    {
+        return ratioSampler.getRatio();
+    }
+
+    // returns null if the part is kept in memory
     public File getFile()
     {
+        if (partBuffer != null) {
+            return partBuffer.getFile();
+        }
         return file;
     }
 
+    // the upload that receives the part while it's written, if streaming upload is enabled
+    public Optional<StreamingPartUploader.StreamingPart> getStreamingPart()
+    {
+        return streamingPart;
+    }
+
+    public boolean isInMemory()
+    {
+        return partBuffer != null && partBuffer.isInMemory();
+    }
+
+    // compressed bytes of the part kept in memory. Valid bytes are from 0 to getWrittenSize().
+    public byte[] getBytes()
+    {
+        checkState(isInMemory(), "Part is not kept in memory");
+        return partBuffer.getBytes();
+    }
+
     public boolean delete()
     {
+        if (streamingPart.isPresent()) {
+            // no-op if the part was uploaded. Otherwise the server discards the incomplete part.
+            streamingPart.get().cancel();
+        }
+        if (partBuffer != null) {
+            return partBuffer.release();
+        }
         return file.delete();
     }
 
     public void finish()
             throws IOException
     {
+        if (packer == null) {
+            return;  // already finished
+        }
         try {
             packer.flush();
         }
         finally {
             close();
         }
+        if (streamingPart.isPresent()) {
+            streamingPart.get().close();  // ends the request body
+        }
     }
 
     @Override
@@ -111,6 +406,7 @@ public class MsgpackGZFileBuilder
             throws IOException
     {
         if (packer != null) {
+            uncompressedSize = packer.getTotalWrittenBytes();
             packer.close();
             packer = null;
         }
@@ -140,6 +436,20 @@ public class MsgpackGZFileBuilder
         packer.packString(v);
     }
 
+    // writes bytes that are already serialized in msgpack, e.g. created by encodeString
+    public void writeEncoded(byte[] v)
+            throws IOException
+    {
+        packer.writePayload(v);
+    }
+
+    // writes v[offset] to v[offset + length - 1] that are already serialized in msgpack
+    public void writeEncoded(byte[] v, int offset, int length)
+            throws IOException
+    {
+        packer.writePayload(v, offset, length);
+    }
+
     public void writeBoolean(boolean v)
             throws IOException
     {
@@ -161,4 +471,59 @@ public class MsgpackGZFileBuilder
     public void writeValue(Value v) throws IOException {
         packer.packValue(v);
     }
+
+    // serializes a string as msgpack str (header and UTF-8 bytes) so that it can be written repeatedly by writeEncoded.
+    public static byte[] encodeString(String v)
+    {
+        byte[] utf8 = v.getBytes(StandardCharsets.UTF_8);
+        int length = utf8.length;
+        int headerSize = strHeaderSize(length);
+        byte[] encoded = new byte[headerSize + length];
+        writeStrHeader(encoded, 0, length);
+        System.arraycopy(utf8, 0, encoded, headerSize, length);
+        return encoded;
+    }
+
+    // serializes a value in the same way as writeValue so that it can be written repeatedly by writeEncoded
+    public static byte[] encodeValue(Value v)
+            throws IOException
+    {
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            packer.packValue(v);
+            return packer.toByteArray();
+        }
+    }
+
+    // the header is the same as MessagePacker.packString: the smallest of fixstr, str8, str16 and str32.
+    public static int strHeaderSize(int length)
+    {
+        return length < (1 << 5) ? 1 : length < (1 << 8) ? 2 : length < (1 << 16) ? 3 : 5;
+    }
+
+    // writes the str header of UTF-8 bytes of the length at buffer[offset] and returns the header size
+    public static int writeStrHeader(byte[] buffer, int offset, int length)
+    {
+        int headerSize = strHeaderSize(length);
+        switch (headerSize) {
+        case 1:
+            buffer[offset] = (byte) (MessagePack.Code.FIXSTR_PREFIX | length);
+            break;
+        case 2:
+            buffer[offset] = MessagePack.Code.STR8;
+            buffer[offset + 1] = (byte) length;
+            break;
+        case 3:
+            buffer[offset] = MessagePack.Code.STR16;
+            buffer[offset + 1] = (byte) (length >>> 8);
+            buffer[offset + 2] = (byte) length;
+            break;
+        default:
+            buffer[offset] = MessagePack.Code.STR32;
+            buffer[offset + 1] = (byte) (length >>> 24);
+            buffer[offset + 2] = (byte) (length >>> 16);
+            buffer[offset + 3] = (byte) (length >>> 8);
+            buffer[offset + 4] = (byte) length;
+        }
+        return headerSize;
+    }
 }
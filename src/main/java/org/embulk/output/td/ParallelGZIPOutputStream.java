@@ -0,0 +1,224 @@
+package org.embulk.output.td;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// Splits written bytes into fixed-size blocks and compresses each block into an independent gzip member
+// on a thread of the given executor (like pigz). Members are written to the underlying stream in order,
+// so that the output is a valid multi-member gzip file which can be read by any gzip decoder.
+public class ParallelGZIPOutputStream
+        extends OutputStream
+        implements BackgroundCompression
+{
+    public static class Stats
+    {
+        private final AtomicLong blocks = new AtomicLong();
+        private final AtomicLong uncompressedBytes = new AtomicLong();
+        private final AtomicLong compressedBytes = new AtomicLong();
+        private final AtomicLong compressNanos = new AtomicLong();
+        private final AtomicLong elapsedNanos = new AtomicLong();
+
+        public long getBlocks()
+        {
+            return blocks.get();
+        }
+
+        public long getUncompressedBytes()
+        {
+            return uncompressedBytes.get();
+        }
+
+        public long getCompressedBytes()
+        {
+            return compressedBytes.get();
+        }
+
+        // total time spent by worker threads to compress blocks
+        public long getCompressNanos()
+        {
+            return compressNanos.get();
+        }
+
+        // total wall-clock time from the first write to close of each stream
+        public long getElapsedNanos()
+        {
+            return elapsedNanos.get();
+        }
+    }
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final int level;
+    private final int strategy;
+    private final Stats stats;
+    private final Deque<Future<byte[]>> pendingBlocks;
+    private final AtomicLong compressNanos = new AtomicLong();  // time of worker threads to compress blocks of this stream
+
+    private byte[] buffer;
+    private int position;
+    private long startNanos;
+    private boolean anyBlockSubmitted;
+    private boolean closed;
+
+    public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int blockSize, int maxPendingBlocks,
+            int level, int strategy, Stats stats)
+    {
+        this.out = checkNotNull(out);
+        this.executor = checkNotNull(executor);
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = maxPendingBlocks;
+        this.level = level;
+        this.strategy = strategy;
+        this.stats = checkNotNull(stats);
+        this.pendingBlocks = new ArrayDeque<>();
+        this.buffer = new byte[blockSize];
+        this.position = 0;
+        this.startNanos = -1;
+        this.anyBlockSubmitted = false;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        if (position == blockSize) {
+            submitBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            if (position == blockSize) {
+                submitBuffer();
+            }
+            int n = Math.min(len, blockSize - position);
+            System.arraycopy(b, off, buffer, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // writes blocks that are already compressed. Like GZIPOutputStream, buffered data is not compressed by flush.
+    @Override
+    public void flush()
+            throws IOException
+    {
+        while (!pendingBlocks.isEmpty() && pendingBlocks.peek().isDone()) {
+            writeOldestBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (position > 0 || !anyBlockSubmitted) {
+                // an empty stream is still written as an empty gzip member
+                submitBuffer();
+            }
+            while (!pendingBlocks.isEmpty()) {
+                writeOldestBlock();
+            }
+            stats.elapsedNanos.addAndGet(System.nanoTime() - startNanos);
+        }
+        finally {
+            for (Future<byte[]> block : pendingBlocks) {
+                block.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    private void submitBuffer()
+            throws IOException
+    {
+        if (startNanos < 0) {
+            startNanos = System.nanoTime();
+        }
+        final byte[] block = buffer;
+        final int length = position;
+        pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException
+            {
+                return compress(block, length);
+            }
+        }));
+        anyBlockSubmitted = true;
+        buffer = new byte[blockSize];
+        position = 0;
+
+        // limit memory usage. the writer waits for the oldest block here if workers are behind.
+        while (pendingBlocks.size() > maxPendingBlocks) {
+            writeOldestBlock();
+        }
+    }
+
+    private void writeOldestBlock()
+            throws IOException
+    {
+        byte[] compressed;
+        try {
+            compressed = pendingBlocks.peek().get();
+        }
+        catch (InterruptedException | CancellationException e) {
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        pendingBlocks.remove();
+        out.write(compressed);
+    }
+
+    @Override
+    public long getCompressNanos()
+    {
+        return compressNanos.get();
+    }
+
+    private byte[] compress(byte[] block, int length)
+            throws IOException
+    {
+        long started = System.nanoTime();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        try (LeveledGZIPOutputStream gzout = new LeveledGZIPOutputStream(compressed, 64 * 1024, level, strategy)) {
+            gzout.write(block, 0, length);
+        }
+        byte[] bytes = compressed.toByteArray();
+
+        stats.blocks.incrementAndGet();
+        stats.uncompressedBytes.addAndGet(length);
+        stats.compressedBytes.addAndGet(bytes.length);
+        long elapsed = System.nanoTime() - started;
+        stats.compressNanos.addAndGet(elapsed);
+        compressNanos.addAndGet(elapsed);
+        return bytes;
+    }
+}
@@ -0,0 +1,164 @@
+package org.embulk.output.td;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+// Keeps a part in an array taken from PartBufferPool so that it's uploaded without a temporary file.
+// If the pool can't provide a large enough array, the data are spilled to a temporary file and the rest
+// of the part is written to the file.
+public class PartBuffer
+        extends OutputStream
+{
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private final PartBufferPool pool;
+    private final File tempDir;
+    private final String tempFilePrefix;
+
+    private byte[] buffer;
+    private int count;
+    private File file;
+    private OutputStream fileOut;
+    private boolean closed;
+
+    public PartBuffer(PartBufferPool pool, int initialCapacity, File tempDir, String tempFilePrefix)
+    {
+        this.pool = checkNotNull(pool);
+        this.tempDir = checkNotNull(tempDir);
+        this.tempFilePrefix = checkNotNull(tempFilePrefix);
+        this.buffer = pool.acquire(initialCapacity);
+        this.count = 0;
+        this.closed = false;
+    }
+
+    public boolean isInMemory()
+    {
+        return file == null;
+    }
+
+    // the array that the part is written to. Valid bytes are from 0 to size().
+    public byte[] getBytes()
+    {
+        checkState(isInMemory(), "Part buffer is spilled to %s", file);
+        return buffer;
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    // the temporary file if the part is spilled, otherwise null
+    public File getFile()
+    {
+        return file;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        if (ensureCapacity(1)) {
+            buffer[count++] = (byte) b;
+        }
+        else {
+            fileOut.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        if (ensureCapacity(len)) {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+        else {
+            fileOut.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush()
+            throws IOException
+    {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    // returns the array to the pool and deletes the temporary file. returns false if the file can't be deleted.
+    public boolean release()
+    {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        if (file != null) {
+            return file.delete();
+        }
+        return true;
+    }
+
+    // returns false if the data are (or now have been) spilled to the file
+    private boolean ensureCapacity(int len)
+            throws IOException
+    {
+        if (file != null) {
+            return false;
+        }
+        checkState(!closed, "Part buffer is already closed");
+        if (buffer != null && count + len <= buffer.length) {
+            return true;
+        }
+
+        int minCapacity = count + len;
+        if (minCapacity >= 0 && buffer != null) {
+            byte[] grown = pool.acquire(Math.max(minCapacity, buffer.length + (buffer.length >> 1)));
+            if (grown == null) {
+                grown = pool.acquire(minCapacity);
+            }
+            if (grown != null) {
+                System.arraycopy(buffer, 0, grown, 0, count);
+                pool.release(buffer);
+                buffer = grown;
+                return true;
+            }
+        }
+
+        spill();
+        return false;
+    }
+
+    private void spill()
+            throws IOException
+    {
+        file = File.createTempFile(tempFilePrefix, ".msgpack.gz", tempDir);
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), FILE_BUFFER_SIZE);
+        if (buffer != null) {
+            fileOut.write(buffer, 0, count);
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
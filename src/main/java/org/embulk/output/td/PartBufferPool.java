@@ -0,0 +1,61 @@
+package org.embulk.output.td;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Keeps byte arrays that parts are written to, so that they are reused by later parts instead of
+// being allocated again. Arrays in use and arrays kept in the pool never exceed memoryLimit bytes in total.
+public class PartBufferPool
+{
+    private final long memoryLimit;
+    private final List<byte[]> freeBuffers;
+    private long reservedBytes;
+
+    public PartBufferPool(long memoryLimit)
+    {
+        this.memoryLimit = memoryLimit;
+        this.freeBuffers = new ArrayList<>();
+        this.reservedBytes = 0;
+    }
+
+    public long getMemoryLimit()
+    {
+        return memoryLimit;
+    }
+
+    public synchronized long getReservedBytes()
+    {
+        return reservedBytes;
+    }
+
+    // returns an array of at least minSize bytes, or null if it exceeds the memory limit
+    public synchronized byte[] acquire(int minSize)
+    {
+        Iterator<byte[]> it = freeBuffers.iterator();
+        while (it.hasNext()) {
+            byte[] buffer = it.next();
+            if (buffer.length >= minSize) {
+                it.remove();
+                return buffer;
+            }
+        }
+
+        // drop free arrays that are too small to make room for a new one
+        it = freeBuffers.iterator();
+        while (reservedBytes + minSize > memoryLimit && it.hasNext()) {
+            reservedBytes -= it.next().length;
+            it.remove();
+        }
+        if (reservedBytes + minSize > memoryLimit) {
+            return null;
+        }
+        reservedBytes += minSize;
+        return new byte[minSize];
+    }
+
+    public synchronized void release(byte[] buffer)
+    {
+        freeBuffers.add(buffer);
+    }
+}
@@ -0,0 +1,133 @@
+package org.embulk.output.td;
+
+import org.embulk.config.TaskReport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+// Creates gzip streams for part files, and owns the threads used to compress them.
+public class PartCompressor
+        implements Closeable
+{
+    private static final int PIPELINE_CHUNK_SIZE = 256 * 1024;
+    private static final int PIPELINE_QUEUE_CAPACITY = 8;
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    private static final int GZIP_HEADER_TRAILER_SIZE = 18;
+
+    private final Optional<ExecutorService> pipelineExecutor;
+    private final Optional<ExecutorService> parallelGzipExecutor;
+    private final int parallelGzipThreads;
+    private final int parallelGzipBlockSize;
+    private final ParallelGZIPOutputStream.Stats parallelGzipStats;
+    private final int level;
+    private final int strategy;
+
+    public PartCompressor(TdOutputPlugin.PluginTask task)
+    {
+        this(task.getCompressionThreads(), task.getParallelGzipThreads(), (int) (task.getParallelGzipBlockSize() * 1024),
+                task.getCompressionLevel(), task.getCompressionStrategy().getDeflaterStrategy());
+    }
+
+    private PartCompressor(int compressionThreads, int parallelGzipThreads, int parallelGzipBlockSize, int level, int strategy)
+    {
+        if (compressionThreads > 0) {
+            this.pipelineExecutor = Optional.of(Executors.newFixedThreadPool(compressionThreads));
+        }
+        else {
+            this.pipelineExecutor = Optional.empty();
+        }
+        if (parallelGzipThreads > 0) {
+            this.parallelGzipExecutor = Optional.of(Executors.newFixedThreadPool(parallelGzipThreads));
+        }
+        else {
+            this.parallelGzipExecutor = Optional.empty();
+        }
+        this.parallelGzipThreads = parallelGzipThreads;
+        this.parallelGzipBlockSize = parallelGzipBlockSize;
+        this.parallelGzipStats = new ParallelGZIPOutputStream.Stats();
+        this.level = level;
+        this.strategy = strategy;
+    }
+
+    // compresses on the caller's thread with a single gzip stream
+    public static PartCompressor inline()
+    {
+        return new PartCompressor(0, 0, 0, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    // returns a stream that msgpack data are written to. compressed data are written to out.
+    public OutputStream open(OutputStream out)
+            throws IOException
+    {
+        final OutputStream gzout;
+        if (parallelGzipExecutor.isPresent()) {
+            // keep all workers busy while the writer is waiting for the oldest block
+            gzout = new ParallelGZIPOutputStream(out, parallelGzipExecutor.get(), parallelGzipBlockSize,
+                    parallelGzipThreads * 2, level, strategy, parallelGzipStats);
+        }
+        else {
+            gzout = new LeveledGZIPOutputStream(out, GZIP_BUFFER_SIZE, level, strategy);
+        }
+
+        if (pipelineExecutor.isPresent()) {
+            return new PipelinedOutputStream(gzout, pipelineExecutor.get(), PIPELINE_CHUNK_SIZE, PIPELINE_QUEUE_CAPACITY);
+        }
+        else {
+            return gzout;
+        }
+    }
+
+    // compressed size / uncompressed size of the bytes compressed with the level and strategy of part files,
+    // including the gzip header and trailer
+    public double sampleCompressionRatio(byte[] sample, int length)
+    {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setStrategy(strategy);
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[GZIP_BUFFER_SIZE];
+            long compressed = GZIP_HEADER_TRAILER_SIZE;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return length > 0 ? (double) compressed / length : 0.0;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    public void setTaskReport(TaskReport report)
+    {
+        if (parallelGzipExecutor.isPresent()) {
+            long elapsedNanos = parallelGzipStats.getElapsedNanos();
+            long uncompressedBytes = parallelGzipStats.getUncompressedBytes();
+            report.set(TdOutputPlugin.TASK_REPORT_PARALLEL_GZIP_BLOCKS, parallelGzipStats.getBlocks());
+            report.set(TdOutputPlugin.TASK_REPORT_PARALLEL_GZIP_UNCOMPRESSED_BYTES, uncompressedBytes);
+            report.set(TdOutputPlugin.TASK_REPORT_PARALLEL_GZIP_COMPRESSED_BYTES, parallelGzipStats.getCompressedBytes());
+            report.set(TdOutputPlugin.TASK_REPORT_PARALLEL_GZIP_COMPRESS_MILLIS,
+                    TimeUnit.NANOSECONDS.toMillis(parallelGzipStats.getCompressNanos()));
+            report.set(TdOutputPlugin.TASK_REPORT_PARALLEL_GZIP_ELAPSED_MILLIS, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            report.set(TdOutputPlugin.TASK_REPORT_PARALLEL_GZIP_BYTES_PER_SEC,
+                    elapsedNanos > 0 ? (long) (uncompressedBytes * 1e9 / elapsedNanos) : 0L);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (pipelineExecutor.isPresent()) {
+            pipelineExecutor.get().shutdownNow();
+        }
+        if (parallelGzipExecutor.isPresent()) {
+            parallelGzipExecutor.get().shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.embulk.output.td;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// Buffers written bytes into fixed-size chunks and writes them to the sink stream on a thread of
+// the given executor, so that the writer thread doesn't wait for the sink (e.g. deflate).
+// The writer thread is blocked only when queueCapacity chunks are already waiting.
+// A thread of the executor is used only while chunks are waiting, so that streams of several parts
+// (e.g. a part being finished and the next one) share compression_threads instead of holding one
+// thread each until they are closed. Chunks are written in order because at most one drain task of a
+// stream runs at a time. Buffers of written chunks are reused for next chunks.
+public class PipelinedOutputStream
+        extends OutputStream
+        implements BackgroundCompression
+{
+    private static final class Chunk
+    {
+        private final byte[] bytes;
+        private final int length;
+
+        Chunk(byte[] bytes, int length)
+        {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+
+    private final OutputStream sink;
+    private final Executor executor;
+    private final int chunkSize;
+    private final int queueCapacity;
+    private final AtomicLong sinkNanos = new AtomicLong();  // time spent in write and close of the sink
+
+    // guarded by lock
+    private final Object lock = new Object();
+    private final Queue<Chunk> queue;
+    private final Queue<byte[]> freeBuffers;
+    private boolean draining;  // a drain task is submitted and not finished yet
+    private Throwable failure;  // an error of the sink. The sink is closed by the drain task.
+    private boolean aborted;  // the writer thread was interrupted. The sink is closed when the drain task finishes.
+
+    private byte[] buffer;
+    private int position;
+    private boolean closed;
+
+    public PipelinedOutputStream(OutputStream sink, Executor executor, int chunkSize, int queueCapacity)
+    {
+        this.sink = checkNotNull(sink);
+        this.executor = checkNotNull(executor);
+        this.chunkSize = chunkSize;
+        this.queueCapacity = queueCapacity;
+        this.queue = new ArrayDeque<>(queueCapacity);
+        this.freeBuffers = new ArrayDeque<>(queueCapacity);
+        this.draining = false;
+        this.failure = null;
+        this.aborted = false;
+        this.buffer = new byte[chunkSize];
+        this.position = 0;
+        this.closed = false;
+    }
+
+    // writes waiting chunks, and returns when the queue becomes empty
+    private void drain()
+    {
+        while (true) {
+            Chunk chunk;
+            synchronized (lock) {
+                chunk = queue.poll();
+                if (chunk == null || aborted) {
+                    draining = false;
+                    lock.notifyAll();
+                    if (aborted) {
+                        closeSinkQuietly();
+                    }
+                    return;
+                }
+                lock.notifyAll();  // the writer may be waiting for a space of the queue
+            }
+
+            try {
+                long startNanos = System.nanoTime();
+                sink.write(chunk.bytes, 0, chunk.length);
+                sinkNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+            catch (Throwable e) {
+                closeSinkQuietly();
+                synchronized (lock) {
+                    failure = e;
+                    queue.clear();
+                    draining = false;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (lock) {
+                if (freeBuffers.size() < queueCapacity) {
+                    freeBuffers.add(chunk.bytes);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        if (position == chunkSize) {
+            sendBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            if (position == chunkSize) {
+                sendBuffer();
+            }
+            int n = Math.min(len, chunkSize - position);
+            System.arraycopy(b, off, buffer, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // hands the buffered bytes over to the drainer thread. It doesn't wait for the sink to be flushed.
+    @Override
+    public void flush()
+            throws IOException
+    {
+        if (position > 0) {
+            sendBuffer();
+        }
+    }
+
+    // waits until all bytes are written to the sink, and closes the sink
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flush();
+        synchronized (lock) {
+            try {
+                while (draining && failure == null) {
+                    lock.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                abort();
+                throw new InterruptedIOException();
+            }
+            throwIfFailed();
+        }
+        long startNanos = System.nanoTime();
+        sink.close();
+        sinkNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    // time spent by the sink. If the sink compresses on its own threads, e.g. ParallelGZIPOutputStream, it's their time.
+    @Override
+    public long getCompressNanos()
+    {
+        if (sink instanceof BackgroundCompression) {
+            return ((BackgroundCompression) sink).getCompressNanos();
+        }
+        return sinkNanos.get();
+    }
+
+    private void sendBuffer()
+            throws IOException
+    {
+        byte[] next;
+        synchronized (lock) {
+            try {
+                while (queue.size() >= queueCapacity && failure == null) {
+                    lock.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                abort();
+                throw new InterruptedIOException();
+            }
+            throwIfFailed();
+
+            queue.add(new Chunk(buffer, position));
+            if (!draining) {
+                try {
+                    executor.execute(this::drain);
+                }
+                catch (RejectedExecutionException e) {
+                    queue.clear();
+                    throw new IOException("Pipelined output stream is already closed", e);
+                }
+                draining = true;
+            }
+            next = freeBuffers.poll();
+        }
+        buffer = next != null ? next : new byte[chunkSize];
+        position = 0;
+    }
+
+    // caller holds lock
+    private void throwIfFailed()
+            throws IOException
+    {
+        if (aborted) {
+            throw new IOException("Pipelined output stream is aborted");
+        }
+        if (failure != null) {
+            if (failure instanceof IOException) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            throw new IOException(failure);
+        }
+    }
+
+    // caller holds lock
+    private void abort()
+    {
+        aborted = true;
+        queue.clear();
+        if (!draining) {
+            closeSinkQuietly();
+        }
+    }
+
+    private void closeSinkQuietly()
+    {
+        try {
+            sink.close();
+        }
+        catch (IOException | RuntimeException e) {
+            // the error is reported by the writer or is not interesting after aborted
+        }
+    }
+}
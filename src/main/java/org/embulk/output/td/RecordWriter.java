@@ -3,6 +3,9 @@ package org.embulk.output.td;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.treasuredata.client.TDClient;
+import com.treasuredata.client.TDClientException;
+import com.treasuredata.client.TDClientHttpException;
+import com.treasuredata.client.TDClientHttpTooManyRequestsException;
 import org.embulk.config.TaskReport;
 import org.embulk.output.td.writer.FieldWriterSet;
 import org.embulk.spi.Exec;
@@ -17,9 +20,11 @@ import java.io.File;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Locale;
+import java.util.Optional;
 import java.text.NumberFormat;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -27,7 +32,11 @@ public class RecordWriter
         implements TransactionalPageOutput
 {
     private static final Logger log = LoggerFactory.getLogger(RecordWriter.class);
+    // msgpack data of the first part compressed again to estimate its compression ratio
+    private static final int COMPRESSION_RATIO_SAMPLE_SIZE = 128 * 1024;
+
     private final TDClient client;
+    private final Closeable clientCloser;
     private final String sessionName;
     private final int taskIndex;
 
@@ -37,22 +46,93 @@ public class RecordWriter
     private int partSeqId = 0;
     private PageReader pageReader;
     private MsgpackGZFileBuilder builder;
+    private String uniquePartName;  // name of the part written by builder
 
     private final FinalizableExecutorService executor;
-    private final int uploadConcurrency;
+    private final Optional<AdaptiveUploadConcurrency> adaptiveUploadConcurrency;
+    private Optional<SharedUploadScheduler> sharedUploadScheduler;  // released by close
+    private final PartCompressor compressor;
+    private final Optional<PartBufferPool> partBufferPool;
+    private final Optional<StreamingPartUploader> streamingUploader;
     private final long fileSplitSize; // unit: kb
+    private final int retryLimit;  // of uploads with adaptive_upload_concurrency
+    private final long retryInitialIntervalMillis;
+    private final long retryMaxIntervalMillis;
+    private final TaskMetrics metrics = new TaskMetrics();
+    private final SessionMetrics sessionMetrics;  // released by close
+    private boolean sessionMetricsReleased = false;
+
+    // size of the current part is estimated only every recordsUntilSizeCheck records
+    private long recordsUntilSizeCheck = 1;
+    // compressed size / uncompressed size of finished parts. NaN until the first part is finished.
+    private volatile double compressionRatio = Double.NaN;
 
     public RecordWriter(TdOutputPlugin.PluginTask task, int taskIndex, TDClient client, FieldWriterSet fieldWriters)
+    {
+        this(task, taskIndex, client, client::close, fieldWriters);
+    }
+
+    // clientCloser is called instead of client.close(), e.g. to return a shared client to TDClientCache
+    public RecordWriter(TdOutputPlugin.PluginTask task, int taskIndex, TDClient client, Closeable clientCloser,
+            FieldWriterSet fieldWriters)
+    {
+        this(task, taskIndex, client, clientCloser, Optional.empty(), fieldWriters);
+    }
+
+    // if streamingUploader is present, parts are uploaded while they are written. It's closed by close().
+    public RecordWriter(TdOutputPlugin.PluginTask task, int taskIndex, TDClient client, Closeable clientCloser,
+            Optional<StreamingPartUploader> streamingUploader, FieldWriterSet fieldWriters)
     {
         this.client = checkNotNull(client);
+        this.clientCloser = checkNotNull(clientCloser);
         this.sessionName = task.getSessionName();
         this.taskIndex = taskIndex;
 
         this.fieldWriters = fieldWriters;
         this.tempDir = new File(task.getTempDir().get());
-        this.executor = new FinalizableExecutorService();
-        this.uploadConcurrency = task.getUploadConcurrency();
+
+        // with adaptive_upload_concurrency, threads are started up to the current limit of AdaptiveUploadConcurrency as it
+        // grows toward the maximum, and the executor runs as many uploads as the limit. Parts more than the limit + upload_queue_capacity block add.
+        final int uploadThreads;
+        final IntSupplier maxRunningUploads;
+        if (task.getAdaptiveUploadConcurrency()) {
+            uploadThreads = task.getMaxUploadConcurrency();
+            AdaptiveUploadConcurrency adaptive = new AdaptiveUploadConcurrency(
+                    Math.min(task.getUploadConcurrency(), uploadThreads), uploadThreads);
+            this.adaptiveUploadConcurrency = Optional.of(adaptive);
+            maxRunningUploads = adaptive::getLimit;
+        }
+        else {
+            uploadThreads = task.getUploadConcurrency();
+            this.adaptiveUploadConcurrency = Optional.empty();
+            maxRunningUploads = () -> uploadThreads;
+        }
+        if (task.getSharedUploadConcurrency() > 0) {
+            SharedUploadScheduler scheduler = SharedUploadScheduler.acquire(sessionName, task.getSharedUploadConcurrency());
+            this.sharedUploadScheduler = Optional.of(scheduler);
+            // uploads of this task are limited in the same way as its own threads, and only running uploads use the shared threads
+            this.executor = new FinalizableExecutorService(scheduler.newTaskExecutor(), maxRunningUploads,
+                    task.getUploadQueueCapacity());
+        }
+        else {
+            this.sharedUploadScheduler = Optional.empty();
+            this.executor = new FinalizableExecutorService(uploadThreads, maxRunningUploads, task.getUploadQueueCapacity());
+        }
+        this.retryLimit = task.getRetryLimit();
+        this.retryInitialIntervalMillis = task.getRetryInitialIntervalMillis();
+        this.retryMaxIntervalMillis = task.getRetryMaxIntervalMillis();
+        this.sessionMetrics = SessionMetrics.acquire(sessionName, task.getMetrics());
+        sessionMetrics.getRunningTasks().add(1);
+        executor.setGauges(sessionMetrics.getQueuedUploads(), sessionMetrics.getRunningUploads());
+        this.compressor = new PartCompressor(task);
+        if (task.getPartBufferMemory() > 0) {
+            this.partBufferPool = Optional.of(new PartBufferPool(task.getPartBufferMemory() * 1024));
+        }
+        else {
+            this.partBufferPool = Optional.empty();
+        }
         this.fileSplitSize = task.getFileSplitSize() * 1024;
+        this.streamingUploader = streamingUploader;
     }
 
     @VisibleForTesting
@@ -67,8 +147,25 @@ public class RecordWriter
             throws IOException
     {
         String prefix = String.format("%s-", sessionName);
-        File tempFile = File.createTempFile(prefix, ".msgpack.gz", tempDir);
-        this.builder = new MsgpackGZFileBuilder(tempFile);
+        this.uniquePartName = String.format(Locale.ENGLISH, "task-%d_%d", taskIndex, partSeqId);
+        Optional<StreamingPartUploader.StreamingPart> streamingPart = Optional.empty();
+        if (streamingUploader.isPresent()) {
+            streamingPart = Optional.of(streamingUploader.get().start(sessionName, uniquePartName, executor));
+        }
+        if (partBufferPool.isPresent()) {
+            // a part is a little larger than fileSplitSize because it's cut after the estimated size exceeds it
+            int initialCapacity = (int) Math.min(Math.min(fileSplitSize + fileSplitSize / 8, partBufferPool.get().getMemoryLimit()),
+                    Integer.MAX_VALUE - 8);
+            PartBuffer partBuffer = new PartBuffer(partBufferPool.get(), initialCapacity, tempDir, prefix);
+            this.builder = new MsgpackGZFileBuilder(partBuffer, compressor, streamingPart);
+        }
+        else {
+            File tempFile = File.createTempFile(prefix, ".msgpack.gz", tempDir);
+            this.builder = new MsgpackGZFileBuilder(tempFile, compressor, streamingPart);
+        }
+        if (Double.isNaN(compressionRatio)) {
+            builder.sampleCompressionRatio((int) Math.min(COMPRESSION_RATIO_SAMPLE_SIZE, fileSplitSize / 4));
+        }
     }
 
     @VisibleForTesting
@@ -82,13 +179,20 @@ public class RecordWriter
     {
         pageReader.setPage(checkNotNull(page));
 
+        long startNanos = System.nanoTime();
+        // live metrics are updated once per page and part
+        long rows = 0;
+        long uncompressedSizeBefore = builder.getUncompressedSize();
         try {
             while (pageReader.nextRecord()) {
                 fieldWriters.addRecord(builder, pageReader);
+                rows++;
 
-                if (builder.getWrittenSize() > fileSplitSize) {
+                if (--recordsUntilSizeCheck <= 0 && isPartFull()) {
+                    sessionMetrics.getUncompressedBytes().add(builder.getUncompressedSize() - uncompressedSizeBefore);
                     flush();
                     prepareNextBuilder();
+                    uncompressedSizeBefore = 0;
                 }
             }
 
@@ -96,17 +200,63 @@ public class RecordWriter
         catch (IOException e) {
             throw new RuntimeException(e);
         }
+        finally {
+            metrics.addTaskNanos(System.nanoTime() - startNanos);
+            sessionMetrics.getRows().add(rows);
+            if (builder != null) {
+                sessionMetrics.getUncompressedBytes().add(builder.getUncompressedSize() - uncompressedSizeBefore);
+            }
+        }
+    }
+
+    private boolean isPartFull()
+    {
+        long estimatedSize = estimateCompressedSize(builder);
+        if (estimatedSize >= fileSplitSize) {
+            recordsUntilSizeCheck = 1;
+            return true;
+        }
+
+        // check again when the part is expected to be filled by half of the remaining size. uncompressed size per record
+        // is used because it's never smaller than compressed size per record in practice, and it doesn't lag behind.
+        double uncompressedSizePerRecord = (double) builder.getUncompressedSize() / builder.getRecordCount();
+        recordsUntilSizeCheck = Math.max(1L, (long) ((fileSplitSize - estimatedSize) / uncompressedSizePerRecord / 2));
+        return false;
+    }
+
+    // compressed size written to the file lags behind records because deflater and compression threads buffer data.
+    // the size is predicted from the uncompressed size by the compression ratio of finished parts, or by the ratio
+    // sampled from the first bytes of the part until a part is finished.
+    @VisibleForTesting
+    long estimateCompressedSize(MsgpackGZFileBuilder builder)
+    {
+        long writtenSize = builder.getWrittenSize();
+        double ratio = compressionRatio;
+        if (Double.isNaN(ratio)) {
+            ratio = builder.getSampledCompressionRatio();
+            if (Double.isNaN(ratio)) {
+                return writtenSize;
+            }
+        }
+        return Math.max(writtenSize, (long) (builder.getUncompressedSize() * ratio));
+    }
+
+    private synchronized void updateCompressionRatio(double lastRatio)
+    {
+        if (Double.isNaN(compressionRatio)) {
+            compressionRatio = lastRatio;
+        }
+        else {
+            compressionRatio = (compressionRatio + lastRatio) / 2;
+        }
     }
 
     public void flush() throws IOException
     {
         if (builder != null && builder.getRecordCount() > 0) {
-            builder.finish();
-
-            log.info("{uploading: {rows: {}, size: {} bytes (compressed)}}",
-                    builder.getRecordCount(),
-                    NumberFormat.getNumberInstance().format(builder.getWrittenSize()));
-            upload(builder, String.format(Locale.ENGLISH, "task-%d_%d", taskIndex, partSeqId));
+            // the builder is finished by the upload task so that the rest of compression overlaps with encoding the next part
+            metrics.addTaskCompressNanos(builder.getCompressWriteNanos());
+            upload(builder, uniquePartName);
             partSeqId++;
             builder = null;
         }
@@ -115,25 +265,49 @@ public class RecordWriter
     private void upload(final MsgpackGZFileBuilder builder, final String uniquePartName)
             throws IOException
     {
-        executor.joinPartial(uploadConcurrency - 1);
-        executor.submit(new Callable<Void>() {
+        long waitStartNanos = System.nanoTime();
+        // a streamed part runs with the slot reserved when its request was opened
+        final boolean streaming = builder.getStreamingPart().isPresent() && builder.getStreamingPart().get().handOver();
+        Callable<Void> job = new Callable<Void>() {
             @Override
             public Void call() throws Exception
             {
-                File file = builder.getFile();
+                builder.finish();
+                metrics.addPart(builder.getRecordCount(), builder.getUncompressedSize(), builder.getWrittenSize(),
+                        builder.getCompressNanos());
+                sessionMetrics.getParts().increment();
+                sessionMetrics.getCompressedBytes().add(builder.getWrittenSize());
+                updateCompressionRatio(builder.getCompressionRatio());
 
-                log.debug("{uploading: {file: {}}}", file.getAbsolutePath());
-                Stopwatch stopwatch = Stopwatch.createStarted();
+                log.info("{uploading: {rows: {}, size: {} bytes (compressed), ratio: {}}}",
+                        builder.getRecordCount(),
+                        NumberFormat.getNumberInstance().format(builder.getWrittenSize()),
+                        String.format(Locale.ENGLISH, "%.3f", builder.getCompressionRatio()));
 
-                client.uploadBulkImportPart(sessionName, uniquePartName, builder.getFile());
+                if (streaming) {
+                    long startNanos = System.nanoTime();
+                    if (builder.getStreamingPart().get().awaitUploaded()) {
+                        addUploadLatencyNanos(System.nanoTime() - startNanos);
+                        sessionMetrics.getUploadedBytes().add(builder.getWrittenSize());
+                        log.debug("{uploaded: {part: {}, streaming: true}}", uniquePartName);
+                        return null;
+                    }
+                    // the part is kept until it's uploaded. uploading it again with the same name overwrites the failed one.
+                    log.warn("Streaming upload of part {} failed. Uploading the part again.", uniquePartName);
+                    metrics.addUploadRetry();
+                    sessionMetrics.getUploadRetries().increment();
+                }
 
-                stopwatch.stop();
-                stopwatch.elapsed(TimeUnit.MILLISECONDS);
-                log.debug("{uploaded: {file: {}, time: {}}}", file.getAbsolutePath(), stopwatch);
+                if (adaptiveUploadConcurrency.isPresent()) {
+                    uploadPartAdaptively(builder, uniquePartName, adaptiveUploadConcurrency.get());
+                }
+                else {
+                    uploadPart(builder, uniquePartName);
+                }
                 return null;
             }
-        },
-        new Closeable() {
+        };
+        Closeable finalizer = new Closeable() {
             public void close() throws IOException
             {
                 builder.close();
@@ -141,14 +315,100 @@ public class RecordWriter
                     log.warn("Failed to delete local temporary file {}. Ignoring.", builder.getFile());
                 }
             }
-        });
+        };
+        if (streaming) {
+            executor.submitReserved(job, finalizer);
+        }
+        else {
+            executor.submit(job, finalizer);
+        }
+        metrics.addUploadWaitNanos(System.nanoTime() - waitStartNanos);
+    }
+
+    private void addUploadLatencyNanos(long nanos)
+    {
+        metrics.addUploadLatencyNanos(nanos);
+        sessionMetrics.getUploadLatencyMillis().record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    // with adaptive_upload_concurrency, the client doesn't retry (see TdOutputPlugin.acquireUploadTDClient) and uploads
+    // are retried here with the same retry options, so that every throttled attempt lowers the concurrency instead of
+    // only the last one after all retries of the client failed.
+    private void uploadPartAdaptively(MsgpackGZFileBuilder builder, String uniquePartName,
+            AdaptiveUploadConcurrency adaptive)
+            throws InterruptedException
+    {
+        long intervalMillis = retryInitialIntervalMillis;
+        for (int retry = 0; ; retry++) {
+            long startNanos = System.nanoTime();
+            try {
+                uploadPart(builder, uniquePartName);
+                adaptive.recordUpload(builder.getWrittenSize(), System.nanoTime() - startNanos, false);
+                return;
+            }
+            catch (TDClientException e) {
+                boolean throttled = isThrottled(e);
+                if (throttled) {
+                    adaptive.recordUpload(builder.getWrittenSize(), System.nanoTime() - startNanos, true);
+                }
+                // other client errors (4xx) are not retried in the same way as td-client
+                boolean retryable = throttled || !(e instanceof TDClientHttpException);
+                if (!retryable || retry >= retryLimit) {
+                    throw e;
+                }
+                log.warn("Uploading part {} failed. Retrying {}/{} after {} ms: {}",
+                        uniquePartName, retry + 1, retryLimit, intervalMillis, e.getMessage());
+                metrics.addUploadRetry();
+                sessionMetrics.getUploadRetries().increment();
+                Thread.sleep(intervalMillis);
+                intervalMillis = Math.min(intervalMillis * 2, retryMaxIntervalMillis);
+            }
+        }
+    }
+
+    private static boolean isThrottled(TDClientException e)
+    {
+        if (!(e instanceof TDClientHttpException)) {
+            return false;
+        }
+        return e instanceof TDClientHttpTooManyRequestsException || ((TDClientHttpException) e).getStatusCode() >= 500;
+    }
+
+    private void uploadPart(MsgpackGZFileBuilder builder, String uniquePartName)
+    {
+        if (builder.isInMemory()) {
+            log.debug("{uploading: {part: {}, memory: true}}", uniquePartName);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+
+            client.uploadBulkImportPart(sessionName, uniquePartName, builder.getBytes(), 0, (int) builder.getWrittenSize());
+
+            stopwatch.stop();
+            addUploadLatencyNanos(stopwatch.elapsed(TimeUnit.NANOSECONDS));
+            sessionMetrics.getUploadedBytes().add(builder.getWrittenSize());
+            log.debug("{uploaded: {part: {}, time: {}}}", uniquePartName, stopwatch);
+            return;
+        }
+
+        File file = builder.getFile();
+
+        log.debug("{uploading: {file: {}}}", file.getAbsolutePath());
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        client.uploadBulkImportPart(sessionName, uniquePartName, builder.getFile());
+
+        stopwatch.stop();
+        addUploadLatencyNanos(stopwatch.elapsed(TimeUnit.NANOSECONDS));
+        sessionMetrics.getUploadedBytes().add(builder.getWrittenSize());
+        log.debug("{uploaded: {file: {}, time: {}}}", file.getAbsolutePath(), stopwatch);
     }
 
     @Override
     public void finish()
     {
+        long startNanos = System.nanoTime();
         try {
             flush();
+            metrics.addTaskNanos(System.nanoTime() - startNanos);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
@@ -173,9 +433,24 @@ public class RecordWriter
                     builder = null;
                 }
 
-                if (client != null) {
-                    client.close();
+                compressor.close();
+
+                if (streamingUploader.isPresent()) {
+                    streamingUploader.get().close();
+                }
+
+                if (sharedUploadScheduler.isPresent()) {
+                    sharedUploadScheduler.get().release();
+                    sharedUploadScheduler = Optional.empty();
+                }
+
+                if (!sessionMetricsReleased) {
+                    sessionMetricsReleased = true;
+                    sessionMetrics.getRunningTasks().add(-1);
+                    sessionMetrics.release();
                 }
+
+                clientCloser.close();
             }
         }
         catch (IOException e) {
@@ -194,6 +469,12 @@ public class RecordWriter
     {
         final TaskReport report = TdOutputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport()
                 .set(TdOutputPlugin.TASK_REPORT_UPLOADED_PART_NUMBER, partSeqId);
+        compressor.setTaskReport(report);
+        metrics.setTaskReport(report);
+        if (adaptiveUploadConcurrency.isPresent()) {
+            report.set(TdOutputPlugin.TASK_REPORT_UPLOAD_CONCURRENCY, adaptiveUploadConcurrency.get().getLimit());
+            report.set(TdOutputPlugin.TASK_REPORT_UPLOAD_CONCURRENCY_TIMELINE, adaptiveUploadConcurrency.get().getTimeline());
+        }
         return report;
     }
 
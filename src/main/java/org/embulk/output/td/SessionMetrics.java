@@ -0,0 +1,254 @@
+package org.embulk.output.td;
+
+import org.embulk.config.ConfigException;
+import org.embulk.output.td.TdOutputPlugin.MetricsTask;
+import org.embulk.output.td.metrics.Counter;
+import org.embulk.output.td.metrics.Gauge;
+import org.embulk.output.td.metrics.Histogram;
+import org.embulk.output.td.metrics.JmxMetricsExporter;
+import org.embulk.output.td.metrics.MetricRegistry;
+import org.embulk.output.td.metrics.MetricsExporter;
+import org.embulk.output.td.metrics.MetricsExporterFactory;
+import org.embulk.output.td.metrics.PrometheusFileMetricsExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkState;
+
+// Live metrics of a bulk import session, shared by all tasks of the session in this JVM and exported
+// periodically while the tasks run. Unlike TaskMetrics, they are not reported to the transaction.
+// RecordWriter updates counters once per page or part, not per record, to keep the cost off the per-record path.
+// Reference-counted in the same way as SharedUploadScheduler.
+public class SessionMetrics
+{
+    private static final Logger log = LoggerFactory.getLogger(SessionMetrics.class);
+
+    private static final Map<String, SessionMetrics> sessions = new HashMap<>();
+
+    private final String sessionName;
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Counter rows;
+    private final Counter uncompressedBytes;
+    private final Counter compressedBytes;
+    private final Counter uploadedBytes;
+    private final Counter parts;
+    private final Counter uploadRetries;
+    private final Gauge runningTasks;
+    private final Gauge queuedUploads;
+    private final Gauge runningUploads;
+    private final Histogram uploadLatencyMillis;
+
+    private final List<MetricsExporter> exporters;
+    private final Optional<ScheduledExecutorService> reporter;
+    private int refCount;
+
+    private SessionMetrics(String sessionName, List<MetricsExporter> exporters, long intervalMillis)
+    {
+        this.sessionName = sessionName;
+        this.rows = registry.counter("rows_total", "Records written to parts");
+        this.uncompressedBytes = registry.counter("uncompressed_bytes_total", "Bytes of records before compression");
+        this.compressedBytes = registry.counter("compressed_bytes_total", "Bytes of finished parts");
+        this.uploadedBytes = registry.counter("uploaded_bytes_total", "Bytes of uploaded parts");
+        this.parts = registry.counter("parts_total", "Finished parts");
+        this.uploadRetries = registry.counter("upload_retries_total", "Parts uploaded again after streaming upload failed");
+        this.runningTasks = registry.gauge("running_tasks", "Tasks writing records");
+        this.queuedUploads = registry.gauge("queued_uploads", "Finished parts waiting for an upload thread");
+        this.runningUploads = registry.gauge("running_uploads", "Parts being uploaded");
+        this.uploadLatencyMillis = registry.histogram("upload_latency_milliseconds", "Time to upload a part");
+        this.exporters = exporters;
+        // exporters know all metrics before the first interval, e.g. attributes of JMX for short tasks
+        export();
+        if (exporters.isEmpty()) {
+            this.reporter = Optional.empty();
+        }
+        else {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "embulk-output-td-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleWithFixedDelay(this::export, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            this.reporter = Optional.of(reporter);
+        }
+        this.refCount = 0;
+    }
+
+    public static SessionMetrics acquire(String sessionName, Optional<MetricsTask> task)
+    {
+        synchronized (sessions) {
+            SessionMetrics metrics = sessions.get(sessionName);
+            if (metrics == null) {
+                List<MetricsExporter> exporters = task.isPresent()
+                        ? newExporters(sessionName, task.get()) : Collections.emptyList();
+                long intervalMillis = task.isPresent() ? task.get().getIntervalMillis() : 0L;
+                metrics = new SessionMetrics(sessionName, exporters, intervalMillis);
+                sessions.put(sessionName, metrics);
+            }
+            metrics.refCount++;
+            return metrics;
+        }
+    }
+
+    // exports the last metrics and closes exporters when no task uses them any more
+    public void release()
+    {
+        synchronized (sessions) {
+            checkState(refCount > 0, "Metrics of session %s are already released", sessionName);
+            if (--refCount > 0) {
+                return;
+            }
+            sessions.remove(sessionName);
+        }
+        if (reporter.isPresent()) {
+            reporter.get().shutdown();
+            try {
+                reporter.get().awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        export();
+        for (MetricsExporter exporter : exporters) {
+            try {
+                exporter.close();
+            }
+            catch (IOException | RuntimeException e) {
+                log.warn("Failed to close metrics exporter {}. Ignoring.", exporter, e);
+            }
+        }
+    }
+
+    // a failing exporter doesn't stop the load nor the other exporters
+    private void export()
+    {
+        for (MetricsExporter exporter : exporters) {
+            try {
+                exporter.export(registry);
+            }
+            catch (IOException | RuntimeException e) {
+                log.warn("Failed to export metrics of session {} by {}. Ignoring.", sessionName, exporter, e);
+            }
+        }
+    }
+
+    public static void validate(MetricsTask task)
+    {
+        for (String type : task.getExporters()) {
+            switch (type) {
+            case "jmx":
+                break;
+            case "prometheus":
+                if (!task.getPrometheusFile().isPresent()) {
+                    throw new ConfigException("metrics.prometheus_file is required by the prometheus exporter");
+                }
+                break;
+            default:
+                findFactory(type);
+            }
+        }
+    }
+
+    private static List<MetricsExporter> newExporters(String sessionName, MetricsTask task)
+    {
+        List<MetricsExporter> exporters = new ArrayList<>();
+        for (String type : task.getExporters()) {
+            try {
+                switch (type) {
+                case "jmx":
+                    exporters.add(new JmxMetricsExporter(sessionName));
+                    break;
+                case "prometheus":
+                    exporters.add(new PrometheusFileMetricsExporter(Paths.get(task.getPrometheusFile().get()), sessionName));
+                    break;
+                default:
+                    exporters.add(findFactory(type).create(sessionName, task.getOptions()));
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // metrics are optional. The load continues without the exporter.
+                log.warn("Failed to create metrics exporter {}. Ignoring.", type, e);
+            }
+        }
+        return exporters;
+    }
+
+    private static MetricsExporterFactory findFactory(String type)
+    {
+        for (MetricsExporterFactory factory : ServiceLoader.load(MetricsExporterFactory.class, SessionMetrics.class.getClassLoader())) {
+            if (factory.getType().equals(type)) {
+                return factory;
+            }
+        }
+        throw new ConfigException(String.format("Unknown metrics exporter '%s'. Supported exporters are jmx, prometheus, " +
+                "and exporters provided by MetricsExporterFactory", type));
+    }
+
+    public MetricRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    public Counter getRows()
+    {
+        return rows;
+    }
+
+    public Counter getUncompressedBytes()
+    {
+        return uncompressedBytes;
+    }
+
+    public Counter getCompressedBytes()
+    {
+        return compressedBytes;
+    }
+
+    public Counter getUploadedBytes()
+    {
+        return uploadedBytes;
+    }
+
+    public Counter getParts()
+    {
+        return parts;
+    }
+
+    public Counter getUploadRetries()
+    {
+        return uploadRetries;
+    }
+
+    public Gauge getRunningTasks()
+    {
+        return runningTasks;
+    }
+
+    public Gauge getQueuedUploads()
+    {
+        return queuedUploads;
+    }
+
+    public Gauge getRunningUploads()
+    {
+        return runningUploads;
+    }
+
+    public Histogram getUploadLatencyMillis()
+    {
+        return uploadLatencyMillis;
+    }
+}
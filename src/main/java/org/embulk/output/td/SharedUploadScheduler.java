@@ -0,0 +1,184 @@
+package org.embulk.output.td;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+// Upload threads shared by all tasks of a bulk import session in this JVM. At most maxConcurrency uploads
+// run at the same time in total, and tasks that have waiting uploads take turns (round-robin) so that a
+// task with many parts doesn't starve the others. Schedulers are reference-counted: acquire returns the
+// scheduler of the session and release shuts it down when no task uses it any more.
+public class SharedUploadScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(SharedUploadScheduler.class);
+
+    private static final Map<String, SharedUploadScheduler> schedulers = new HashMap<>();
+
+    private final String sessionName;
+    private final int maxConcurrency;
+    private final ExecutorService threads;
+    private final List<TaskQueue> taskQueues;  // in the order of turns
+    private int nextTurn;
+    private int runningUploads;
+    private int refCount;
+
+    private SharedUploadScheduler(String sessionName, int maxConcurrency)
+    {
+        this.sessionName = sessionName;
+        this.maxConcurrency = maxConcurrency;
+        this.threads = Executors.newFixedThreadPool(maxConcurrency);
+        this.taskQueues = new ArrayList<>();
+        this.nextTurn = 0;
+        this.runningUploads = 0;
+        this.refCount = 0;
+    }
+
+    public static SharedUploadScheduler acquire(String sessionName, int maxConcurrency)
+    {
+        checkArgument(maxConcurrency > 0, "maxConcurrency must be positive");
+        synchronized (schedulers) {
+            SharedUploadScheduler scheduler = schedulers.get(sessionName);
+            if (scheduler == null) {
+                scheduler = new SharedUploadScheduler(sessionName, maxConcurrency);
+                schedulers.put(sessionName, scheduler);
+                log.info("Sharing {} upload threads among tasks of session {}", maxConcurrency, sessionName);
+            }
+            else if (scheduler.maxConcurrency != maxConcurrency) {
+                log.warn("Upload threads of session {} are already shared with concurrency {}. Ignoring {}.",
+                        sessionName, scheduler.maxConcurrency, maxConcurrency);
+            }
+            scheduler.refCount++;
+            return scheduler;
+        }
+    }
+
+    public void release()
+    {
+        synchronized (schedulers) {
+            checkState(refCount > 0, "Upload scheduler of session %s is already released", sessionName);
+            if (--refCount == 0) {
+                schedulers.remove(sessionName);
+                synchronized (this) {
+                    // uploads left in the queues are aborted tasks of released tasks
+                    taskQueues.clear();
+                    threads.shutdown();
+                }
+            }
+        }
+    }
+
+    public int getMaxConcurrency()
+    {
+        return maxConcurrency;
+    }
+
+    // returns an executor for a task. Uploads submitted to it run in order of submission.
+    public Executor newTaskExecutor()
+    {
+        return new TaskQueue();
+    }
+
+    // an upload may belong to another task than the caller, so a rejected upload is put back at the head of its
+    // queue instead of throwing the error to the caller
+    private synchronized void dispatch()
+    {
+        while (runningUploads < maxConcurrency) {
+            TaskQueue queue = nextQueue();
+            if (queue == null) {
+                return;
+            }
+            Runnable upload = queue.uploads.poll();
+            runningUploads++;
+            try {
+                threads.execute(() -> {
+                    try {
+                        upload.run();
+                    }
+                    finally {
+                        uploadFinished();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                runningUploads--;
+                queue.uploads.addFirst(upload);
+                log.warn("Upload threads of session {} rejected an upload. It is dispatched again when another upload finishes.",
+                        sessionName, e);
+                return;
+            }
+            removeEmptyQueues();
+        }
+    }
+
+    private synchronized void uploadFinished()
+    {
+        runningUploads--;
+        dispatch();
+    }
+
+    // the queue whose turn comes next among queues that have uploads, or null
+    private TaskQueue nextQueue()
+    {
+        for (int i = 0; i < taskQueues.size(); i++) {
+            TaskQueue queue = taskQueues.get((nextTurn + i) % taskQueues.size());
+            if (!queue.uploads.isEmpty()) {
+                nextTurn = (nextTurn + i + 1) % taskQueues.size();
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    private void removeEmptyQueues()
+    {
+        Iterator<TaskQueue> it = taskQueues.iterator();
+        int index = 0;
+        while (it.hasNext()) {
+            if (it.next().uploads.isEmpty()) {
+                it.remove();
+                if (index < nextTurn) {
+                    nextTurn--;
+                }
+            }
+            else {
+                index++;
+            }
+        }
+        if (nextTurn >= taskQueues.size()) {
+            nextTurn = 0;
+        }
+    }
+
+    private class TaskQueue
+            implements Executor
+    {
+        private final Deque<Runnable> uploads = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable upload)
+        {
+            synchronized (SharedUploadScheduler.this) {
+                checkState(!threads.isShutdown(), "Upload scheduler of session %s is already released", sessionName);
+                if (uploads.isEmpty()) {
+                    taskQueues.add(this);
+                }
+                uploads.add(upload);
+                dispatch();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.embulk.output.td;
+
+import java.util.Optional;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Intervals of polling the status of a bulk import session. Polling starts at initialIntervalMillis so that
+// small loads finish shortly after the server completes, and the interval doubles up to maxIntervalMillis so
+// that large loads don't send too many requests. Each interval is randomized by +/-JITTER_RATIO.
+public class StatusPolling
+{
+    private static final double JITTER_RATIO = 0.2;
+
+    private final long initialIntervalMillis;
+    private final long maxIntervalMillis;
+    private final Optional<Long> timeoutMillis;
+    private final Random random;
+
+    public StatusPolling(long initialIntervalMillis, long maxIntervalMillis, Optional<Long> timeoutMillis)
+    {
+        checkArgument(initialIntervalMillis > 0, "initialIntervalMillis must be positive");
+        this.initialIntervalMillis = initialIntervalMillis;
+        this.maxIntervalMillis = Math.max(initialIntervalMillis, maxIntervalMillis);
+        this.timeoutMillis = timeoutMillis;
+        this.random = new Random();
+    }
+
+    public static StatusPolling of(TdOutputPlugin.PluginTask task)
+    {
+        return new StatusPolling(task.getStatusPollInitialIntervalMillis(), task.getStatusPollMaxIntervalMillis(),
+                task.getStatusPollTimeoutMillis());
+    }
+
+    // no timeout if empty
+    public Optional<Long> getTimeoutMillis()
+    {
+        return timeoutMillis;
+    }
+
+    // interval before the (attempt + 1)-th poll. attempt starts at 0.
+    public long getIntervalMillis(int attempt)
+    {
+        long interval = maxIntervalMillis;
+        if (attempt < 62 && initialIntervalMillis <= (maxIntervalMillis >> attempt)) {
+            interval = initialIntervalMillis << attempt;
+        }
+        double jitter = interval * JITTER_RATIO * (random.nextDouble() * 2 - 1);
+        return Math.max(1L, Math.round(interval + jitter));
+    }
+}
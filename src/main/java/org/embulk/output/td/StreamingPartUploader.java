@@ -0,0 +1,440 @@
+package org.embulk.output.td;
+
+import com.treasuredata.client.ProxyConfig;
+import okhttp3.Call;
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// Uploads a part while it's being written: compressed bytes are sent to the upload_part API as a chunked request
+// body as soon as they are produced. td-client uploads only complete files or byte arrays, so the API is called
+// with OkHttp directly. A streamed part is never retried because the body can't be replayed; the caller keeps
+// the complete part and uploads it again with TDClient if the stream fails.
+// The request is opened when the first chunk of compressed bytes is ready, or when the part is submitted, so that
+// no request is made for a part without records. A streamed part takes a slot of the upload executor while it's
+// written, and the part is not streamed if no slot is free then. Writing never waits for the network: streaming is
+// given up if the queue of chunks is full or if the body is idle for maxIdleMillis because encoding is slow.
+// Streaming is disabled for the rest of the task if the server doesn't accept chunked requests, or if a body was idle
+// because input is slower than idle timeouts of the server or proxies. Buffers of chunks are reused by the parts.
+// The endpoint, additional headers, proxy and timeouts are the same as TDClient built by TdOutputPlugin, but requests
+// have OkHttp's User-Agent, and they are not retried by the client.
+public class StreamingPartUploader
+        implements Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger(StreamingPartUploader.class);
+
+    private static final MediaType CONTENT_TYPE = MediaType.parse("application/octet-stream");
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final OkHttpClient httpClient;
+    private final HttpUrl uploadPartUrl;
+    private final String apiKey;
+    private final Map<String, String> headers;
+    private final long maxIdleMillis;  // shorter than idle timeouts of the server and proxies
+    private final ExecutorService threads;
+    private final AtomicBoolean disabled = new AtomicBoolean(false);
+    private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(QUEUE_CAPACITY);  // buffers of sent chunks
+
+    public StreamingPartUploader(String endpoint, boolean useSsl, Optional<Integer> port, String apiKey,
+            Map<String, String> headers, Optional<ProxyConfig> proxyConfig, long maxIdleMillis)
+    {
+        HttpUrl.Builder url = new HttpUrl.Builder()
+                .scheme(useSsl ? "https" : "http")
+                .host(endpoint)
+                .addPathSegments("v3/bulk_import/upload_part");
+        if (port.isPresent()) {
+            url.port(port.get());
+        }
+        this.uploadPartUrl = url.build();
+        this.apiKey = checkNotNull(apiKey);
+        this.headers = checkNotNull(headers);
+        this.maxIdleMillis = maxIdleMillis;
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectTimeout(60, TimeUnit.SECONDS)
+                .readTimeout(60, TimeUnit.SECONDS)
+                .writeTimeout(60, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(false);
+        if (proxyConfig.isPresent()) {
+            final ProxyConfig proxy = proxyConfig.get();
+            builder.proxy(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(proxy.getHost(), proxy.getPort())));
+            if (proxy.getUser().isPresent()) {
+                final String credential = Credentials.basic(proxy.getUser().get(), proxy.getPassword().or(""));
+                builder.proxyAuthenticator((route, response) ->
+                        response.request().newBuilder().header("Proxy-Authorization", credential).build());
+            }
+        }
+        this.httpClient = builder.build();
+        this.threads = Executors.newCachedThreadPool();
+    }
+
+    // bytes written to the returned stream are sent as the body of the part. A slot of uploads is reserved when the
+    // request is opened, and handed over to the upload task of the part by handOver.
+    public StreamingPart start(String sessionName, String uniquePartName, FinalizableExecutorService uploads)
+    {
+        HttpUrl url = uploadPartUrl.newBuilder()
+                .addPathSegment(sessionName)
+                .addPathSegment(uniquePartName)
+                .build();
+        return new StreamingPart(uniquePartName, url, uploads);
+    }
+
+    public boolean isDisabled()
+    {
+        return disabled.get();
+    }
+
+    @Override
+    public void close()
+    {
+        threads.shutdownNow();
+        httpClient.connectionPool().evictAll();
+    }
+
+    private static final class Chunk
+    {
+        private final byte[] bytes;
+        private final int length;
+
+        Chunk(byte[] bytes, int length)
+        {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+
+    private static final Chunk END_OF_STREAM = new Chunk(new byte[0], 0);
+
+    private byte[] newBuffer()
+    {
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[CHUNK_SIZE];
+    }
+
+    private void releaseBuffer(Chunk chunk)
+    {
+        if (chunk != END_OF_STREAM) {
+            freeBuffers.offer(chunk.bytes);  // dropped if the pool is full
+        }
+    }
+
+    private enum State
+    {
+        NEW, STREAMING, NOT_STREAMED;
+    }
+
+    // Writes never throw: once the request failed, written bytes are discarded and awaitUploaded returns false.
+    // Bytes are written by a single thread at a time (the writer, a compression thread or the upload task).
+    public class StreamingPart
+            extends OutputStream
+    {
+        private final String uniquePartName;
+        private final HttpUrl url;
+        private final FinalizableExecutorService uploads;
+        private final BlockingQueue<Chunk> queue;
+
+        // guarded by this
+        private State state;
+        private boolean reserved;  // a slot of uploads is held and not handed over to the upload task yet
+        private Call call;
+        private Future<Boolean> response;
+
+        private byte[] buffer;
+        private int position;
+        private volatile boolean failed;
+        private boolean closed;
+
+        StreamingPart(String uniquePartName, HttpUrl url, FinalizableExecutorService uploads)
+        {
+            this.uniquePartName = uniquePartName;
+            this.url = url;
+            this.uploads = checkNotNull(uploads);
+            this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            this.state = State.NEW;
+            this.reserved = false;
+            this.buffer = newBuffer();
+            this.position = 0;
+            this.failed = false;
+            this.closed = false;
+        }
+
+        // opens the request if a slot of uploads is free. Returns true if the part is streamed.
+        private synchronized boolean open()
+        {
+            if (state == State.NEW) {
+                if (!disabled.get() && uploads.tryReserve()) {
+                    reserved = true;
+                    state = State.STREAMING;
+                    startRequest();
+                }
+                else {
+                    state = State.NOT_STREAMED;
+                }
+            }
+            return state == State.STREAMING && !failed;
+        }
+
+        private void startRequest()
+        {
+            Request.Builder request = new Request.Builder()
+                    .url(url)
+                    .header("Authorization", "TD1 " + apiKey)
+                    .put(new ChunkedBody());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                request.header(header.getKey(), header.getValue());
+            }
+            this.call = httpClient.newCall(request.build());
+            this.response = threads.submit(() -> {
+                try (Response r = call.execute()) {
+                    if (!r.isSuccessful()) {
+                        log.warn("Streaming upload of part {} failed with status {}", uniquePartName, r.code());
+                        if (isChunkedRequestRejected(r.code()) && disabled.compareAndSet(false, true)) {
+                            log.warn("Streaming upload is disabled because the server doesn't accept chunked requests");
+                        }
+                        giveUp();
+                    }
+                }
+                catch (IOException e) {
+                    if (!call.isCanceled()) {
+                        log.warn("Streaming upload of part {} failed", uniquePartName, e);
+                    }
+                    giveUp();
+                }
+                return !failed;
+            });
+        }
+
+        private class ChunkedBody
+                extends RequestBody
+        {
+            @Override
+            public MediaType contentType()
+            {
+                return CONTENT_TYPE;
+            }
+
+            @Override
+            public long contentLength()
+            {
+                return -1L;  // Transfer-Encoding: chunked
+            }
+
+            @Override
+            public boolean isOneShot()
+            {
+                return true;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink)
+                    throws IOException
+            {
+                try {
+                    while (true) {
+                        Chunk chunk = queue.poll(maxIdleMillis, TimeUnit.MILLISECONDS);
+                        if (chunk == null) {
+                            // the server or a proxy may close an idle request while records are encoded slowly.
+                            // Input is likely to be as slow for next parts, so they are uploaded after they're finished.
+                            if (disabled.compareAndSet(false, true)) {
+                                log.warn("Streaming upload is disabled because no bytes of part {} were written in {} ms",
+                                        uniquePartName, maxIdleMillis);
+                            }
+                            throw new IOException(String.format("No bytes of part %s were written in %d ms",
+                                    uniquePartName, maxIdleMillis));
+                        }
+                        if (chunk == END_OF_STREAM) {
+                            return;
+                        }
+                        try {
+                            sink.write(chunk.bytes, 0, chunk.length);
+                            sink.flush();
+                        }
+                        finally {
+                            releaseBuffer(chunk);
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        @Override
+        public void write(int b)
+        {
+            if (position == CHUNK_SIZE) {
+                sendBuffer();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            while (len > 0) {
+                if (position == CHUNK_SIZE) {
+                    sendBuffer();
+                }
+                int n = Math.min(len, CHUNK_SIZE - position);
+                System.arraycopy(b, off, buffer, position, n);
+                position += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // sends the buffered bytes to the server without waiting for a full chunk
+        @Override
+        public void flush()
+        {
+            if (position > 0) {
+                sendBuffer();
+            }
+        }
+
+        // ends the body. It doesn't wait for the response.
+        @Override
+        public void close()
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flush();
+            freeBuffers.offer(buffer);
+            if (!open()) {
+                return;
+            }
+            // unlike the writer, the upload task may wait for the network
+            try {
+                while (!queue.offer(END_OF_STREAM, 100, TimeUnit.MILLISECONDS)) {
+                    if (failed || response.isDone()) {
+                        giveUp();
+                        return;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                giveUp();
+            }
+        }
+
+        // called when the part is submitted to be uploaded. Returns true if the part is streamed, and then the reserved
+        // slot is handed over to the upload task (FinalizableExecutorService.submitReserved). Otherwise, the part is not
+        // streamed any more, and the caller uploads it after it's finished.
+        public synchronized boolean handOver()
+        {
+            if (open()) {
+                reserved = false;
+                return true;
+            }
+            state = State.NOT_STREAMED;
+            giveUp();
+            return false;
+        }
+
+        // returns true if the server received the whole part
+        public boolean awaitUploaded()
+                throws InterruptedException
+        {
+            Future<Boolean> response;
+            synchronized (this) {
+                response = this.response;
+            }
+            if (response == null) {
+                return false;
+            }
+            try {
+                return response.get();
+            }
+            catch (ExecutionException | CancellationException e) {
+                return false;
+            }
+        }
+
+        // aborts the request so that the server doesn't receive an incomplete part
+        public synchronized void cancel()
+        {
+            closed = true;
+            giveUp();
+            if (response != null) {
+                response.cancel(true);
+            }
+        }
+
+        // stops sending the part, and releases the slot unless it's handed over
+        private synchronized void giveUp()
+        {
+            failed = true;
+            if (call != null) {
+                call.cancel();
+            }
+            Chunk chunk;
+            while ((chunk = queue.poll()) != null) {
+                releaseBuffer(chunk);
+            }
+            if (reserved) {
+                reserved = false;
+                uploads.cancelReservation();
+            }
+        }
+
+        private void sendBuffer()
+        {
+            if (!failed && open()) {
+                if (enqueue(new Chunk(buffer, position))) {
+                    buffer = newBuffer();
+                }
+            }
+            position = 0;
+        }
+
+        // returns false if the chunk is not sent, and then its buffer is still owned by the caller
+        private boolean enqueue(Chunk chunk)
+        {
+            // the network is slower than encoding. The part is uploaded after it's finished instead of blocking encoding.
+            if (!queue.offer(chunk)) {
+                log.warn("Streaming upload of part {} is given up because the network is slower than encoding", uniquePartName);
+                giveUp();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // the server or a proxy doesn't support Transfer-Encoding: chunked
+    private static boolean isChunkedRequestRejected(int statusCode)
+    {
+        return statusCode == 411 || statusCode == 501 || statusCode == 505;
+    }
+}
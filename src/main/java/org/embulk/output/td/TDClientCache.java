@@ -0,0 +1,91 @@
+package org.embulk.output.td;
+
+import com.treasuredata.client.TDClient;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// TDClients shared by the transaction and tasks running in this JVM, so that tasks don't pay client construction
+// and TLS handshakes, and reuse HTTP keep-alive connections. A client is created for each distinct key (endpoint,
+// apikey, proxy, headers, ...) and closed when the last lease of it is closed.
+public class TDClientCache
+{
+    public static class Lease
+            implements Closeable
+    {
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry)
+        {
+            this.entry = entry;
+            this.closed = false;
+        }
+
+        public TDClient getClient()
+        {
+            return entry.client;
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized (entries) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (--entry.refCount == 0) {
+                    entries.remove(entry.key);
+                    entry.client.close();
+                }
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        private final Object key;
+        private final TDClient client;
+        private int refCount;
+
+        Entry(Object key, TDClient client)
+        {
+            this.key = key;
+            this.client = client;
+            this.refCount = 0;
+        }
+    }
+
+    private static final Map<Object, Entry> entries = new HashMap<>();
+
+    private TDClientCache()
+    {
+    }
+
+    // key must implement equals and hashCode
+    public static Lease acquire(Object key, Supplier<TDClient> factory)
+    {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, checkNotNull(factory.get()));
+                entries.put(key, entry);
+            }
+            entry.refCount++;
+            return new Lease(entry);
+        }
+    }
+
+    // returns a lease of a client that is not shared with anyone
+    public static Lease unshared(TDClient client)
+    {
+        Entry entry = new Entry(new Object(), checkNotNull(client));
+        entry.refCount++;
+        return new Lease(entry);
+    }
+}
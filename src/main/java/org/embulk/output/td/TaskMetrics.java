@@ -0,0 +1,129 @@
+package org.embulk.output.td;
+
+import org.embulk.config.TaskReport;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Throughput and latency of a task, reported by RecordWriter.commit and summarized by TdOutputPlugin:
+// - encode: time of the task thread spent in the plugin, except compressing and waiting for upload threads
+// - compress: time spent compressing parts. With compression threads, it's the time of the threads, not the time
+//   of the task thread handing data over to them.
+// - upload wait: time of the task thread blocked because all upload threads and the queue were busy
+// - upload latency: time to upload a finished part
+// A slow load is CPU bound if encode or compress dominates, and disk or network bound if upload wait dominates.
+public class TaskMetrics
+{
+    // updated by the task thread
+    private long taskNanos = 0;
+    private long taskCompressNanos = 0;
+    private long uploadWaitNanos = 0;
+
+    // updated by upload threads
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong uploadRetries = new AtomicLong();
+    private final LatencyHistogram uploadLatencyMillis = new LatencyHistogram();
+
+    // time of the task thread spent in RecordWriter
+    public void addTaskNanos(long nanos)
+    {
+        taskNanos += nanos;
+    }
+
+    // time of the task thread spent in the compressing stream of a part, before the part is handed to an upload thread
+    public void addTaskCompressNanos(long nanos)
+    {
+        taskCompressNanos += nanos;
+    }
+
+    public void addUploadWaitNanos(long nanos)
+    {
+        uploadWaitNanos += nanos;
+    }
+
+    // called when a part is finished
+    public void addPart(long rows, long uncompressedBytes, long compressedBytes, long compressNanos)
+    {
+        this.rows.addAndGet(rows);
+        this.uncompressedBytes.addAndGet(uncompressedBytes);
+        this.compressedBytes.addAndGet(compressedBytes);
+        this.compressNanos.addAndGet(compressNanos);
+    }
+
+    public void addUploadLatencyNanos(long nanos)
+    {
+        uploadLatencyMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    // a part is uploaded again, e.g. after streaming upload failed. td-client retries requests internally,
+    // and those retries are not visible here.
+    public void addUploadRetry()
+    {
+        uploadRetries.incrementAndGet();
+    }
+
+    public void setTaskReport(TaskReport report)
+    {
+        report.set(TdOutputPlugin.TASK_REPORT_ROWS, rows.get());
+        report.set(TdOutputPlugin.TASK_REPORT_UNCOMPRESSED_BYTES, uncompressedBytes.get());
+        report.set(TdOutputPlugin.TASK_REPORT_COMPRESSED_BYTES, compressedBytes.get());
+        report.set(TdOutputPlugin.TASK_REPORT_ENCODE_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(Math.max(0L, taskNanos - taskCompressNanos - uploadWaitNanos)));
+        report.set(TdOutputPlugin.TASK_REPORT_COMPRESS_MILLIS, TimeUnit.NANOSECONDS.toMillis(compressNanos.get()));
+        report.set(TdOutputPlugin.TASK_REPORT_UPLOAD_WAIT_MILLIS, TimeUnit.NANOSECONDS.toMillis(uploadWaitNanos));
+        report.set(TdOutputPlugin.TASK_REPORT_UPLOAD_RETRIES, uploadRetries.get());
+        report.set(TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_MILLIS, uploadLatencyMillis.getSummary());
+        report.set(TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_HISTOGRAM, uploadLatencyMillis.toMap());
+    }
+
+    private static final String[] SUMMED_KEYS = {
+            TdOutputPlugin.TASK_REPORT_ROWS,
+            TdOutputPlugin.TASK_REPORT_UNCOMPRESSED_BYTES,
+            TdOutputPlugin.TASK_REPORT_COMPRESSED_BYTES,
+            TdOutputPlugin.TASK_REPORT_ENCODE_MILLIS,
+            TdOutputPlugin.TASK_REPORT_COMPRESS_MILLIS,
+            TdOutputPlugin.TASK_REPORT_UPLOAD_WAIT_MILLIS,
+            TdOutputPlugin.TASK_REPORT_UPLOAD_RETRIES,
+    };
+
+    // sums metrics of tasks. Times are the sums of tasks, not wall-clock times. Reports without metrics
+    // (e.g. created by an older version before resuming) are ignored.
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> summarize(List<TaskReport> taskReports)
+    {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        LatencyHistogram uploadLatencyMillis = new LatencyHistogram();
+        long maxUploadLatencyMillis = 0;
+        int tasks = 0;
+        for (String key : SUMMED_KEYS) {
+            summary.put(key, 0L);
+        }
+        for (TaskReport report : taskReports) {
+            if (!report.has(TdOutputPlugin.TASK_REPORT_ROWS)) {
+                continue;
+            }
+            tasks++;
+            for (String key : SUMMED_KEYS) {
+                summary.put(key, (Long) summary.get(key) + report.get(long.class, key, 0L));
+            }
+            if (report.has(TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_HISTOGRAM)) {
+                uploadLatencyMillis.merge(report.get(Map.class, TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_HISTOGRAM));
+            }
+            if (report.has(TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_MILLIS)) {
+                Number max = (Number) report.get(Map.class, TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_MILLIS).get("max");
+                maxUploadLatencyMillis = Math.max(maxUploadLatencyMillis, max == null ? 0L : max.longValue());
+            }
+        }
+        summary.put("tasks", tasks);
+        Map<String, Long> latency = uploadLatencyMillis.getSummary();
+        latency.put("max", maxUploadLatencyMillis);  // exact, unlike the max of the merged histogram
+        summary.put(TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_MILLIS, latency);
+        return summary;
+    }
+}
@@ -53,6 +53,8 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -60,7 +62,9 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 
 import static java.lang.Integer.parseInt;
@@ -141,10 +145,60 @@ public class TdOutputPlugin
         @Max(8)
         int getUploadConcurrency();
 
+        @Config("adaptive_upload_concurrency")
+        @ConfigDefault("false") // if true, upload_concurrency is the initial concurrency
+        boolean getAdaptiveUploadConcurrency();
+
+        @Config("max_upload_concurrency")
+        @ConfigDefault("16") // used only with adaptive_upload_concurrency
+        @Min(1)
+        @Max(64)
+        int getMaxUploadConcurrency();
+
+        @Config("shared_upload_concurrency")
+        @ConfigDefault("0") // 0 means that each task has its own upload threads
+        @Min(0)
+        int getSharedUploadConcurrency();
+
+        @Config("upload_queue_capacity")
+        @ConfigDefault("2") // number of finished parts that wait for an upload thread
+        @Min(0)
+        int getUploadQueueCapacity();
+
         @Config("file_split_size")
         @ConfigDefault("16384") // default 16MB (unit: kb)
         long getFileSplitSize();
 
+        @Config("part_buffer_memory")
+        @ConfigDefault("0") // 0 means that parts are written to temporary files (unit: kb)
+        @Min(0)
+        long getPartBufferMemory();
+
+        @Config("compression_threads")
+        @ConfigDefault("0") // 0 means that records are compressed on the task thread
+        @Min(0)
+        int getCompressionThreads();
+
+        @Config("parallel_gzip_threads")
+        @ConfigDefault("0") // 0 means that a part is compressed as a single gzip stream
+        @Min(0)
+        int getParallelGzipThreads();
+
+        @Config("parallel_gzip_block_size")
+        @ConfigDefault("1024") // default 1MB (unit: kb)
+        @Min(64)
+        long getParallelGzipBlockSize();
+
+        @Config("compression_level")
+        @ConfigDefault("6")
+        @Min(0)
+        @Max(9)
+        int getCompressionLevel();
+
+        @Config("compression_strategy")
+        @ConfigDefault("\"default\"")
+        CompressionStrategy getCompressionStrategy();
+
         // From org.embulk.spi.time.TimestampFormatter.Task.
         @Config("default_timezone")
         @ConfigDefault("\"UTC\"")
@@ -191,6 +245,20 @@ public class TdOutputPlugin
         @ConfigDefault("90000")
         int getRetryMaxIntervalMillis();
 
+        @Config("status_poll_initial_interval_millis")
+        @ConfigDefault("200")
+        @Min(1)
+        long getStatusPollInitialIntervalMillis();
+
+        @Config("status_poll_max_interval_millis")
+        @ConfigDefault("3000")
+        @Min(1)
+        long getStatusPollMaxIntervalMillis();
+
+        @Config("status_poll_timeout_millis")
+        @ConfigDefault("null") // no timeout by default
+        Optional<Long> getStatusPollTimeoutMillis();
+
         @Config("pool_name")
         @ConfigDefault("null")
         Optional<String> getPoolName();
@@ -204,6 +272,22 @@ public class TdOutputPlugin
         Optional<Integer> getPort();
         void setPort(Optional<Integer> port);
 
+        @Config("share_td_client")
+        @ConfigDefault("false")
+        boolean getShareTdClient();
+
+        @Config("streaming_upload")
+        @ConfigDefault("false")
+        boolean getStreamingUpload();
+
+        @Config("streaming_upload_max_idle_millis")
+        @ConfigDefault("30000")
+        long getStreamingUploadMaxIdleMillis();
+
+        @Config("metrics")
+        @ConfigDefault("null")
+        Optional<MetricsTask> getMetrics();
+
         @Config("default_boolean_type_convert_to")
         @ConfigDefault("\"long\"")
         ConvertBooleanType getConvertBooleanType();
@@ -239,6 +323,26 @@ public class TdOutputPlugin
         @Config("value_type")
         @ConfigDefault("null")
         Optional<String> getValueType();
+
+        // values of a json column written as top-level columns
+        @Config("flatten")
+        @ConfigDefault("[]")
+        List<FlattenOption> getFlatten();
+    }
+
+    public interface FlattenOption
+            extends Task
+    {
+        // keys separated by '.' and array indexes in brackets, e.g. user.id or items[0].name
+        @Config("path")
+        String getPath();
+
+        @Config("name")
+        String getName();
+
+        @Config("type")
+        @ConfigDefault("\"string\"")
+        FlattenType getType();
     }
 
     public enum Mode
@@ -298,6 +402,29 @@ public class TdOutputPlugin
         Optional<String> getPassword();
     }
 
+    public interface MetricsTask
+            extends Task
+    {
+        // built-in exporters are jmx and prometheus. Others are found by MetricsExporterFactory.
+        @Config("exporters")
+        @ConfigDefault("[]")
+        List<String> getExporters();
+
+        @Config("interval_millis")
+        @ConfigDefault("10000")
+        @Min(100)
+        long getIntervalMillis();
+
+        @Config("prometheus_file")
+        @ConfigDefault("null")
+        Optional<String> getPrometheusFile();
+
+        // passed to exporters created by MetricsExporterFactory
+        @Config("options")
+        @ConfigDefault("{}")
+        Map<String, String> getOptions();
+    }
+
     public static enum ConvertTimestampType
     {
         STRING(-1),
@@ -373,6 +500,72 @@ public class TdOutputPlugin
         }
     }
 
+    public static enum CompressionStrategy
+    {
+        DEFAULT(Deflater.DEFAULT_STRATEGY),
+        FILTERED(Deflater.FILTERED),
+        HUFFMAN_ONLY(Deflater.HUFFMAN_ONLY);
+
+        private final int strategy;
+
+        private CompressionStrategy(int strategy)
+        {
+            this.strategy = strategy;
+        }
+
+        public int getDeflaterStrategy()
+        {
+            return strategy;
+        }
+
+        @JsonCreator
+        public static CompressionStrategy of(String s)
+        {
+            switch (s) {
+            case "default": return DEFAULT;
+            case "filtered": return FILTERED;
+            case "huffman_only": return HUFFMAN_ONLY;
+            default:
+                throw new ConfigException(
+                        String.format("Unknown compression_strategy '%s'. Supported strategies are default, filtered and huffman_only", s));
+            }
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase();
+        }
+    }
+
+    public static enum FlattenType
+    {
+        LONG,
+        DOUBLE,
+        STRING;
+
+        @JsonCreator
+        public static FlattenType of(String s)
+        {
+            switch (s) {
+            case "long": return LONG;
+            case "double": return DOUBLE;
+            case "string": return STRING;
+            default:
+                throw new ConfigException(
+                        String.format("Unknown flatten type '%s'. Supported types are [long, double, string]", s));
+            }
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase();
+        }
+    }
+
     public static enum UnixTimestampUnit
     {
         SEC(1),
@@ -415,6 +608,23 @@ public class TdOutputPlugin
     }
 
     static final String TASK_REPORT_UPLOADED_PART_NUMBER = "uploaded_part_number";
+    static final String TASK_REPORT_UPLOAD_CONCURRENCY = "upload_concurrency";
+    static final String TASK_REPORT_UPLOAD_CONCURRENCY_TIMELINE = "upload_concurrency_timeline";
+    static final String TASK_REPORT_PARALLEL_GZIP_BLOCKS = "parallel_gzip_blocks";
+    static final String TASK_REPORT_PARALLEL_GZIP_UNCOMPRESSED_BYTES = "parallel_gzip_uncompressed_bytes";
+    static final String TASK_REPORT_PARALLEL_GZIP_COMPRESSED_BYTES = "parallel_gzip_compressed_bytes";
+    static final String TASK_REPORT_PARALLEL_GZIP_COMPRESS_MILLIS = "parallel_gzip_compress_millis";
+    static final String TASK_REPORT_PARALLEL_GZIP_ELAPSED_MILLIS = "parallel_gzip_elapsed_millis";
+    static final String TASK_REPORT_PARALLEL_GZIP_BYTES_PER_SEC = "parallel_gzip_bytes_per_sec";
+    static final String TASK_REPORT_ROWS = "rows";
+    static final String TASK_REPORT_UNCOMPRESSED_BYTES = "uncompressed_bytes";
+    static final String TASK_REPORT_COMPRESSED_BYTES = "compressed_bytes";
+    static final String TASK_REPORT_ENCODE_MILLIS = "encode_millis";
+    static final String TASK_REPORT_COMPRESS_MILLIS = "compress_millis";
+    static final String TASK_REPORT_UPLOAD_WAIT_MILLIS = "upload_wait_millis";
+    static final String TASK_REPORT_UPLOAD_RETRIES = "upload_retries";
+    static final String TASK_REPORT_UPLOAD_LATENCY_MILLIS = "upload_latency_millis";
+    static final String TASK_REPORT_UPLOAD_LATENCY_HISTOGRAM = "upload_latency_histogram";
 
     private static final Logger log = LoggerFactory.getLogger(TdOutputPlugin.class);
 
@@ -426,6 +636,10 @@ public class TdOutputPlugin
         // check column_options is valid or not
         checkColumnOptions(schema, task.getColumnOptions());
 
+        if (task.getMetrics().isPresent()) {
+            SessionMetrics.validate(task.getMetrics().get());
+        }
+
         // generate session name
         task.setSessionName(buildBulkImportSessionName(task));
 
@@ -433,7 +647,8 @@ public class TdOutputPlugin
             task.setTempDir(Optional.of(getEnvironmentTempDirectory()));
         }
 
-        try (TDClient client = newTDClient(task)) {
+        try (TDClientCache.Lease lease = acquireTDClient(task)) {
+            TDClient client = lease.getClient();
             String databaseName = task.getDatabase();
             String tableName = task.getTable();
 
@@ -470,8 +685,8 @@ public class TdOutputPlugin
             OutputPlugin.Control control)
     {
         final PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
-        try (TDClient client = newTDClient(task)) {
-            return doRun(client, schema, task, control);
+        try (TDClientCache.Lease lease = acquireTDClient(task)) {
+            return doRun(lease.getClient(), schema, task, control);
         }
     }
 
@@ -481,6 +696,8 @@ public class TdOutputPlugin
         boolean doUpload = startBulkImportSession(client, task.getSessionName(), task.getDatabase(), task.getLoadTargetTableName());
         task.setDoUpload(doUpload);
         final List<TaskReport> taskReports = control.run(task.toTaskSource());
+        final Map<String, Object> metrics = TaskMetrics.summarize(taskReports);
+        printMetrics(task.getSessionName(), metrics);
         if (!isNoUploadedParts(taskReports)) {
             completeBulkImportSession(client, schema, task, 0);  // TODO perform job priority
         }
@@ -507,6 +724,14 @@ public class TdOutputPlugin
         return configDiff;
     }
 
+    private void printMetrics(String sessionName, Map<String, Object> metrics)
+    {
+        log.info("Uploaded bulk import session '{}' (times are the sums of tasks)", sessionName);
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            log.info("    {}: {}", metric.getKey(), metric.getValue());
+        }
+    }
+
     public void cleanup(TaskSource taskSource,
             Schema schema, int processorCount,
             List<TaskReport> successTaskReports)
@@ -532,8 +757,46 @@ public class TdOutputPlugin
         }
     }
 
+    // the transaction holds a lease while tasks run, so that tasks in this JVM share its client and connections
+    @VisibleForTesting
+    TDClientCache.Lease acquireTDClient(final PluginTask task)
+    {
+        return acquireTDClient(task, task.getRetryLimit());
+    }
+
+    // the client that uploads parts of a task. With adaptive_upload_concurrency, the client doesn't retry requests
+    // because RecordWriter retries uploads by itself to see throttled attempts.
+    @VisibleForTesting
+    TDClientCache.Lease acquireUploadTDClient(final PluginTask task)
+    {
+        return acquireTDClient(task, task.getAdaptiveUploadConcurrency() ? 0 : task.getRetryLimit());
+    }
+
+    private TDClientCache.Lease acquireTDClient(final PluginTask task, final int retryLimit)
+    {
+        if (!task.getShareTdClient()) {
+            return TDClientCache.unshared(newTDClient(task, retryLimit));
+        }
+        return TDClientCache.acquire(newTDClientKey(task, retryLimit), () -> newTDClient(task, retryLimit));
+    }
+
+    // everything that newTDClient configures the client with
+    private List<Object> newTDClientKey(final PluginTask task, final int retryLimit)
+    {
+        final Optional<List<Object>> proxy = newProxyConfig(task.getHttpProxy()).map(proxyConfig -> Arrays.<Object>asList(
+                proxyConfig.getHost(), proxyConfig.getPort(), proxyConfig.useSSL(), proxyConfig.getUser(), proxyConfig.getPassword()));
+        return Arrays.<Object>asList(task.getApiKey(), task.getEndpoint(), task.getUseSsl(), task.getPort(),
+                task.getAdditionalHttpHeaders(), retryLimit, task.getRetryInitialIntervalMillis(),
+                task.getRetryMaxIntervalMillis(), proxy);
+    }
+
     @VisibleForTesting
     public TDClient newTDClient(final PluginTask task)
+    {
+        return newTDClient(task, task.getRetryLimit());
+    }
+
+    private TDClient newTDClient(final PluginTask task, final int retryLimit)
     {
         TDClientBuilder builder = TDClient.newBuilder();
         builder.setApiKey(task.getApiKey());
@@ -541,7 +804,7 @@ public class TdOutputPlugin
         builder.setUseSSL(task.getUseSsl());
         builder.setConnectTimeoutMillis(60000); // default 15000
         builder.setReadTimeoutMillis(60000); // default 60000
-        builder.setRetryLimit(task.getRetryLimit());
+        builder.setRetryLimit(retryLimit);
         builder.setRetryInitialIntervalMillis(task.getRetryInitialIntervalMillis());
         builder.setRetryMaxIntervalMillis(task.getRetryMaxIntervalMillis());
 
@@ -561,6 +824,15 @@ public class TdOutputPlugin
         return builder.build();
     }
 
+    // sends the upload_part requests with the same endpoint, headers and proxy as newTDClient
+    @VisibleForTesting
+    StreamingPartUploader newStreamingPartUploader(final PluginTask task)
+    {
+        return new StreamingPartUploader(task.getEndpoint(), task.getUseSsl(), task.getPort(), task.getApiKey(),
+                task.getAdditionalHttpHeaders().orElse(Collections.emptyMap()), newProxyConfig(task.getHttpProxy()),
+                task.getStreamingUploadMaxIdleMillis());
+    }
+
     private Multimap<String, String> buildMultiMapHeaders(Map<String, String> headers)
     {
         Multimap<String, String> multimap = ArrayListMultimap.create();
@@ -739,7 +1011,7 @@ public class TdOutputPlugin
             log.info("Performing bulk import session '{}'", sessionName);
             session = waitForStatusChange(client, sessionName,
                     ImportStatus.PERFORMING, ImportStatus.READY,
-                    "perform");
+                    "perform", StatusPolling.of(task));
             log.info("    job id: {}", session.getJobId());
 
             // pass
@@ -770,7 +1042,7 @@ public class TdOutputPlugin
         case COMMITTING:
             session = waitForStatusChange(client, sessionName,
                     ImportStatus.COMMITTING, ImportStatus.COMMITTED,
-                    "commit");
+                    "commit", StatusPolling.of(task));
 
             // pass
         case COMMITTED:
@@ -816,6 +1088,12 @@ public class TdOutputPlugin
             public void jsonColumn(Column column)
             {
                 guessedSchema.put(column.getName(), TDColumnType.STRING);
+                ColumnOption columnOption = task.getColumnOptions().get(column.getName());
+                if (columnOption != null) {
+                    for (FlattenOption flatten : columnOption.getFlatten()) {
+                        guessedSchema.put(flatten.getName(), getFlattenedColumnType(flatten));
+                    }
+                }
             }
         });
 
@@ -860,6 +1138,18 @@ public class TdOutputPlugin
         return appliedColumnOptionSchema;
     }
 
+    private static TDColumnType getFlattenedColumnType(FlattenOption flatten)
+    {
+        switch (flatten.getType()) {
+        case LONG:
+            return TDColumnType.LONG;
+        case DOUBLE:
+            return TDColumnType.DOUBLE;
+        default:
+            return TDColumnType.STRING;
+        }
+    }
+
     void printNewAddedColumns(Map<String, TDColumnType> newColumns)
     {
         if (!newColumns.isEmpty()) {
@@ -939,10 +1229,11 @@ public class TdOutputPlugin
 
     @VisibleForTesting
     TDBulkImportSession waitForStatusChange(TDClient client, String sessionName,
-            ImportStatus current, ImportStatus expecting, String operation)
+            ImportStatus current, ImportStatus expecting, String operation, StatusPolling polling)
     {
+        final long startNanos = System.nanoTime();
         TDBulkImportSession importSession;
-        while (true) {
+        for (int attempt = 0; ; attempt++) {
             importSession = client.getBulkImportSession(sessionName);
 
             if (importSession.getStatus() == expecting) {
@@ -958,10 +1249,23 @@ public class TdOutputPlugin
                             operation, sessionName));
             }
 
+            long intervalMillis = polling.getIntervalMillis(attempt);
+            if (polling.getTimeoutMillis().isPresent()) {
+                long remainingMillis = polling.getTimeoutMillis().get() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                if (remainingMillis <= 0) {
+                    throw new RuntimeException(String.format("Timed out to %s bulk import session '%s' after %d milliseconds",
+                                operation, sessionName, polling.getTimeoutMillis().get()));
+                }
+                intervalMillis = Math.min(intervalMillis, remainingMillis);
+            }
+
             try {
-                Thread.sleep(3000);
+                Thread.sleep(intervalMillis);
             }
             catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(String.format("Interrupted while waiting to %s bulk import session '%s'",
+                            operation, sessionName), e);
             }
         }
     }
@@ -993,7 +1297,17 @@ public class TdOutputPlugin
         RecordWriter closeLater = null;
         try {
             final FieldWriterSet fieldWriters = createFieldWriterSet(task, schema);
-            closeLater = new RecordWriter(task, taskIndex, newTDClient(task), fieldWriters);
+            final TDClientCache.Lease lease = acquireUploadTDClient(task);
+            try {
+                final Optional<StreamingPartUploader> streamingUploader = task.getStreamingUpload()
+                        ? Optional.of(newStreamingPartUploader(task)) : Optional.empty();
+                closeLater = new RecordWriter(task, taskIndex, lease.getClient(), lease, streamingUploader, fieldWriters);
+            }
+            finally {
+                if (closeLater == null) {
+                    lease.close();
+                }
+            }
             RecordWriter recordWriter = closeLater;
             recordWriter.open(schema);
             closeLater = null;
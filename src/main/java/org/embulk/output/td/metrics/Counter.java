@@ -0,0 +1,36 @@
+package org.embulk.output.td.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A value that only increases. Updated by many threads without contention.
+public class Counter
+        extends Metric
+{
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String help)
+    {
+        super(name, help);
+    }
+
+    public void add(long n)
+    {
+        value.add(n);
+    }
+
+    public void increment()
+    {
+        value.increment();
+    }
+
+    public long get()
+    {
+        return value.sum();
+    }
+
+    @Override
+    public Type getType()
+    {
+        return Type.COUNTER;
+    }
+}
@@ -0,0 +1,32 @@
+package org.embulk.output.td.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A value that goes up and down, e.g. the number of running uploads. Tasks sharing a registry add their
+// own changes, so the value is the total of the tasks.
+public class Gauge
+        extends Metric
+{
+    private final LongAdder value = new LongAdder();
+
+    Gauge(String name, String help)
+    {
+        super(name, help);
+    }
+
+    public void add(long delta)
+    {
+        value.add(delta);
+    }
+
+    public long get()
+    {
+        return value.sum();
+    }
+
+    @Override
+    public Type getType()
+    {
+        return Type.GAUGE;
+    }
+}
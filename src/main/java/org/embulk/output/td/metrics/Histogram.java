@@ -0,0 +1,53 @@
+package org.embulk.output.td.metrics;
+
+import org.embulk.output.td.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Distribution of values, e.g. upload latency. Meant for events per part, not per record, because
+// recording takes a lock.
+public class Histogram
+        extends Metric
+{
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LongAdder sum = new LongAdder();
+
+    Histogram(String name, String help)
+    {
+        super(name, help);
+    }
+
+    public void record(long value)
+    {
+        histogram.record(value);
+        sum.add(Math.max(0L, value));
+    }
+
+    public long getCount()
+    {
+        return histogram.getCount();
+    }
+
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    public long getPercentile(double percentile)
+    {
+        return histogram.getPercentile(percentile);
+    }
+
+    // {count, p50, p90, p99, max}
+    public Map<String, Long> getSummary()
+    {
+        return histogram.getSummary();
+    }
+
+    @Override
+    public Type getType()
+    {
+        return Type.HISTOGRAM;
+    }
+}
@@ -0,0 +1,189 @@
+package org.embulk.output.td.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Registers an MBean "org.embulk.output.td:type=Metrics,session=<session name>" to the platform MBean server.
+// Counters and gauges are attributes with their names. Counters also have "<name>_per_second", the rate
+// between the last two exports. Histograms have "<name>_count", "<name>_p50", "<name>_p90", "<name>_p99" and
+// "<name>_max". Attributes other than rates are read when they are requested. The MBean is registered by the first
+// export, so that JMX clients never see it without attributes. SessionMetrics exports once when a session starts.
+public class JmxMetricsExporter
+        implements MetricsExporter
+{
+    private final ObjectName objectName;
+    private final MetricsMBean mbean;
+
+    private volatile MetricRegistry registry;
+    private final Map<String, Double> rates = new LinkedHashMap<>();
+    private final Map<String, Long> lastCounts = new LinkedHashMap<>();
+    private long lastExportNanos;
+
+    public JmxMetricsExporter(String sessionName)
+            throws IOException
+    {
+        try {
+            this.objectName = new ObjectName("org.embulk.output.td", makeKeyProperties(sessionName));
+        }
+        catch (JMException e) {
+            throw new IOException(e);
+        }
+        this.mbean = new MetricsMBean();
+    }
+
+    private static Hashtable<String, String> makeKeyProperties(String sessionName)
+    {
+        Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", "Metrics");
+        properties.put("session", ObjectName.quote(sessionName));
+        return properties;
+    }
+
+    public ObjectName getObjectName()
+    {
+        return objectName;
+    }
+
+    @Override
+    public synchronized void export(MetricRegistry registry)
+            throws IOException
+    {
+        boolean registered = this.registry != null;
+        this.registry = registry;  // read by getMBeanInfo while the MBean is registered
+        if (!registered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            }
+            catch (JMException e) {
+                this.registry = null;  // registered again by the next export
+                throw new IOException(e);
+            }
+        }
+        long now = System.nanoTime();
+        for (Metric metric : registry.getMetrics()) {
+            if (metric.getType() != Metric.Type.COUNTER) {
+                continue;
+            }
+            long count = ((Counter) metric).get();
+            Long lastCount = lastCounts.put(metric.getName(), count);
+            if (lastCount != null && now > lastExportNanos) {
+                rates.put(metric.getName(), (count - lastCount) * 1e9 / (now - lastExportNanos));
+            }
+        }
+        lastExportNanos = now;
+    }
+
+    synchronized Map<String, Object> snapshotAttributes()
+    {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        if (registry == null) {
+            return attributes;
+        }
+        for (Metric metric : registry.getMetrics()) {
+            switch (metric.getType()) {
+            case COUNTER:
+                attributes.put(metric.getName(), ((Counter) metric).get());
+                attributes.put(metric.getName() + "_per_second", rates.getOrDefault(metric.getName(), 0.0));
+                break;
+            case GAUGE:
+                attributes.put(metric.getName(), ((Gauge) metric).get());
+                break;
+            case HISTOGRAM:
+                for (Map.Entry<String, Long> entry : ((Histogram) metric).getSummary().entrySet()) {
+                    attributes.put(metric.getName() + "_" + entry.getKey(), entry.getValue());
+                }
+                break;
+            default:
+                throw new IllegalStateException();
+            }
+        }
+        return attributes;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        }
+        catch (JMException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private class MetricsMBean
+            implements DynamicMBean
+    {
+        @Override
+        public Object getAttribute(String name)
+                throws AttributeNotFoundException
+        {
+            Object value = snapshotAttributes().get(name);
+            if (value == null) {
+                throw new AttributeNotFoundException(name);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names)
+        {
+            Map<String, Object> attributes = snapshotAttributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) {
+                    list.add(new Attribute(name, attributes.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute)
+        {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature)
+        {
+            throw new UnsupportedOperationException("Metrics have no operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo()
+        {
+            Map<String, Object> attributes = snapshotAttributes();
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                infos[i++] = new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(),
+                        attribute.getKey(), true, false, false);
+            }
+            return new MBeanInfo(JmxMetricsExporter.class.getName(), "Metrics of embulk-output-td", infos, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.embulk.output.td.metrics;
+
+// A metric registered in MetricRegistry. Names follow the Prometheus conventions, e.g. "rows_total".
+public abstract class Metric
+{
+    public enum Type
+    {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    private final String name;
+    private final String help;
+
+    protected Metric(String name, String help)
+    {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getHelp()
+    {
+        return help;
+    }
+
+    public abstract Type getType();
+}
@@ -0,0 +1,49 @@
+package org.embulk.output.td.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Metrics of a bulk import session. Registering a metric with the same name again returns the registered one.
+public class MetricRegistry
+{
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help)
+    {
+        return register(name, help, Counter.class, Counter::new);
+    }
+
+    public Gauge gauge(String name, String help)
+    {
+        return register(name, help, Gauge.class, Gauge::new);
+    }
+
+    public Histogram histogram(String name, String help)
+    {
+        return register(name, help, Histogram.class, Histogram::new);
+    }
+
+    private synchronized <M extends Metric> M register(String name, String help, Class<M> type,
+            BiFunction<String, String, M> constructor)
+    {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            M created = constructor.apply(name, help);
+            metrics.put(name, created);
+            return created;
+        }
+        checkArgument(type.isInstance(metric), "Metric %s is already registered as %s", name, metric.getType());
+        return type.cast(metric);
+    }
+
+    // in the order of registration
+    public synchronized List<Metric> getMetrics()
+    {
+        return new ArrayList<>(metrics.values());
+    }
+}
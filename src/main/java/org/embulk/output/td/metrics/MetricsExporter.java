@@ -0,0 +1,15 @@
+package org.embulk.output.td.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Publishes metrics of a session. export is called when the session starts in this JVM, with all metrics of
+// SessionMetrics registered, then periodically on a single reporting thread, and once more before close when the
+// last task of the session in this JVM finishes. Calls never overlap. Implementations other than the built-in
+// ones are created by a MetricsExporterFactory.
+public interface MetricsExporter
+        extends Closeable
+{
+    void export(MetricRegistry registry)
+            throws IOException;
+}
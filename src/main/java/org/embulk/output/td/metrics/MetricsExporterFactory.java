@@ -0,0 +1,14 @@
+package org.embulk.output.td.metrics;
+
+import java.util.Map;
+
+// Service provider of a MetricsExporter. Factories are found by java.util.ServiceLoader through
+// META-INF/services/org.embulk.output.td.metrics.MetricsExporterFactory, and selected by their type
+// in the exporters option of metrics.
+public interface MetricsExporterFactory
+{
+    String getType();
+
+    // options are the options of metrics in the config
+    MetricsExporter create(String sessionName, Map<String, String> options);
+}
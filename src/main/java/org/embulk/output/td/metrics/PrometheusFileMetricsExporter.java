@@ -0,0 +1,92 @@
+package org.embulk.output.td.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+// Writes metrics to a file in the Prometheus text format, e.g. for the textfile collector of node_exporter.
+// The file is replaced atomically so that a collector never reads a partially written file. Metric names are
+// prefixed with "embulk_output_td_" and labeled with the session name. Histograms are written as summaries.
+public class PrometheusFileMetricsExporter
+        implements MetricsExporter
+{
+    static final String PREFIX = "embulk_output_td_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final Path file;
+    private final String labels;
+
+    public PrometheusFileMetricsExporter(Path file, String sessionName)
+    {
+        this.file = file.toAbsolutePath();
+        this.labels = "session=\"" + escapeLabelValue(sessionName) + "\"";
+    }
+
+    @Override
+    public void export(MetricRegistry registry)
+            throws IOException
+    {
+        Path tempFile = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                format(registry, writer);
+            }
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    void format(MetricRegistry registry, Writer writer)
+            throws IOException
+    {
+        for (Metric metric : registry.getMetrics()) {
+            String name = PREFIX + metric.getName();
+            writer.write("# HELP " + name + " " + metric.getHelp() + "\n");
+            switch (metric.getType()) {
+            case COUNTER:
+                writer.write("# TYPE " + name + " counter\n");
+                writer.write(name + "{" + labels + "} " + ((Counter) metric).get() + "\n");
+                break;
+            case GAUGE:
+                writer.write("# TYPE " + name + " gauge\n");
+                writer.write(name + "{" + labels + "} " + ((Gauge) metric).get() + "\n");
+                break;
+            case HISTOGRAM:
+                Histogram histogram = (Histogram) metric;
+                writer.write("# TYPE " + name + " summary\n");
+                for (double quantile : QUANTILES) {
+                    writer.write(String.format(Locale.ENGLISH, "%s{%s,quantile=\"%s\"} %d\n",
+                            name, labels, quantile, histogram.getPercentile(quantile * 100)));
+                }
+                writer.write(name + "_sum{" + labels + "} " + histogram.getSum() + "\n");
+                writer.write(name + "_count{" + labels + "} " + histogram.getCount() + "\n");
+                break;
+            default:
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    private static String escapeLabelValue(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public void close()
+    {
+        // the last metrics are left in the file
+    }
+}
@@ -0,0 +1,14 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.embulk.spi.PageReader;
+
+import java.io.IOException;
+
+// An IFieldWriter bound to a column of a specific schema. FieldWriterSet compiles one encoder per column
+// so that the per-record path doesn't need to dispatch on column types.
+public interface ColumnEncoder
+{
+    void encode(MsgpackGZFileBuilder builder, PageReader reader)
+            throws IOException;
+}
@@ -16,19 +16,17 @@ import java.time.Instant;
 public abstract class FieldWriter
         implements IFieldWriter
 {
-    private final String keyName;
+    private final byte[] encodedKeyName;
 
     protected FieldWriter(String keyName)
     {
-        this.keyName = keyName;
+        this.encodedKeyName = MsgpackGZFileBuilder.encodeString(keyName);
     }
 
     public void writeKeyValue(MsgpackGZFileBuilder builder, PageReader reader, Column column)
             throws IOException
     {
-        writeKey(builder);
-        if (reader.isNull(column)) {
-            builder.writeNil();
+        if (!writeKeyAndCheckNull(builder, reader, column)) {
             return;
         }
 
@@ -47,20 +45,64 @@ public abstract class FieldWriter
         else if (column.getType() instanceof TimestampType) {
             writeTimestampValue(builder, reader, column);
         }
-        else if (column.getType() instanceof JsonType){
+        else if (column.getType() instanceof JsonType) {
             writeJsonValue(builder, reader, column);
         }
         else {
-            // this state should not be reached because all supported types have been handled above.
-            throw new IllegalArgumentException(String.format("Column: %s contains unsupported type: %s",
-                    column.getName(), column.getType().getName()));
+            throw unsupportedType(column);
+        }
+    }
+
+    // the type of the column is resolved once, and each encoder class calls a single write*Value method
+    @Override
+    public ColumnEncoder newColumnEncoder(final Column column)
+    {
+        if (column.getType() instanceof BooleanType) {
+            return new BooleanValueEncoder(this, column);
+        }
+        else if (column.getType() instanceof LongType) {
+            return new LongValueEncoder(this, column);
+        }
+        else if (column.getType() instanceof DoubleType) {
+            return new DoubleValueEncoder(this, column);
+        }
+        else if (column.getType() instanceof StringType) {
+            return new StringValueEncoder(this, column);
+        }
+        else if (column.getType() instanceof TimestampType) {
+            return new TimestampValueEncoder(this, column);
+        }
+        else if (column.getType() instanceof JsonType) {
+            return new JsonValueEncoder(this, column);
+        }
+        else {
+            throw unsupportedType(column);
         }
     }
 
+    // this state should not be reached because all supported types have been handled in FieldWriterSet
+    private static IllegalArgumentException unsupportedType(Column column)
+    {
+        return new IllegalArgumentException(String.format("Column: %s contains unsupported type: %s",
+                column.getName(), column.getType().getName()));
+    }
+
     private void writeKey(MsgpackGZFileBuilder builder)
             throws IOException
     {
-        builder.writeString(keyName);
+        builder.writeEncoded(encodedKeyName);
+    }
+
+    // writes the key, and nil instead of the value if it's null. returns true if the value still needs to be written.
+    private boolean writeKeyAndCheckNull(MsgpackGZFileBuilder builder, PageReader reader, Column column)
+            throws IOException
+    {
+        writeKey(builder);
+        if (reader.isNull(column)) {
+            builder.writeNil();
+            return false;
+        }
+        return true;
     }
 
     protected abstract void writeBooleanValue(MsgpackGZFileBuilder builder, PageReader reader, Column column)
@@ -90,6 +132,138 @@ public abstract class FieldWriter
         return reader.getTimestamp(column).getInstant();
     }
 
+    private static final class BooleanValueEncoder
+            implements ColumnEncoder
+    {
+        private final FieldWriter writer;
+        private final Column column;
+
+        BooleanValueEncoder(FieldWriter writer, Column column)
+        {
+            this.writer = writer;
+            this.column = column;
+        }
+
+        @Override
+        public void encode(MsgpackGZFileBuilder builder, PageReader reader)
+                throws IOException
+        {
+            if (writer.writeKeyAndCheckNull(builder, reader, column)) {
+                writer.writeBooleanValue(builder, reader, column);
+            }
+        }
+    }
+
+    private static final class LongValueEncoder
+            implements ColumnEncoder
+    {
+        private final FieldWriter writer;
+        private final Column column;
+
+        LongValueEncoder(FieldWriter writer, Column column)
+        {
+            this.writer = writer;
+            this.column = column;
+        }
+
+        @Override
+        public void encode(MsgpackGZFileBuilder builder, PageReader reader)
+                throws IOException
+        {
+            if (writer.writeKeyAndCheckNull(builder, reader, column)) {
+                writer.writeLongValue(builder, reader, column);
+            }
+        }
+    }
+
+    private static final class DoubleValueEncoder
+            implements ColumnEncoder
+    {
+        private final FieldWriter writer;
+        private final Column column;
+
+        DoubleValueEncoder(FieldWriter writer, Column column)
+        {
+            this.writer = writer;
+            this.column = column;
+        }
+
+        @Override
+        public void encode(MsgpackGZFileBuilder builder, PageReader reader)
+                throws IOException
+        {
+            if (writer.writeKeyAndCheckNull(builder, reader, column)) {
+                writer.writeDoubleValue(builder, reader, column);
+            }
+        }
+    }
+
+    private static final class StringValueEncoder
+            implements ColumnEncoder
+    {
+        private final FieldWriter writer;
+        private final Column column;
+
+        StringValueEncoder(FieldWriter writer, Column column)
+        {
+            this.writer = writer;
+            this.column = column;
+        }
+
+        @Override
+        public void encode(MsgpackGZFileBuilder builder, PageReader reader)
+                throws IOException
+        {
+            if (writer.writeKeyAndCheckNull(builder, reader, column)) {
+                writer.writeStringValue(builder, reader, column);
+            }
+        }
+    }
+
+    private static final class TimestampValueEncoder
+            implements ColumnEncoder
+    {
+        private final FieldWriter writer;
+        private final Column column;
+
+        TimestampValueEncoder(FieldWriter writer, Column column)
+        {
+            this.writer = writer;
+            this.column = column;
+        }
+
+        @Override
+        public void encode(MsgpackGZFileBuilder builder, PageReader reader)
+                throws IOException
+        {
+            if (writer.writeKeyAndCheckNull(builder, reader, column)) {
+                writer.writeTimestampValue(builder, reader, column);
+            }
+        }
+    }
+
+    private static final class JsonValueEncoder
+            implements ColumnEncoder
+    {
+        private final FieldWriter writer;
+        private final Column column;
+
+        JsonValueEncoder(FieldWriter writer, Column column)
+        {
+            this.writer = writer;
+            this.column = column;
+        }
+
+        @Override
+        public void encode(MsgpackGZFileBuilder builder, PageReader reader)
+                throws IOException
+        {
+            if (writer.writeKeyAndCheckNull(builder, reader, column)) {
+                writer.writeJsonValue(builder, reader, column);
+            }
+        }
+    }
+
     private static boolean hasGetTimestampInstant()
     {
         try {
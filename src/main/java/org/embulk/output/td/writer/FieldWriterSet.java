@@ -1,8 +1,12 @@
 package org.embulk.output.td.writer;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Map;
+import java.util.Set;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.output.td.TdOutputPlugin;
@@ -10,7 +14,6 @@ import org.embulk.output.td.TdOutputPlugin.ConvertTimestampType;
 import org.embulk.output.td.TimeValueConfig;
 import org.embulk.output.td.TimeValueGenerator;
 import org.embulk.spi.Column;
-import org.embulk.spi.ColumnVisitor;
 import org.embulk.spi.DataException;
 import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
@@ -23,7 +26,6 @@ import org.embulk.spi.type.TimestampType;
 import org.embulk.spi.type.Type;
 import org.embulk.spi.type.Types;
 import org.embulk.output.td.MsgpackGZFileBuilder;
-import org.embulk.util.timestamp.TimestampFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,14 +41,18 @@ public class FieldWriterSet
 
     private static final Logger log = LoggerFactory.getLogger(FieldWriterSet.class);
 
+    private static final byte[] ENCODED_TIME_KEY = MsgpackGZFileBuilder.encodeString("time");
+
     private final int fieldCount;
     private final IFieldWriter[] fieldWriters;
+    private final ColumnEncoder[] columnEncoders;
     private final Optional<TimeValueGenerator> staticTimeValue;
 
-    protected FieldWriterSet(int fieldCount, IFieldWriter[] fieldWriters, Optional<TimeValueGenerator> staticTimeValue)
+    protected FieldWriterSet(Schema schema, int fieldCount, IFieldWriter[] fieldWriters, Optional<TimeValueGenerator> staticTimeValue)
     {
         this.fieldCount = fieldCount;
         this.fieldWriters = fieldWriters;
+        this.columnEncoders = newColumnEncoders(schema, fieldWriters);
         this.staticTimeValue = staticTimeValue;
     }
 
@@ -67,7 +73,9 @@ public class FieldWriterSet
 
         int fc = 0;
         IFieldWriter[] createdFieldWriters = new IFieldWriter[schema.size()];
-        final TimestampFormatter[] timestampFormatters = newTimestampColumnFormatters(task, schema, task.getColumnOptions());
+        final Set<String> keyNames = new HashSet<>();  // keys written by the columns. 'time' is written in any mode.
+        keyNames.add("time");
+        final TimestampEncoder[] timestampFormatters = newTimestampColumnFormatters(task, schema, task.getColumnOptions());
 
         for (int i = 0; i < schema.size(); i++) {
             String columnName = schema.getColumnName(i);
@@ -115,6 +123,8 @@ public class FieldWriterSet
                 mode = ColumnWriterMode.SIMPLE_VALUE;
             }
 
+            keyNames.add(columnName);
+
             // create the fieldWriters writer depending on the mode
             final FieldWriter writer;
 
@@ -161,16 +171,26 @@ public class FieldWriterSet
 
             createdFieldWriters[i] = writer;
             fc += 1;
+
+            final List<TdOutputPlugin.FlattenOption> flattenOptions = getFlattenOptions(task.getColumnOptions(), schema.getColumnName(i));
+            if (!flattenOptions.isEmpty()) {
+                // values of the json column are written as top-level keys after the column
+                JsonFlattenFieldWriter flattenWriter = new JsonFlattenFieldWriter(writer, flattenOptions);
+                createdFieldWriters[i] = flattenWriter;
+                fc += flattenWriter.getFlattenedCount();
+            }
         }
 
+        validateFlattenOptions(schema, task.getColumnOptions(), keyNames);
+
         if (foundPrimaryKey) {
             // appropriate 'time' column is found
-            return new FieldWriterSet(fc, createdFieldWriters, Optional.<TimeValueGenerator>empty());
+            return new FieldWriterSet(schema, fc, createdFieldWriters, Optional.<TimeValueGenerator>empty());
         }
 
         if (timeValueConfig.isPresent()) {
             // 'time_value' option is specified
-            return new FieldWriterSet(fc + 1, createdFieldWriters, Optional.of(TimeValueGenerator.newGenerator(timeValueConfig.get())));
+            return new FieldWriterSet(schema, fc + 1, createdFieldWriters, Optional.of(TimeValueGenerator.newGenerator(timeValueConfig.get())));
         }
 
         if (!foundPrimaryKey && duplicatePrimaryKeySourceIndex >= 0) {
@@ -203,7 +223,7 @@ public class FieldWriterSet
 
             // replace existint writer
             createdFieldWriters[duplicatePrimaryKeySourceIndex] = writer;
-            return new FieldWriterSet(fc + 1, createdFieldWriters, Optional.<TimeValueGenerator>empty());
+            return new FieldWriterSet(schema, fc + 1, createdFieldWriters, Optional.<TimeValueGenerator>empty());
         }
 
         if (!foundPrimaryKey) {
@@ -222,7 +242,7 @@ public class FieldWriterSet
             final TimeValueConfig newConfig =
                     TdOutputPlugin.CONFIG_MAPPER.map(newConfigSource, TimeValueConfig.class);
             task.setTimeValue(Optional.of(newConfig));
-            return new FieldWriterSet(fc + 1, createdFieldWriters, Optional.of(TimeValueGenerator.newGenerator(newConfig)));
+            return new FieldWriterSet(schema, fc + 1, createdFieldWriters, Optional.of(TimeValueGenerator.newGenerator(newConfig)));
         }
 
         throw new AssertionError("Cannot select primary key");
@@ -248,7 +268,35 @@ public class FieldWriterSet
         return false;
     }
 
-    protected static FieldWriter newSimpleFieldWriter(String columnName, Type columnType, ConvertTimestampType convertTimestampType, TimestampFormatter timestampFormatter)
+    private static List<TdOutputPlugin.FlattenOption> getFlattenOptions(Map<String, TdOutputPlugin.ColumnOption> columnOptions, String columnName)
+    {
+        TdOutputPlugin.ColumnOption columnOption = columnOptions.get(columnName);
+        return columnOption == null ? Collections.<TdOutputPlugin.FlattenOption>emptyList() : columnOption.getFlatten();
+    }
+
+    // flattened keys must not conflict with keyNames written by the columns (including renamed ones and 'time') nor each other
+    private static void validateFlattenOptions(Schema schema, Map<String, TdOutputPlugin.ColumnOption> columnOptions, Set<String> keyNames)
+    {
+        Set<String> names = new HashSet<>();
+        for (Column column : schema.getColumns()) {
+            List<TdOutputPlugin.FlattenOption> flattenOptions = getFlattenOptions(columnOptions, column.getName());
+            if (flattenOptions.isEmpty()) {
+                continue;
+            }
+            if (!(column.getType() instanceof JsonType)) {
+                throw new ConfigException(String.format("flatten of column_options is available only for json columns but '%s' is %s",
+                        column.getName(), column.getType()));
+            }
+            for (TdOutputPlugin.FlattenOption option : flattenOptions) {
+                String name = option.getName();
+                if (keyNames.contains(name) || !names.add(name)) {
+                    throw new ConfigException(String.format("Flattened column name '%s' of column '%s' is duplicated", name, column.getName()));
+                }
+            }
+        }
+    }
+
+    protected static FieldWriter newSimpleFieldWriter(String columnName, Type columnType, ConvertTimestampType convertTimestampType, TimestampEncoder timestampFormatter)
     {
         if (columnType instanceof BooleanType) {
             return new BooleanFieldWriter(columnName);
@@ -273,7 +321,7 @@ public class FieldWriterSet
         }
     }
 
-    protected static FieldWriter newAdvancedFieldWriter(String columnName, String valueType, ConvertTimestampType convertTimestampType, TimestampFormatter timestampFormatter)
+    protected static FieldWriter newAdvancedFieldWriter(String columnName, String valueType, ConvertTimestampType convertTimestampType, TimestampEncoder timestampFormatter)
     {
         switch (valueType) {
             case "string":
@@ -296,7 +344,7 @@ public class FieldWriterSet
         }
     }
 
-    protected static FieldWriter newSimpleTimestampFieldWriter(String columnName, Type columnType, ConvertTimestampType convertTimestampType, TimestampFormatter timestampFormatter)
+    protected static FieldWriter newSimpleTimestampFieldWriter(String columnName, Type columnType, ConvertTimestampType convertTimestampType, TimestampEncoder timestampFormatter)
     {
         switch (convertTimestampType) {
         case STRING:
@@ -320,45 +368,9 @@ public class FieldWriterSet
             throws IOException
     {
         beginRecord(builder);
-
-        reader.getSchema().visitColumns(new ColumnVisitor() {
-            @Override
-            public void booleanColumn(Column column)
-            {
-                addColumn(builder, reader, column);
-            }
-
-            @Override
-            public void longColumn(Column column)
-            {
-                addColumn(builder, reader, column);
-            }
-
-            @Override
-            public void doubleColumn(Column column)
-            {
-                addColumn(builder, reader, column);
-            }
-
-            @Override
-            public void stringColumn(Column column)
-            {
-                addColumn(builder, reader, column);
-            }
-
-            @Override
-            public void timestampColumn(Column column)
-            {
-                addColumn(builder, reader, column);
-            }
-
-            @Override
-            public void jsonColumn(Column column)
-            {
-                addColumn(builder, reader, column);
-            }
-        });
-
+        for (ColumnEncoder encoder : columnEncoders) {
+            encoder.encode(builder, reader);
+        }
         endRecord(builder);
     }
 
@@ -367,7 +379,7 @@ public class FieldWriterSet
     {
         builder.writeMapBegin(fieldCount);
         if (staticTimeValue.isPresent()) {
-            builder.writeString("time");
+            builder.writeEncoded(ENCODED_TIME_KEY);
             builder.writeLong(staticTimeValue.get().next());
         }
     }
@@ -378,20 +390,21 @@ public class FieldWriterSet
         builder.writeMapEnd();
     }
 
-    private void addColumn(MsgpackGZFileBuilder builder, PageReader reader, Column column)
+    // column types are resolved here once per schema instead of being checked for every value
+    private static ColumnEncoder[] newColumnEncoders(final Schema schema, final IFieldWriter[] fieldWriters)
     {
-        try {
-            fieldWriters[column.getIndex()].writeKeyValue(builder, reader, column);
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
+        final ColumnEncoder[] encoders = new ColumnEncoder[schema.getColumnCount()];
+        for (final Column column : schema.getColumns()) {
+            encoders[column.getIndex()] = fieldWriters[column.getIndex()].newColumnEncoder(column);
         }
+        return encoders;
     }
 
-    private static TimestampFormatter[] newTimestampColumnFormatters(
+    // timestamps are converted to strings with the format and the time zone of the column
+    private static TimestampEncoder[] newTimestampColumnFormatters(
             final TdOutputPlugin.PluginTask task, final Schema schema, final Map<String, TdOutputPlugin.ColumnOption> columnOptions)
     {
-        final TimestampFormatter[] formatters = new TimestampFormatter[schema.getColumnCount()];
+        final TimestampEncoder[] formatters = new TimestampEncoder[schema.getColumnCount()];
         int i = 0;
         for (final Column column : schema.getColumns()) {
             if (column.getType() instanceof TimestampType) {
@@ -412,7 +425,12 @@ public class FieldWriterSet
                 else {
                     zoneIdString = task.getDefaultTimeZoneId();
                 }
-                formatters[i] = TimestampFormatter.builder(pattern, true).setDefaultZoneFromString(zoneIdString).build();
+                if (SqlTimestampEncoder.supports(pattern, zoneIdString)) {
+                    formatters[i] = SqlTimestampEncoder.create();
+                }
+                else {
+                    formatters[i] = TimestampStringEncoder.create(pattern, zoneIdString);
+                }
             }
             i++;
         }
@@ -0,0 +1,33 @@
+package org.embulk.output.td.writer;
+
+// Hit rate of a cache in windows of WINDOW lookups. A cache is disabled for the rest of the task once the hit rate
+// of a window is lower than its minimum, so that columns whose values don't repeat don't pay for the cache.
+// Not thread-safe: a FieldWriterSet is used by a single task thread.
+final class HitRateWindow
+{
+    static final int WINDOW = 1024;
+
+    private final double minHitRate;
+    private int lookups = 0;
+    private int hits = 0;
+
+    HitRateWindow(double minHitRate)
+    {
+        this.minHitRate = minHitRate;
+    }
+
+    // returns false when a window ends with a hit rate lower than minHitRate
+    boolean record(boolean hit)
+    {
+        if (hit) {
+            hits++;
+        }
+        if (++lookups < WINDOW) {
+            return true;
+        }
+        boolean enough = hits >= WINDOW * minHitRate;
+        lookups = 0;
+        hits = 0;
+        return enough;
+    }
+}
@@ -10,4 +10,9 @@ public interface IFieldWriter
 {
     void writeKeyValue(MsgpackGZFileBuilder builder, PageReader reader, Column column)
             throws IOException;
+
+    default ColumnEncoder newColumnEncoder(final Column column)
+    {
+        return (builder, reader) -> writeKeyValue(builder, reader, column);
+    }
 }
@@ -10,6 +10,8 @@ import java.io.IOException;
 public class JsonFieldWriter
         extends FieldWriter
 {
+    private final JsonStringEncoder jsonEncoder = new JsonStringEncoder();
+
     public JsonFieldWriter(String keyName)
     {
         super(keyName);
@@ -48,6 +50,6 @@ public class JsonFieldWriter
     @Override
     protected void writeJsonValue(MsgpackGZFileBuilder builder, PageReader reader, Column column) throws IOException
     {
-        builder.writeString(reader.getJson(column).toJson());
+        jsonEncoder.write(builder, reader.getJson(column));
     }
 }
@@ -0,0 +1,158 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.embulk.output.td.TdOutputPlugin.FlattenOption;
+import org.embulk.output.td.TdOutputPlugin.FlattenType;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Writes a json column by nextWriter, and values at paths of the column as top-level keys (flatten of column_options).
+// The values are found in a single walk of the column value by JsonPathFlattener. A key is written with nil if the
+// column is null, if its path is not found, or if its value can't be converted to the type, so that records have
+// the same keys. Values are converted in the same way as LongFieldWriter and DoubleFieldWriter, and other values
+// than strings are written as JSON text for the string type.
+public class JsonFlattenFieldWriter
+        implements IFieldWriter
+{
+    private final IFieldWriter nextWriter;
+    private final JsonPathFlattener flattener;
+    private final byte[][] encodedKeyNames;
+    private final FlattenType[] types;
+    private final JsonStringEncoder jsonEncoder = new JsonStringEncoder();
+
+    public JsonFlattenFieldWriter(IFieldWriter nextWriter, List<FlattenOption> options)
+    {
+        this.nextWriter = nextWriter;
+        this.flattener = new JsonPathFlattener(options.stream().map(FlattenOption::getPath).collect(Collectors.toList()));
+        this.encodedKeyNames = new byte[options.size()][];
+        this.types = new FlattenType[options.size()];
+        for (int i = 0; i < options.size(); i++) {
+            encodedKeyNames[i] = MsgpackGZFileBuilder.encodeString(options.get(i).getName());
+            types[i] = options.get(i).getType();
+        }
+    }
+
+    public int getFlattenedCount()
+    {
+        return types.length;
+    }
+
+    public void writeKeyValue(MsgpackGZFileBuilder builder, PageReader reader, Column column)
+            throws IOException
+    {
+        nextWriter.writeKeyValue(builder, reader, column);
+        writeFlattened(builder, reader, column);
+    }
+
+    @Override
+    public ColumnEncoder newColumnEncoder(final Column column)
+    {
+        final ColumnEncoder nextEncoder = nextWriter.newColumnEncoder(column);
+        return (builder, reader) -> {
+            nextEncoder.encode(builder, reader);
+            writeFlattened(builder, reader, column);
+        };
+    }
+
+    private void writeFlattened(MsgpackGZFileBuilder builder, PageReader reader, Column column)
+            throws IOException
+    {
+        if (reader.isNull(column)) {
+            for (byte[] encodedKeyName : encodedKeyNames) {
+                builder.writeEncoded(encodedKeyName);
+                builder.writeNil();
+            }
+            return;
+        }
+
+        Value[] values = flattener.flatten(reader.getJson(column));
+        for (int i = 0; i < values.length; i++) {
+            builder.writeEncoded(encodedKeyNames[i]);
+            if (values[i] == null || values[i].isNilValue()) {
+                builder.writeNil();
+                continue;
+            }
+            switch (types[i]) {
+            case LONG:
+                writeLong(builder, values[i]);
+                break;
+            case DOUBLE:
+                writeDouble(builder, values[i]);
+                break;
+            default:
+                writeString(builder, values[i]);
+            }
+        }
+    }
+
+    private static void writeLong(MsgpackGZFileBuilder builder, Value value)
+            throws IOException
+    {
+        switch (value.getValueType()) {
+        case BOOLEAN:
+            builder.writeLong(value.asBooleanValue().getBoolean() ? 1 : 0);
+            break;
+        case INTEGER:
+            if (value.asIntegerValue().isInLongRange()) {
+                builder.writeLong(value.asIntegerValue().asLong());
+            }
+            else {
+                builder.writeNil();
+            }
+            break;
+        case FLOAT:
+            builder.writeLong(Double.valueOf(value.asFloatValue().toDouble()).longValue());
+            break;
+        case STRING:
+            try {
+                builder.writeLong(Long.valueOf(value.toString()));
+            }
+            catch (NumberFormatException e) {
+                builder.writeNil();
+            }
+            break;
+        default:
+            builder.writeNil();
+        }
+    }
+
+    private static void writeDouble(MsgpackGZFileBuilder builder, Value value)
+            throws IOException
+    {
+        switch (value.getValueType()) {
+        case BOOLEAN:
+            builder.writeDouble(value.asBooleanValue().getBoolean() ? 1.0 : 0.0);
+            break;
+        case INTEGER:
+        case FLOAT:
+            builder.writeDouble(value.asNumberValue().toDouble());
+            break;
+        case STRING:
+            try {
+                builder.writeDouble(Double.valueOf(value.toString()));
+            }
+            catch (NumberFormatException e) {
+                builder.writeNil();
+            }
+            break;
+        default:
+            builder.writeNil();
+        }
+    }
+
+    private void writeString(MsgpackGZFileBuilder builder, Value value)
+            throws IOException
+    {
+        if (value.isStringValue()) {
+            builder.writeString(value.toString());  // unlike asString, invalid UTF-8 is replaced instead of failing
+        }
+        else {
+            jsonEncoder.write(builder, value);
+        }
+    }
+}
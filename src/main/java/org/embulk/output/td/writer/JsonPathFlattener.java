@@ -0,0 +1,199 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.config.ConfigException;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.Value;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Finds values at JSON paths in a single walk of a JSON value. Paths are merged into a tree of map keys and array
+// indexes, so a map shared by paths is walked once, and only entries on the paths are visited. Keys are compared
+// with UTF-8 bytes of map keys without decoding them to Strings. The walk of a map stops when all keys of the
+// paths are found. If a map has duplicate keys, the first one is used.
+// Not thread-safe: a FieldWriterSet is used by a single task thread.
+class JsonPathFlattener
+{
+    private final Node root = new Node();
+    private final Value[] found;
+    private long walk = 0;  // identifies the current walk for Node.lastFound
+
+    // a path is keys separated by '.' and array indexes in brackets, e.g. user.id, items[0].name or [0]
+    JsonPathFlattener(List<String> paths)
+    {
+        this.found = new Value[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            Node node = root;
+            for (Object segment : parse(paths.get(i))) {
+                node = segment instanceof Integer ? node.addIndex((Integer) segment) : node.addKey((byte[]) segment);
+            }
+            node.pathIndexes = Arrays.copyOf(node.pathIndexes, node.pathIndexes.length + 1);
+            node.pathIndexes[node.pathIndexes.length - 1] = i;
+        }
+    }
+
+    // returns values in the order of paths. An element is null if its path is not found. The array is reused.
+    Value[] flatten(Value value)
+    {
+        Arrays.fill(found, null);
+        walk++;
+        visit(root, value);
+        return found;
+    }
+
+    private void visit(Node node, Value value)
+    {
+        for (int pathIndex : node.pathIndexes) {
+            found[pathIndex] = value;
+        }
+        if (node.keys.length > 0 && value.isMapValue()) {
+            int remaining = node.keys.length;
+            for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                Node child = node.keyChild(entry.getKey());
+                if (child != null && child.lastFound != walk) {
+                    child.lastFound = walk;
+                    visit(child, entry.getValue());
+                    if (--remaining == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (node.indexes.length > 0 && value.isArrayValue()) {
+            ArrayValue array = value.asArrayValue();
+            for (int i = 0; i < node.indexes.length; i++) {
+                if (node.indexes[i] < array.size()) {
+                    visit(node.indexChildren[i], array.get(node.indexes[i]));
+                }
+            }
+        }
+    }
+
+    // keys as UTF-8 bytes and indexes as Integers
+    static List<Object> parse(String path)
+    {
+        List<Object> segments = new ArrayList<>();
+        int i = 0;
+        while (i < path.length()) {
+            int end;
+            if (path.charAt(i) == '[') {
+                end = path.indexOf(']', i);
+                if (end < 0) {
+                    throw new ConfigException(String.format("Invalid path '%s': '[' is not closed", path));
+                }
+                segments.add(parseIndex(path, path.substring(i + 1, end)));
+                end++;
+            }
+            else {
+                end = i;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == i) {
+                    throw new ConfigException(String.format("Invalid path '%s': empty key", path));
+                }
+                segments.add(path.substring(i, end).getBytes(StandardCharsets.UTF_8));
+            }
+
+            // a segment is followed by '.' and a key, or by an index
+            if (end < path.length() && path.charAt(end) == '.') {
+                end++;
+                if (end == path.length() || path.charAt(end) == '.' || path.charAt(end) == '[') {
+                    throw new ConfigException(String.format("Invalid path '%s': empty key", path));
+                }
+            }
+            else if (end < path.length() && path.charAt(end) != '[') {
+                throw new ConfigException(String.format("Invalid path '%s': '.' or '[' is expected after ']'", path));
+            }
+            i = end;
+        }
+        if (segments.isEmpty()) {
+            throw new ConfigException("Path must not be empty");
+        }
+        return segments;
+    }
+
+    private static int parseIndex(String path, String index)
+    {
+        try {
+            int i = Integer.parseInt(index);
+            if (i >= 0) {
+                return i;
+            }
+        }
+        catch (NumberFormatException e) {
+            // falls through
+        }
+        throw new ConfigException(String.format("Invalid path '%s': array index must be a non-negative integer", path));
+    }
+
+    private static class Node
+    {
+        private byte[][] keys = new byte[0][];
+        private Node[] keyChildren = new Node[0];
+        private int[] indexes = new int[0];
+        private Node[] indexChildren = new Node[0];
+        private int[] pathIndexes = new int[0];
+        private long lastFound = 0;
+
+        // the child of the key or the index, added if it doesn't exist
+        private Node addKey(byte[] key)
+        {
+            for (int i = 0; i < keys.length; i++) {
+                if (Arrays.equals(keys[i], key)) {
+                    return keyChildren[i];
+                }
+            }
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            keyChildren = Arrays.copyOf(keyChildren, keyChildren.length + 1);
+            keys[keys.length - 1] = key;
+            keyChildren[keyChildren.length - 1] = new Node();
+            return keyChildren[keyChildren.length - 1];
+        }
+
+        private Node addIndex(int index)
+        {
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i] == index) {
+                    return indexChildren[i];
+                }
+            }
+            indexes = Arrays.copyOf(indexes, indexes.length + 1);
+            indexChildren = Arrays.copyOf(indexChildren, indexChildren.length + 1);
+            indexes[indexes.length - 1] = index;
+            indexChildren[indexChildren.length - 1] = new Node();
+            return indexChildren[indexChildren.length - 1];
+        }
+
+        // the child of a map key, or null if the key is not on the paths
+        private Node keyChild(Value key)
+        {
+            if (!key.isRawValue()) {
+                return null;
+            }
+            ByteBuffer bytes = key.asRawValue().asByteBuffer();  // a read-only view, not a copy
+            int length = bytes.remaining();
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].length == length && equals(keys[i], bytes)) {
+                    return keyChildren[i];
+                }
+            }
+            return null;
+        }
+
+        private static boolean equals(byte[] key, ByteBuffer bytes)
+        {
+            int position = bytes.position();
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != bytes.get(position + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.IntegerValue;
+import org.msgpack.value.MapValue;
+import org.msgpack.value.RawValue;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Writes a JSON value as msgpack str of its JSON text, without building the text as a String. The text is
+// serialized in UTF-8 into a reused buffer after a space reserved for the largest str header, and the header is
+// written just before the text once its length is known. The bytes are the same as
+// MsgpackGZFileBuilder.writeString(value.toJson()): strings and map keys are escaped in the same way as msgpack-java
+// (control characters, '"', '\\', and surrogates as uppercase \\uXXXX), numbers are formatted by Long.toString and
+// Double.toString (NaN and infinities as null), and values of other types (e.g. extensions) are written by toJson.
+// Not thread-safe: a FieldWriterSet is used by a single task thread.
+final class JsonStringEncoder
+{
+    private static final int HEADER_SPACE = 5;  // str32
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;  // a larger buffer is released after the value
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int position;
+    private final StringBuilder chars = new StringBuilder(32);
+
+    void write(MsgpackGZFileBuilder builder, Value value)
+            throws IOException
+    {
+        position = HEADER_SPACE;
+        appendValue(value);
+        int length = position - HEADER_SPACE;
+        int offset = HEADER_SPACE - MsgpackGZFileBuilder.strHeaderSize(length);
+        MsgpackGZFileBuilder.writeStrHeader(buffer, offset, length);
+        builder.writeEncoded(buffer, offset, position - offset);
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    private void appendValue(Value value)
+    {
+        switch (value.getValueType()) {
+        case NIL:
+            appendBytes(NULL);
+            break;
+        case BOOLEAN:
+            appendBytes(value.asBooleanValue().getBoolean() ? TRUE : FALSE);
+            break;
+        case INTEGER:
+            IntegerValue integer = value.asIntegerValue();
+            if (integer.isInLongRange()) {
+                appendLong(integer.asLong());
+            }
+            else {
+                appendAscii(integer.asBigInteger().toString());
+            }
+            break;
+        case FLOAT:
+            double d = value.asFloatValue().toDouble();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                appendBytes(NULL);
+            }
+            else {
+                chars.setLength(0);
+                chars.append(d);
+                appendAscii(chars);
+            }
+            break;
+        case STRING:
+        case BINARY:
+            appendString(value.asRawValue());
+            break;
+        case ARRAY:
+            appendArray(value.asArrayValue());
+            break;
+        case MAP:
+            appendMap(value.asMapValue());
+            break;
+        default:
+            appendUtf8(value.toJson());
+        }
+    }
+
+    private void appendArray(ArrayValue array)
+    {
+        ensure(2);
+        buffer[position++] = '[';
+        for (int i = 0; i < array.size(); i++) {
+            if (i > 0) {
+                ensure(1);
+                buffer[position++] = ',';
+            }
+            appendValue(array.get(i));
+        }
+        ensure(1);
+        buffer[position++] = ']';
+    }
+
+    private void appendMap(MapValue map)
+    {
+        ensure(2);
+        buffer[position++] = '{';
+        boolean first = true;
+        for (Map.Entry<Value, Value> entry : map.entrySet()) {
+            ensure(1);
+            if (!first) {
+                buffer[position++] = ',';
+            }
+            first = false;
+            Value key = entry.getKey();
+            if (key.isRawValue()) {
+                appendString(key.asRawValue());
+            }
+            else {
+                appendEscaped(key.toString());  // same as msgpack-java
+            }
+            ensure(1);
+            buffer[position++] = ':';
+            appendValue(entry.getValue());
+        }
+        ensure(1);
+        buffer[position++] = '}';
+    }
+
+    // escapes UTF-8 bytes of the value as they are. Invalid UTF-8 is decoded with replacement characters by
+    // toString, in the same way as msgpack-java.
+    private void appendString(RawValue value)
+    {
+        ByteBuffer bytes = value.asByteBuffer();  // a read-only view, not a copy
+        int start = position;
+        int length = bytes.remaining();
+        ensure(length * 6 + 2);  // a control character is 6 bytes, and 4 bytes of a supplementary character are 12
+        buffer[position++] = '"';
+        int i = bytes.position();
+        int end = i + length;
+        while (i < end) {
+            int b = bytes.get(i);
+            if (b >= 0) {
+                appendAsciiChar(b);
+                i++;
+                continue;
+            }
+            int size = utf8SequenceSize(bytes, i, end);
+            if (size == 0) {
+                position = start;
+                appendEscaped(value.toString());
+                return;
+            }
+            if (size == 4) {
+                int codePoint = ((b & 0x07) << 18) | ((bytes.get(i + 1) & 0x3f) << 12)
+                        | ((bytes.get(i + 2) & 0x3f) << 6) | (bytes.get(i + 3) & 0x3f);
+                appendUnicodeEscape(Character.highSurrogate(codePoint));
+                appendUnicodeEscape(Character.lowSurrogate(codePoint));
+            }
+            else {
+                for (int j = 0; j < size; j++) {
+                    buffer[position++] = bytes.get(i + j);
+                }
+            }
+            i += size;
+        }
+        buffer[position++] = '"';
+    }
+
+    // the size of a well-formed UTF-8 sequence starting with a non-ASCII byte, or 0 if it's malformed
+    private static int utf8SequenceSize(ByteBuffer bytes, int i, int end)
+    {
+        int b = bytes.get(i) & 0xff;
+        int size;
+        int min = 0x80;
+        int max = 0xbf;  // range of the second byte
+        if (b >= 0xc2 && b <= 0xdf) {
+            size = 2;
+        }
+        else if (b >= 0xe0 && b <= 0xef) {
+            size = 3;
+            if (b == 0xe0) {
+                min = 0xa0;  // overlong
+            }
+            else if (b == 0xed) {
+                max = 0x9f;  // surrogates
+            }
+        }
+        else if (b >= 0xf0 && b <= 0xf4) {
+            size = 4;
+            if (b == 0xf0) {
+                min = 0x90;  // overlong
+            }
+            else if (b == 0xf4) {
+                max = 0x8f;  // beyond U+10FFFF
+            }
+        }
+        else {
+            return 0;
+        }
+        if (i + size > end) {
+            return 0;
+        }
+        int second = bytes.get(i + 1) & 0xff;
+        if (second < min || second > max) {
+            return 0;
+        }
+        for (int j = 2; j < size; j++) {
+            if ((bytes.get(i + j) & 0xc0) != 0x80) {
+                return 0;
+            }
+        }
+        return size;
+    }
+
+    private void appendEscaped(String s)
+    {
+        ensure(s.length() * 6 + 2);
+        buffer[position++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                appendAsciiChar(c);
+            }
+            else if (Character.isSurrogate(c)) {
+                appendUnicodeEscape(c);
+            }
+            else if (c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buffer[position++] = '"';
+    }
+
+    // the caller ensures 6 bytes
+    private void appendAsciiChar(int c)
+    {
+        switch (c) {
+        case '"':
+        case '\\':
+            buffer[position++] = '\\';
+            buffer[position++] = (byte) c;
+            break;
+        case '\n':
+            buffer[position++] = '\\';
+            buffer[position++] = 'n';
+            break;
+        case '\r':
+            buffer[position++] = '\\';
+            buffer[position++] = 'r';
+            break;
+        case '\t':
+            buffer[position++] = '\\';
+            buffer[position++] = 't';
+            break;
+        case '\f':
+            buffer[position++] = '\\';
+            buffer[position++] = 'f';
+            break;
+        case '\b':
+            buffer[position++] = '\\';
+            buffer[position++] = 'b';
+            break;
+        default:
+            if (c < 0x20) {
+                appendUnicodeEscape(c);
+            }
+            else {
+                buffer[position++] = (byte) c;
+            }
+        }
+    }
+
+    private void appendUnicodeEscape(int c)
+    {
+        buffer[position++] = '\\';
+        buffer[position++] = 'u';
+        buffer[position++] = HEX[(c >> 12) & 0x0f];
+        buffer[position++] = HEX[(c >> 8) & 0x0f];
+        buffer[position++] = HEX[(c >> 4) & 0x0f];
+        buffer[position++] = HEX[c & 0x0f];
+    }
+
+    private void appendLong(long v)
+    {
+        // digits are written backward in the same way as NumberStringEncoder
+        ensure(20);
+        int digits = 1;
+        for (long n = v < 0 ? v : -v; n <= -10; n /= 10) {
+            digits++;
+        }
+        if (v < 0) {
+            buffer[position++] = '-';
+        }
+        int pos = position + digits;
+        long n = v < 0 ? v : -v;
+        do {
+            buffer[--pos] = (byte) ('0' - (int) (n % 10));
+            n /= 10;
+        } while (n != 0);
+        position += digits;
+    }
+
+    private void appendAscii(CharSequence s)
+    {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[position++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void appendUtf8(String s)
+    {
+        appendBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void appendBytes(byte[] bytes)
+    {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void ensure(int size)
+    {
+        if (buffer.length - position < size) {
+            int capacity = Math.max(buffer.length * 2, position + size);
+            byte[] grown = new byte[capacity];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+}
@@ -3,12 +3,15 @@ package org.embulk.output.td.writer;
 import org.embulk.output.td.MsgpackGZFileBuilder;
 import org.embulk.spi.Column;
 import org.embulk.spi.PageReader;
+import org.msgpack.value.Value;
 
 import java.io.IOException;
 
 public class MapFieldWriter
         extends JsonFieldWriter
 {
+    private final PageValueCache pageValueCache = new PageValueCache();
+
     public MapFieldWriter(String keyName)
     {
         super(keyName);
@@ -18,6 +21,13 @@ public class MapFieldWriter
     public void writeJsonValue(MsgpackGZFileBuilder builder, PageReader reader, Column column)
             throws IOException
     {
-        builder.writeValue(reader.getJson(column));
+        Value value = reader.getJson(column);
+        byte[] encoded = pageValueCache.lookup(value);
+        if (encoded != null) {
+            builder.writeEncoded(encoded);
+        }
+        else {
+            builder.writeValue(value);
+        }
     }
 }
@@ -0,0 +1,70 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+
+import java.io.IOException;
+
+// Encodes numbers as msgpack str into a reused buffer, without creating Strings nor byte arrays per value.
+// The bytes are the same as MsgpackGZFileBuilder.writeString(String.valueOf(v)): a long is formatted here, and
+// a double is formatted by StringBuilder.append(double), which is the algorithm of Double.toString and appends
+// to the builder without a String. Both are shorter than 32 characters, so the header is always a fixstr.
+// Not thread-safe: a FieldWriterSet is used by a single task thread.
+final class NumberStringEncoder
+{
+    private static final int MAX_LENGTH = 31;  // fixstr. "-9223372036854775808" and "-2.2250738585072014E-308" fit
+
+    private final byte[] buffer = new byte[1 + MAX_LENGTH];
+    private final StringBuilder chars = new StringBuilder(MAX_LENGTH);
+    private int offset;
+
+    void encodeLong(long v)
+    {
+        // digits are written backward from the end of the buffer. v is negated to negative so that
+        // Long.MIN_VALUE doesn't overflow.
+        int pos = buffer.length;
+        long n = v < 0 ? v : -v;
+        do {
+            buffer[--pos] = (byte) ('0' - (int) (n % 10));
+            n /= 10;
+        } while (n != 0);
+        if (v < 0) {
+            buffer[--pos] = '-';
+        }
+        buffer[--pos] = (byte) (0xa0 | (buffer.length - pos - 1));
+        offset = pos;
+    }
+
+    void encodeDouble(double v)
+    {
+        chars.setLength(0);
+        chars.append(v);
+        int length = chars.length();
+        offset = buffer.length - length - 1;
+        buffer[offset] = (byte) (0xa0 | length);
+        for (int i = 0; i < length; i++) {
+            buffer[offset + 1 + i] = (byte) chars.charAt(i);  // ASCII only
+        }
+    }
+
+    // the last encoded value is buffer[getOffset()] to the end of the buffer
+    byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    int getOffset()
+    {
+        return offset;
+    }
+
+    int getLength()
+    {
+        return buffer.length - offset;
+    }
+
+    void writeTo(MsgpackGZFileBuilder builder)
+            throws IOException
+    {
+        builder.writeEncoded(buffer, offset, buffer.length - offset);
+    }
+}
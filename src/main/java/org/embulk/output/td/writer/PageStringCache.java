@@ -0,0 +1,58 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+
+import java.util.Arrays;
+
+// Caches msgpack-encoded strings by the identity of String instances in the string pool of a page. The Embulk SPI
+// keeps strings of a page as String instances and doesn't expose their indexes nor UTF-8 bytes, but
+// PageReader.getString returns the instance in the pool, so an instance read again (e.g. a value shared by records
+// of a page) is encoded only once. A value is encoded when its instance is seen the second time, so that values
+// read only once don't allocate. Identity means equal content, so entries may safely outlive the page until their
+// slots are reused. The cache is direct-mapped and disabled for the rest of the task if hits are rarer than
+// MIN_HIT_RATE in a HitRateWindow. Not thread-safe: a FieldWriterSet is used by a single task thread.
+class PageStringCache
+{
+    static final int CAPACITY = 256;  // power of 2
+    static final int MAX_STRING_LENGTH = 4096;  // limits memory kept by entries of old pages
+    static final double MIN_HIT_RATE = 0.125;
+
+    private final String[] keys = new String[CAPACITY];
+    private final byte[][] values = new byte[CAPACITY][];
+    private final HitRateWindow window = new HitRateWindow(MIN_HIT_RATE);
+    private boolean enabled = true;
+
+    // returns the encoded value if the same instance was seen before, or null
+    byte[] lookup(String value)
+    {
+        if (!enabled || value.length() > MAX_STRING_LENGTH) {
+            return null;
+        }
+
+        int slot = value.hashCode() & (CAPACITY - 1);
+        byte[] encoded = null;
+        if (keys[slot] == value) {
+            encoded = values[slot];
+            if (encoded == null) {
+                encoded = MsgpackGZFileBuilder.encodeString(value);
+                values[slot] = encoded;
+            }
+        }
+        else {
+            keys[slot] = value;
+            values[slot] = null;
+        }
+
+        if (!window.record(encoded != null)) {
+            enabled = false;
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+        }
+        return encoded;
+    }
+
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+}
@@ -0,0 +1,106 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+// Caches msgpack-encoded JSON values by the identity of Value instances of a page, in the same way as
+// PageStringCache. The Embulk SPI keeps JSON values of a page as immutable Value instances, not as msgpack bytes,
+// and PageReader.getJson returns the instance of the page without copying it. A Value instance read again (e.g. a
+// constant value added by a filter plugin to every record) is written from its encoded bytes instead of walking its
+// tree. A value is encoded when its instance is seen the second time. Values that may be larger than MAX_ENCODED_SIZE
+// are not encoded nor kept, and their reads are counted as misses. The cache is direct-mapped and disabled for the
+// rest of the task if hits are rarer than MIN_HIT_RATE in a HitRateWindow.
+// Not thread-safe: a FieldWriterSet is used by a single task thread.
+class PageValueCache
+{
+    static final int CAPACITY = 64;  // power of 2
+    static final int MAX_ENCODED_SIZE = 16 * 1024;  // limits memory kept by entries of old pages
+    static final double MIN_HIT_RATE = 0.125;
+
+    private static final byte[] TOO_LARGE = new byte[0];
+
+    private final Value[] keys = new Value[CAPACITY];
+    private final byte[][] values = new byte[CAPACITY][];
+    private final HitRateWindow window = new HitRateWindow(MIN_HIT_RATE);
+    private boolean enabled = true;
+
+    // returns the encoded value if the same instance was seen before, or null
+    byte[] lookup(Value value)
+            throws IOException
+    {
+        if (!enabled) {
+            return null;
+        }
+
+        int slot = System.identityHashCode(value) & (CAPACITY - 1);
+        byte[] encoded = null;
+        if (keys[slot] == value) {
+            encoded = values[slot];
+            if (encoded == null) {
+                encoded = sizeBound(value, MAX_ENCODED_SIZE) > MAX_ENCODED_SIZE ? TOO_LARGE : MsgpackGZFileBuilder.encodeValue(value);
+                values[slot] = encoded;
+            }
+            if (encoded == TOO_LARGE) {
+                encoded = null;
+            }
+        }
+        else {
+            keys[slot] = value;
+            values[slot] = null;
+        }
+
+        if (!window.record(encoded != null)) {
+            enabled = false;
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+        }
+        return encoded;
+    }
+
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    // an upper bound of the msgpack size of the value, without encoding it. The walk stops once the bound exceeds
+    // limit, so a large value costs at most limit bytes of its elements.
+    static long sizeBound(Value value, long limit)
+    {
+        switch (value.getValueType()) {
+        case NIL:
+        case BOOLEAN:
+            return 1;
+        case INTEGER:
+        case FLOAT:
+            return 9;
+        case STRING:
+        case BINARY:
+            return 5 + value.asRawValue().asByteBuffer().remaining();
+        case ARRAY:
+            long arraySize = 5;
+            for (Value element : value.asArrayValue()) {
+                arraySize += sizeBound(element, limit - arraySize);
+                if (arraySize > limit) {
+                    break;
+                }
+            }
+            return arraySize;
+        case MAP:
+            long mapSize = 5;
+            for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                mapSize += sizeBound(entry.getKey(), limit - mapSize);
+                mapSize += sizeBound(entry.getValue(), limit - mapSize);
+                if (mapSize > limit) {
+                    break;
+                }
+            }
+            return mapSize;
+        default:
+            return 6 + value.asExtensionValue().getData().length;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+
+import java.io.IOException;
+import java.time.Instant;
+
+// Writes timestamps in the default format "%Y-%m-%d %H:%M:%S.%3N" (e.g. "2015-09-18 16:00:00.123") in UTC.
+// Digits are written to a reused buffer without TimestampFormatter nor Strings. Years out of 0000 to 9999 have
+// a different width, and they are written by the general encoder.
+// Not thread-safe: a FieldWriterSet is used by a single task thread.
+public class SqlTimestampEncoder
+        implements TimestampEncoder
+{
+    static final String PATTERN = "%Y-%m-%d %H:%M:%S.%3N";
+
+    private static final int LENGTH = "yyyy-MM-dd HH:mm:ss.SSS".length();
+    private static final long MIN_SECOND = -62167219200L;  // 0000-01-01 00:00:00
+    private static final long MAX_SECOND = 253402300799L;  // 9999-12-31 23:59:59
+    private static final int DAYS_0000_TO_1970 = 719468;  // days from 0000-03-01 to 1970-01-01
+    private static final int DAYS_PER_ERA = 146097;  // 400 years
+
+    private final TimestampStringEncoder fallback;
+    private final byte[] buffer = new byte[1 + LENGTH];
+
+    private SqlTimestampEncoder(TimestampStringEncoder fallback)
+    {
+        this.fallback = fallback;
+        buffer[0] = (byte) (0xa0 | LENGTH);  // fixstr
+        buffer[5] = '-';
+        buffer[8] = '-';
+        buffer[11] = ' ';
+        buffer[14] = ':';
+        buffer[17] = ':';
+        buffer[20] = '.';
+    }
+
+    public static boolean supports(String pattern, String zoneId)
+    {
+        return PATTERN.equals(pattern) && ("UTC".equals(zoneId) || "Etc/UTC".equals(zoneId));
+    }
+
+    public static SqlTimestampEncoder create()
+    {
+        return new SqlTimestampEncoder(TimestampStringEncoder.create(PATTERN, "UTC"));
+    }
+
+    @Override
+    public void write(MsgpackGZFileBuilder builder, Instant instant)
+            throws IOException
+    {
+        long second = instant.getEpochSecond();
+        if (second < MIN_SECOND || second > MAX_SECOND) {
+            fallback.write(builder, instant);
+            return;
+        }
+        encode(second, instant.getNano());
+        builder.writeEncoded(buffer, 0, buffer.length);
+    }
+
+    // the civil date is computed from days since epoch by the algorithm of "chrono-Compatible Low-Level Date
+    // Algorithms" (Howard Hinnant), where a year starts on March 1st so that leap days are at the end of years
+    private void encode(long second, int nano)
+    {
+        long days = Math.floorDiv(second, 86400L);
+        int secondOfDay = (int) Math.floorMod(second, 86400L);
+
+        long z = days + DAYS_0000_TO_1970;
+        long era = Math.floorDiv(z, DAYS_PER_ERA);
+        int dayOfEra = (int) (z - era * DAYS_PER_ERA);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        writeDigits(1, year, 4);
+        writeDigits(6, month, 2);
+        writeDigits(9, day, 2);
+        writeDigits(12, secondOfDay / 3600, 2);
+        writeDigits(15, secondOfDay / 60 % 60, 2);
+        writeDigits(18, secondOfDay % 60, 2);
+        writeDigits(21, nano / 1000000, 3);  // truncated as %3N
+    }
+
+    private void writeDigits(int offset, int value, int width)
+    {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
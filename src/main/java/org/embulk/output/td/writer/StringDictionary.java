@@ -0,0 +1,59 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Caches msgpack-encoded values of a low-cardinality string column (e.g. country, device or status) so that
+// repeated values are written without UTF-8 encoding nor allocation. Least recently used values are evicted
+// beyond MAX_ENTRIES. The hit rate is checked every HitRateWindow.WINDOW lookups, and the dictionary is disabled
+// for the rest of the task if it's lower than MIN_HIT_RATE, so that high-cardinality columns don't pay for hashing
+// and eviction. Not thread-safe: a FieldWriterSet is used by a single task thread.
+class StringDictionary
+{
+    static final int MAX_ENTRIES = 256;
+    static final int MAX_STRING_LENGTH = 64;  // longer strings are unlikely to repeat, and they are not cached
+    static final double MIN_HIT_RATE = 0.5;
+
+    private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>(MAX_ENTRIES * 4 / 3 + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest)
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final HitRateWindow window = new HitRateWindow(MIN_HIT_RATE);
+    private boolean enabled = true;
+
+    // returns the encoded value, or null if the value should be written without the dictionary
+    byte[] lookup(String value)
+    {
+        if (!enabled || value.length() > MAX_STRING_LENGTH) {
+            return null;
+        }
+
+        byte[] encoded = entries.get(value);
+        boolean hit = encoded != null;
+        if (!hit) {
+            encoded = MsgpackGZFileBuilder.encodeString(value);
+            entries.put(value, encoded);
+        }
+
+        if (!window.record(hit)) {
+            enabled = false;
+            entries.clear();
+        }
+        return encoded;
+    }
+
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+}
@@ -10,42 +10,67 @@ import java.io.IOException;
 public class StringFieldWriter
         extends FieldWriter
 {
-    private final TimestampFormatter formatter;
+    private static final byte[] ENCODED_TRUE = MsgpackGZFileBuilder.encodeString("true");
+    private static final byte[] ENCODED_FALSE = MsgpackGZFileBuilder.encodeString("false");
+
+    private final TimestampEncoder timestampEncoder;  // null if the column is not a timestamp
+    private final PageStringCache pageStringCache = new PageStringCache();
+    private final StringDictionary dictionary = new StringDictionary();
+    private final NumberStringEncoder numberEncoder = new NumberStringEncoder();
 
     public StringFieldWriter(String keyName, TimestampFormatter formatter)
+    {
+        this(keyName, formatter == null ? null : TimestampStringEncoder.uncached(formatter));
+    }
+
+    public StringFieldWriter(String keyName, TimestampEncoder timestampEncoder)
     {
         super(keyName);
-        this.formatter = formatter;
+        this.timestampEncoder = timestampEncoder;
     }
 
     @Override
     protected void writeBooleanValue(MsgpackGZFileBuilder builder, PageReader reader, Column column) throws IOException
     {
-        builder.writeString(reader.getBoolean(column) ? "true" : "false");
+        builder.writeEncoded(reader.getBoolean(column) ? ENCODED_TRUE : ENCODED_FALSE);
     }
 
     @Override
     protected void writeLongValue(MsgpackGZFileBuilder builder, PageReader reader, Column column) throws IOException
     {
-        builder.writeString(String.valueOf(reader.getLong(column)));
+        numberEncoder.encodeLong(reader.getLong(column));
+        numberEncoder.writeTo(builder);
     }
 
     @Override
     protected void writeDoubleValue(MsgpackGZFileBuilder builder, PageReader reader, Column column) throws IOException
     {
-        builder.writeString(String.valueOf(reader.getDouble(column)));
+        numberEncoder.encodeDouble(reader.getDouble(column));
+        numberEncoder.writeTo(builder);
     }
 
     @Override
     protected void writeStringValue(MsgpackGZFileBuilder builder, PageReader reader, Column column) throws IOException
     {
-        builder.writeString(reader.getString(column));
+        String value = reader.getString(column);
+        // an instance of the page's string pool read again is found without comparing content. Otherwise equal
+        // values of low-cardinality columns are found in the dictionary.
+        byte[] encoded = pageStringCache.lookup(value);
+        if (encoded == null) {
+            encoded = dictionary.lookup(value);
+        }
+        if (encoded != null) {
+            builder.writeEncoded(encoded);
+        }
+        else {
+            builder.writeString(value);
+        }
     }
 
     @Override
     protected void writeTimestampValue(MsgpackGZFileBuilder builder, PageReader reader, Column column) throws IOException
     {
-        builder.writeString(formatter.format(getTimestamp(reader, column)));
+        timestampEncoder.write(builder, getTimestamp(reader, column));
     }
 
     @Override
@@ -0,0 +1,13 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+
+import java.io.IOException;
+import java.time.Instant;
+
+// Writes timestamps of a column as msgpack str, e.g. TimestampStringEncoder or SqlTimestampEncoder.
+public interface TimestampEncoder
+{
+    void write(MsgpackGZFileBuilder builder, Instant instant)
+            throws IOException;
+}
@@ -24,4 +24,15 @@ public class TimestampFieldLongDuplicator
         nextWriter.writeKeyValue(builder, reader, column);
         timeFieldWriter.writeKeyValue(builder, reader, column);
     }
+
+    @Override
+    public ColumnEncoder newColumnEncoder(final Column column)
+    {
+        final ColumnEncoder nextEncoder = nextWriter.newColumnEncoder(column);
+        final ColumnEncoder timeEncoder = timeFieldWriter.newColumnEncoder(column);
+        return (builder, reader) -> {
+            nextEncoder.encode(builder, reader);
+            timeEncoder.encode(builder, reader);
+        };
+    }
 }
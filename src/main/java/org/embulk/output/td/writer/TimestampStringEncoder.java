@@ -0,0 +1,265 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.embulk.util.timestamp.TimestampFormatter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
+
+// Writes timestamps as msgpack str formatted by a TimestampFormatter. Timestamps of event data are clustered in
+// time, so the encoded string of each epoch second is cached, and only the fractional digits (%N, %<width>N or %L)
+// are written for each value. The cache is used only if the pattern is a Ruby-style pattern with at most one
+// fractional directive and no other sub-second directive, and if the cached encoding is identical to the formatter
+// for sample timestamps. Otherwise every timestamp is formatted by the formatter.
+// Not thread-safe: a FieldWriterSet is used by a single task thread.
+public class TimestampStringEncoder
+        implements TimestampEncoder
+{
+    private static final int CACHE_SLOTS = 8;  // power of 2. direct-mapped by epoch second
+    private static final long[] SAMPLE_SECONDS = {0L, -1L, 1442595600L, 1700000000L, 253402300799L};
+    private static final int[] SAMPLE_NANOS = {0, 1, 123456789, 999999999};
+
+    private final TimestampFormatter formatter;
+    private final boolean cached;
+    private final int fractionWidth;  // 0 if the pattern has no fractional directive
+    private final int fractionDivisor;  // nanoseconds / fractionDivisor = fractional digits
+    private final Optional<TimestampFormatter> suffixFormatter;  // formats the rest of the pattern after the fraction
+    private final int suffixLength;  // UTF-8 bytes after the fraction, if suffixFormatter is empty
+
+    private final long[] cachedSeconds = new long[CACHE_SLOTS];
+    private final byte[][] cachedEncoded = new byte[CACHE_SLOTS][];
+    private final int[] cachedFractionOffsets = new int[CACHE_SLOTS];
+    private byte[] buffer = new byte[64];
+
+    private TimestampStringEncoder(TimestampFormatter formatter, Optional<Fraction> fraction, Optional<TimestampFormatter> suffixFormatter,
+            int suffixLength)
+    {
+        this.formatter = formatter;
+        this.cached = fraction.isPresent();
+        this.fractionWidth = fraction.map(f -> f.width).orElse(0);
+        this.fractionDivisor = (int) Math.pow(10, 9 - fractionWidth);
+        this.suffixFormatter = suffixFormatter;
+        this.suffixLength = suffixLength;
+    }
+
+    // formats every timestamp by formatter
+    public static TimestampStringEncoder uncached(TimestampFormatter formatter)
+    {
+        return new TimestampStringEncoder(formatter, Optional.empty(), Optional.empty(), 0);
+    }
+
+    // pattern and zoneId are the options of TimestampFormatter.builder(pattern, true)
+    public static TimestampStringEncoder create(String pattern, String zoneId)
+    {
+        TimestampFormatter formatter = newFormatter(pattern, zoneId);
+        Optional<Fraction> fraction = Fraction.find(pattern);
+        if (!fraction.isPresent()) {
+            return uncached(formatter);
+        }
+
+        String suffix = pattern.substring(fraction.get().end);
+        Optional<TimestampFormatter> suffixFormatter = Optional.empty();
+        int suffixLength = 0;
+        if (suffix.indexOf('%') >= 0) {
+            suffixFormatter = Optional.of(newFormatter(suffix, zoneId));
+        }
+        else {
+            suffixLength = suffix.getBytes(StandardCharsets.UTF_8).length;
+        }
+        TimestampStringEncoder encoder = new TimestampStringEncoder(formatter, fraction, suffixFormatter, suffixLength);
+        if (!encoder.matchesFormatter()) {
+            return uncached(formatter);
+        }
+        return encoder;
+    }
+
+    private static TimestampFormatter newFormatter(String pattern, String zoneId)
+    {
+        return TimestampFormatter.builder(pattern, true).setDefaultZoneFromString(zoneId).build();
+    }
+
+    public boolean isCached()
+    {
+        return cached;
+    }
+
+    public String format(Instant instant)
+    {
+        return formatter.format(instant);
+    }
+
+    @Override
+    public void write(MsgpackGZFileBuilder builder, Instant instant)
+            throws IOException
+    {
+        if (!cached) {
+            builder.writeString(formatter.format(instant));
+            return;
+        }
+        int length = encode(instant);
+        if (length < 0) {
+            builder.writeString(formatter.format(instant));
+        }
+        else if (fractionWidth == 0) {
+            builder.writeEncoded(cachedEncoded[slot(instant.getEpochSecond())]);
+        }
+        else {
+            builder.writeEncoded(buffer, 0, length);
+        }
+    }
+
+    // encodes instant to buffer and returns the length, or -1 if the second can't be cached
+    private int encode(Instant instant)
+    {
+        long second = instant.getEpochSecond();
+        int slot = slot(second);
+        byte[] encoded = cachedEncoded[slot];
+        if (encoded == null || cachedSeconds[slot] != second) {
+            encoded = encodeSecond(second);
+            if (encoded == null) {
+                return -1;
+            }
+            cachedSeconds[slot] = second;
+            cachedEncoded[slot] = encoded;
+            cachedFractionOffsets[slot] = encoded.length - suffixLength(second) - fractionWidth;
+        }
+        if (fractionWidth == 0) {
+            return encoded.length;
+        }
+
+        if (buffer.length < encoded.length) {
+            buffer = new byte[encoded.length * 2];
+        }
+        System.arraycopy(encoded, 0, buffer, 0, encoded.length);
+        int fraction = instant.getNano() / fractionDivisor;
+        int offset = cachedFractionOffsets[slot];
+        for (int i = fractionWidth - 1; i >= 0; i--) {
+            buffer[offset + i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return encoded.length;
+    }
+
+    // the timestamp of the second with zero fraction. null if its fractional digits are not found at the expected position.
+    private byte[] encodeSecond(long second)
+    {
+        byte[] encoded = MsgpackGZFileBuilder.encodeString(formatter.format(Instant.ofEpochSecond(second)));
+        int offset = encoded.length - suffixLength(second) - fractionWidth;
+        if (offset < 1) {
+            return null;
+        }
+        for (int i = 0; i < fractionWidth; i++) {
+            if (encoded[offset + i] != '0') {
+                return null;
+            }
+        }
+        return encoded;
+    }
+
+    private int suffixLength(long second)
+    {
+        if (suffixFormatter.isPresent()) {
+            return suffixFormatter.get().format(Instant.ofEpochSecond(second)).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return suffixLength;
+    }
+
+    private static int slot(long second)
+    {
+        return (int) second & (CACHE_SLOTS - 1);
+    }
+
+    private boolean matchesFormatter()
+    {
+        try {
+            for (long second : SAMPLE_SECONDS) {
+                for (int nano : SAMPLE_NANOS) {
+                    Instant instant = Instant.ofEpochSecond(second, nano);
+                    int length = encode(instant);
+                    byte[] expected = MsgpackGZFileBuilder.encodeString(formatter.format(instant));
+                    if (length < 0 || !Arrays.equals(expected, Arrays.copyOf(fractionWidth == 0 ? cachedEncoded[slot(second)] : buffer, length))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        catch (RuntimeException e) {
+            return false;
+        }
+        finally {
+            Arrays.fill(cachedEncoded, null);
+        }
+    }
+
+    // the fractional directive of a Ruby-style pattern
+    private static class Fraction
+    {
+        private final int width;
+        private final int end;  // index of the pattern after the directive
+
+        private Fraction(int width, int end)
+        {
+            this.width = width;
+            this.end = end;
+        }
+
+        // empty if the pattern can't be cached: a Java pattern, a sub-second directive other than a fraction,
+        // or more than one fraction. A pattern without fraction is cached with width 0.
+        static Optional<Fraction> find(String pattern)
+        {
+            if (pattern.startsWith("java:")) {
+                return Optional.empty();
+            }
+            int start = pattern.startsWith("ruby:") ? "ruby:".length() : 0;
+            Fraction found = null;
+            int i = start;
+            while (i < pattern.length()) {
+                if (pattern.charAt(i) != '%') {
+                    i++;
+                    continue;
+                }
+                int directive = i++;
+                while (i < pattern.length() && "-_0^#:".indexOf(pattern.charAt(i)) >= 0) {
+                    i++;
+                }
+                int widthStart = i;
+                while (i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+                    i++;
+                }
+                String width = pattern.substring(widthStart, i);
+                if (i < pattern.length() && (pattern.charAt(i) == 'E' || pattern.charAt(i) == 'O')) {
+                    i++;
+                }
+                if (i >= pattern.length()) {
+                    return Optional.empty();
+                }
+                char conversion = pattern.charAt(i++);
+                switch (conversion) {
+                case 'N':
+                case 'L':
+                    if (found != null || widthStart != directive + 1) {
+                        return Optional.empty();  // flags are not supported
+                    }
+                    int w = width.isEmpty() ? (conversion == 'N' ? 9 : 3) : Integer.parseInt(width);
+                    if (w < 1 || w > 9 || (conversion == 'L' && w != 3)) {
+                        return Optional.empty();
+                    }
+                    found = new Fraction(w, i);
+                    break;
+                case 'Q':
+                    return Optional.empty();  // milliseconds since epoch
+                default:
+                    break;
+                }
+            }
+            if (found == null) {
+                return Optional.of(new Fraction(0, pattern.length()));
+            }
+            return Optional.of(found);
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package org.embulk.output.td;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// An embeddable stand-in of the bulk_import, table and database APIs that TdOutputPlugin calls through TDClient.
+// It keeps sessions, parts and tables in memory, and simulates the network and the server with:
+// - latency added to every response (setLatencyMillis)
+// - bandwidth of reading request bodies (setUploadBandwidth)
+// - errors injected to the next N requests of an operation (failNext), or randomly (setErrorRate)
+// - errors injected while the body of the next request is read (failNextAfterBytes)
+// - perform and commit jobs that take some polls to finish (setPollsUntilDone)
+// Operations are named after URL paths, e.g. "bulk_import/upload_part", "table/show" and "database/create".
+// Connect a TDClient with endpoint "localhost", use_ssl false and port getPort().
+public class FakeBulkImportServer
+        implements Closeable
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+    private final ExecutorService threads;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, List<List<String>>>> databases = new ConcurrentHashMap<>();  // database -> table -> schema
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> chunkedRequestCounts = new ConcurrentHashMap<>();
+    private final Map<String, List<Integer>> injectedErrors = new HashMap<>();
+    private final Map<String, double[]> errorRates = new HashMap<>();  // operation -> {rate, status code}
+    private final Map<String, long[]> bodyErrors = new HashMap<>();  // operation -> {bytes, status code}
+    private final Random random = new Random(0);
+    private final AtomicInteger jobIds = new AtomicInteger(1);
+
+    private volatile long latencyMillis = 0;
+    private volatile long uploadBytesPerSecond = 0;  // unlimited if 0
+    private volatile int pollsUntilDone = 0;
+
+    private static class Session
+    {
+        final String name;
+        final String database;
+        final String table;
+        final Map<String, byte[]> parts = new ConcurrentHashMap<>();
+        String status = "uploading";
+        boolean uploadFrozen = false;
+        String jobId = null;
+        long validRecords = 0;
+        long errorRecords = 0;
+        int validParts = 0;
+        int errorParts = 0;
+        int remainingPolls = 0;
+
+        Session(String name, String database, String table)
+        {
+            this.name = name;
+            this.database = database;
+            this.table = table;
+        }
+    }
+
+    private static class HttpError
+            extends Exception
+    {
+        final int statusCode;
+
+        HttpError(int statusCode, String message)
+        {
+            super(message);
+            this.statusCode = statusCode;
+        }
+    }
+
+    public static FakeBulkImportServer start()
+            throws IOException
+    {
+        return new FakeBulkImportServer(0);
+    }
+
+    public FakeBulkImportServer(int port)
+            throws IOException
+    {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.threads = Executors.newCachedThreadPool();
+        server.createContext("/", this::handle);
+        server.setExecutor(threads);
+        server.start();
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    public void setLatencyMillis(long latencyMillis)
+    {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setUploadBandwidth(long bytesPerSecond)
+    {
+        this.uploadBytesPerSecond = bytesPerSecond;
+    }
+
+    // number of polls of a session before a perform or commit job finishes
+    public void setPollsUntilDone(int polls)
+    {
+        this.pollsUntilDone = polls;
+    }
+
+    // the next `times` requests of the operation fail with statusCode
+    public synchronized void failNext(String operation, int statusCode, int times)
+    {
+        List<Integer> errors = injectedErrors.computeIfAbsent(operation, key -> new ArrayList<>());
+        errors.addAll(Collections.nCopies(times, statusCode));
+    }
+
+    // the next request of the operation fails with statusCode after `bytes` bytes of its body are read. The rest of
+    // the body is not read, in the same way as a server that fails in the middle of an upload.
+    public synchronized void failNextAfterBytes(String operation, int statusCode, long bytes)
+    {
+        bodyErrors.put(operation, new long[] {bytes, statusCode});
+    }
+
+    // requests of the operation fail with statusCode at the rate. Random errors are reproducible.
+    public synchronized void setErrorRate(String operation, double rate, int statusCode)
+    {
+        errorRates.put(operation, new double[] {rate, statusCode});
+    }
+
+    public void createDatabase(String database)
+    {
+        databases.putIfAbsent(database, new ConcurrentHashMap<>());
+    }
+
+    // number of requests of the operation, including failed ones
+    public int getRequestCount(String operation)
+    {
+        AtomicInteger count = requestCounts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    // number of requests of the operation sent with Transfer-Encoding: chunked
+    public int getChunkedRequestCount(String operation)
+    {
+        AtomicInteger count = chunkedRequestCounts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    // uploaded parts of a session: part name -> compressed bytes
+    public Map<String, byte[]> getParts(String sessionName)
+    {
+        Session session = sessions.get(sessionName);
+        return session == null ? Collections.emptyMap() : new HashMap<>(session.parts);
+    }
+
+    public String getSessionStatus(String sessionName)
+    {
+        Session session = sessions.get(sessionName);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session) {
+            return session.status;
+        }
+    }
+
+    public List<List<String>> getTableSchema(String database, String table)
+    {
+        Map<String, List<List<String>>> tables = databases.get(database);
+        return tables == null ? null : tables.get(table);
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        threads.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange)
+            throws IOException
+    {
+        try {
+            // e.g. ["", "v3", "bulk_import", "upload_part", session, part]
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String operation = path.length >= 4 ? path[2] + "/" + path[3] : exchange.getRequestURI().getPath();
+            List<String> args = path.length > 4 ? Arrays.asList(path).subList(4, path.length) : Collections.emptyList();
+            requestCounts.computeIfAbsent(operation, key -> new AtomicInteger()).incrementAndGet();
+            String transferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+                chunkedRequestCounts.computeIfAbsent(operation, key -> new AtomicInteger()).incrementAndGet();
+            }
+
+            long[] bodyError = nextBodyError(operation);
+            byte[] body = readBody(exchange.getRequestBody(), operation.equals("bulk_import/upload_part"),
+                    bodyError == null ? Long.MAX_VALUE : bodyError[0]);
+            if (bodyError != null && body.length >= bodyError[0]) {
+                int statusCode = (int) bodyError[1];
+                respond(exchange, statusCode, json("error", "injected error while reading the body", "status", statusCode));
+                return;
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            Integer injected = nextInjectedError(operation);
+            if (injected != null) {
+                respond(exchange, injected, json("error", "injected error", "status", injected));
+                return;
+            }
+            respond(exchange, 200, dispatch(operation, args, body));
+        }
+        catch (HttpError e) {
+            respond(exchange, e.statusCode, json("error", e.getMessage(), "status", e.statusCode));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, json("error", "interrupted"));
+        }
+        catch (RuntimeException e) {
+            respond(exchange, 500, json("error", String.valueOf(e)));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] dispatch(String operation, List<String> args, byte[] body)
+            throws HttpError, IOException
+    {
+        switch (operation) {
+        case "bulk_import/create":
+            return createSession(args.get(0), args.get(1), args.get(2));
+        case "bulk_import/show":
+            return showSession(session(args.get(0)));
+        case "bulk_import/upload_part":
+            return uploadPart(session(args.get(0)), args.get(1), body);
+        case "bulk_import/freeze":
+            return freeze(session(args.get(0)));
+        case "bulk_import/perform":
+            return perform(session(args.get(0)));
+        case "bulk_import/commit":
+            return commit(session(args.get(0)));
+        case "bulk_import/error_records":
+            session(args.get(0));
+            return emptyErrorRecords();
+        case "bulk_import/delete":
+            sessions.remove(session(args.get(0)).name);
+            return json("name", args.get(0));
+        case "database/create":
+            if (databases.putIfAbsent(args.get(0), new ConcurrentHashMap<>()) != null) {
+                throw new HttpError(409, "Database already exists");
+            }
+            return json("database", args.get(0));
+        case "table/create":
+            if (tables(args.get(0)).putIfAbsent(args.get(1), Collections.synchronizedList(new ArrayList<>())) != null) {
+                throw new HttpError(409, "Table already exists");
+            }
+            return json("database", args.get(0), "table", args.get(1), "type", "log");
+        case "table/show":
+            return showTable(args.get(1), table(args.get(0), args.get(1)));
+        case "table/append-schema":
+            return appendSchema(args.get(0), args.get(1), body);
+        case "table/rename":
+            return renameTable(args.get(0), args.get(1), args.get(2));
+        default:
+            throw new HttpError(404, "Unknown API " + operation);
+        }
+    }
+
+    private byte[] createSession(String name, String database, String table)
+            throws HttpError, IOException
+    {
+        table(database, table);
+        if (sessions.putIfAbsent(name, new Session(name, database, table)) != null) {
+            throw new HttpError(409, "Bulk import session already exists");
+        }
+        return json("bulk_import", name);
+    }
+
+    private byte[] showSession(Session session)
+            throws IOException
+    {
+        synchronized (session) {
+            if (session.remainingPolls > 0) {
+                session.remainingPolls--;
+            }
+            else if (session.status.equals("performing")) {
+                session.status = "ready";
+            }
+            else if (session.status.equals("committing")) {
+                session.status = "committed";
+            }
+            return json("name", session.name, "database", session.database, "table", session.table,
+                    "status", session.status, "upload_frozen", session.uploadFrozen, "job_id", session.jobId,
+                    "valid_records", session.validRecords, "error_records", session.errorRecords,
+                    "valid_parts", session.validParts, "error_parts", session.errorParts);
+        }
+    }
+
+    private byte[] uploadPart(Session session, String partName, byte[] body)
+            throws HttpError, IOException
+    {
+        synchronized (session) {
+            if (session.uploadFrozen) {
+                throw new HttpError(409, "Bulk import session is frozen");
+            }
+            session.parts.put(partName, body);  // a part of the same name is overwritten
+        }
+        return json("bulk_import", session.name, "part", partName);
+    }
+
+    private byte[] freeze(Session session)
+            throws HttpError, IOException
+    {
+        synchronized (session) {
+            if (session.uploadFrozen) {
+                throw new HttpError(409, "Bulk import session is already frozen");
+            }
+            session.uploadFrozen = true;
+        }
+        return json("bulk_import", session.name);
+    }
+
+    private byte[] perform(Session session)
+            throws HttpError, IOException
+    {
+        synchronized (session) {
+            if (!session.status.equals("uploading")) {
+                throw new HttpError(409, "Bulk import session is " + session.status);
+            }
+            session.uploadFrozen = true;
+            session.validRecords = 0;
+            session.validParts = 0;
+            session.errorParts = 0;
+            for (byte[] part : session.parts.values()) {
+                try {
+                    session.validRecords += countRecords(part);
+                    session.validParts++;
+                }
+                catch (IOException e) {
+                    session.errorParts++;
+                }
+            }
+            session.jobId = String.valueOf(jobIds.getAndIncrement());
+            session.status = "performing";
+            session.remainingPolls = pollsUntilDone;
+            return json("job_id", session.jobId, "bulk_import", session.name);
+        }
+    }
+
+    private byte[] commit(Session session)
+            throws HttpError, IOException
+    {
+        synchronized (session) {
+            if (!session.status.equals("ready")) {
+                throw new HttpError(409, "Bulk import session is " + session.status);
+            }
+            session.status = "committing";
+            session.remainingPolls = pollsUntilDone;
+            return json("bulk_import", session.name);
+        }
+    }
+
+    private byte[] showTable(String table, List<List<String>> schema)
+            throws IOException
+    {
+        synchronized (schema) {
+            return json("id", table, "name", table, "type", "log", "count", 0,
+                    "schema", MAPPER.writeValueAsString(schema), "estimated_storage_size", 0,
+                    "last_import", null, "last_log_timestamp", null, "expire_days", null,
+                    "created_at", "", "updated_at", "");
+        }
+    }
+
+    private byte[] appendSchema(String database, String table, byte[] body)
+            throws HttpError, IOException
+    {
+        List<List<String>> schema = table(database, table);
+        synchronized (schema) {
+            // a column is either [name, type, key] or {"name": name, "type": type, "key": key}
+            for (JsonNode column : MAPPER.readTree(body).get("schema")) {
+                if (column.isArray()) {
+                    schema.add(Arrays.asList(column.get(0).asText(), column.get(1).asText(), column.get(0).asText()));
+                }
+                else {
+                    schema.add(Arrays.asList(column.get("name").asText(), column.get("type").asText(), column.get("name").asText()));
+                }
+            }
+        }
+        return showTable(table, schema);
+    }
+
+    private byte[] renameTable(String database, String from, String to)
+            throws HttpError, IOException
+    {
+        List<List<String>> schema = table(database, from);
+        Map<String, List<List<String>>> tables = tables(database);
+        tables.put(to, schema);  // overwrites
+        tables.remove(from);
+        return json("database", database, "table", to, "type", "log");
+    }
+
+    private Session session(String name)
+            throws HttpError
+    {
+        Session session = sessions.get(name);
+        if (session == null) {
+            throw new HttpError(404, "Bulk import session not found");
+        }
+        return session;
+    }
+
+    private Map<String, List<List<String>>> tables(String database)
+            throws HttpError
+    {
+        Map<String, List<List<String>>> tables = databases.get(database);
+        if (tables == null) {
+            throw new HttpError(404, "Database not found");
+        }
+        return tables;
+    }
+
+    private List<List<String>> table(String database, String table)
+            throws HttpError
+    {
+        List<List<String>> schema = tables(database).get(table);
+        if (schema == null) {
+            throw new HttpError(404, "Table not found");
+        }
+        return schema;
+    }
+
+    private synchronized Integer nextInjectedError(String operation)
+    {
+        List<Integer> errors = injectedErrors.get(operation);
+        if (errors != null && !errors.isEmpty()) {
+            return errors.remove(0);
+        }
+        double[] errorRate = errorRates.get(operation);
+        if (errorRate != null && random.nextDouble() < errorRate[0]) {
+            return (int) errorRate[1];
+        }
+        return null;
+    }
+
+    private synchronized long[] nextBodyError(String operation)
+    {
+        return bodyErrors.remove(operation);
+    }
+
+    // reads the request body up to maxBytes. upload bodies are read at uploadBytesPerSecond.
+    private byte[] readBody(InputStream in, boolean throttled, long maxBytes)
+            throws IOException, InterruptedException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        long startNanos = System.nanoTime();
+        int n;
+        while (body.size() < maxBytes && (n = in.read(buffer, 0, (int) Math.min(buffer.length, maxBytes - body.size()))) >= 0) {
+            body.write(buffer, 0, n);
+            long bandwidth = uploadBytesPerSecond;
+            if (throttled && bandwidth > 0) {
+                long expectedNanos = body.size() * TimeUnit.SECONDS.toNanos(1) / bandwidth;
+                long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+                if (aheadNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                }
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static long countRecords(byte[] part)
+            throws IOException
+    {
+        long records = 0;
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(new GZIPInputStream(new ByteArrayInputStream(part)))) {
+            while (unpacker.hasNext()) {
+                unpacker.skipValue();
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private static byte[] emptyErrorRecords()
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new GZIPOutputStream(bytes).close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] json(Object... keyValues)
+            throws IOException
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return MAPPER.writeValueAsBytes(map);
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, byte[] body)
+            throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.embulk.output.td;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestAdaptiveUploadConcurrency
+{
+    private static final long PART_SIZE = 16 * 1024 * 1024;
+
+    private AtomicLong clock;
+
+    @Before
+    public void createResources()
+    {
+        clock = new AtomicLong();
+    }
+
+    @Test
+    public void increaseWhileThroughputImproves()
+            throws Exception
+    {
+        AdaptiveUploadConcurrency concurrency = new AdaptiveUploadConcurrency(2, 4, clock::get);
+
+        // every window uploads `limit` parts in 1 second: throughput improves as the limit increases
+        for (int window = 0; window < 5; window++) {
+            uploadWindow(concurrency, concurrency.getLimit(), 1000);
+        }
+        assertEquals(4, concurrency.getLimit()); // never exceeds the max
+
+        List<Map<String, Object>> timeline = concurrency.getTimeline();
+        assertEquals(3, timeline.size());
+        assertEquals(2, timeline.get(0).get("concurrency"));
+        assertEquals(3, timeline.get(1).get("concurrency"));
+        assertEquals(4, timeline.get(2).get("concurrency"));
+    }
+
+    @Test
+    public void keepLimitIfThroughputDoesNotImprove()
+            throws Exception
+    {
+        AdaptiveUploadConcurrency concurrency = new AdaptiveUploadConcurrency(2, 8, clock::get);
+        uploadWindow(concurrency, 2, 1000);
+        assertEquals(3, concurrency.getLimit());
+
+        // 3 parts in 1.5 seconds: same throughput as the previous window
+        uploadWindow(concurrency, 3, 1500);
+        assertEquals(3, concurrency.getLimit());
+    }
+
+    @Test
+    public void halveWhenThrottled()
+            throws Exception
+    {
+        AdaptiveUploadConcurrency concurrency = new AdaptiveUploadConcurrency(8, 8, clock::get);
+        concurrency.recordUpload(PART_SIZE, TimeUnit.SECONDS.toNanos(1), true);
+        assertEquals(4, concurrency.getLimit());
+        assertEquals("throttled", concurrency.getTimeline().get(1).get("reason"));
+
+        for (int i = 0; i < 5; i++) {
+            concurrency.recordUpload(PART_SIZE, TimeUnit.SECONDS.toNanos(1), true);
+        }
+        assertEquals(1, concurrency.getLimit()); // never less than 1
+    }
+
+    @Test
+    public void halveOnLatencySpike()
+            throws Exception
+    {
+        AdaptiveUploadConcurrency concurrency = new AdaptiveUploadConcurrency(4, 8, clock::get);
+        concurrency.recordUpload(PART_SIZE, TimeUnit.SECONDS.toNanos(1), false);
+        assertEquals(4, concurrency.getLimit());
+
+        concurrency.recordUpload(PART_SIZE, TimeUnit.SECONDS.toNanos(10), false);
+        assertEquals(2, concurrency.getLimit());
+        assertEquals("latency spike", concurrency.getTimeline().get(1).get("reason"));
+    }
+
+    private void uploadWindow(AdaptiveUploadConcurrency concurrency, int parts, long windowMillis)
+    {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(windowMillis));
+        for (int i = 0; i < parts; i++) {
+            concurrency.recordUpload(PART_SIZE, TimeUnit.MILLISECONDS.toNanos(windowMillis), false);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.embulk.output.td;
+
+import com.treasuredata.client.TDClient;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.td.TdOutputPlugin.PluginTask;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.embulk.output.td.TestTdOutputPlugin.config;
+import static org.embulk.output.td.TestTdOutputPlugin.fieldWriters;
+import static org.embulk.output.td.TestTdOutputPlugin.plugin;
+import static org.embulk.output.td.TestTdOutputPlugin.pluginTask;
+import static org.embulk.output.td.TestTdOutputPlugin.schema;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFakeBulkImportServer
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private FakeBulkImportServer server;
+    private Schema schema;
+    private TdOutputPlugin plugin; // mock
+    private PluginTask task;
+
+    @Before
+    public void createResources()
+            throws Exception
+    {
+        server = FakeBulkImportServer.start();
+        server.createDatabase("my_db");
+
+        schema = schema("time", Types.LONG, "_c0", Types.LONG, "_c1", Types.STRING);
+        plugin = plugin();
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("endpoint", "localhost")
+                .set("port", server.getPort())
+                .set("use_ssl", "false")
+                .set("file_split_size", 64)
+                .set("retry_initial_interval_millis", 10)
+                .set("retry_max_interval_millis", 100)
+                .set("status_poll_initial_interval_millis", 10));
+        task.setLoadTargetTableName("my_table");
+    }
+
+    @After
+    public void closeResources()
+    {
+        server.close();
+    }
+
+    @Test
+    public void uploadPerformAndCommit()
+            throws Exception
+    {
+        server.setLatencyMillis(5);
+        server.setPollsUntilDone(2);
+        server.failNext("bulk_import/upload_part", 503, 1);  // retried by TDClient
+
+        TDClient client = plugin.newTDClient(task);
+        try {
+            plugin.createTableIfNotExists(client, "my_db", "my_table");
+            assertTrue(plugin.startBulkImportSession(client, "my_session", "my_db", "my_table"));
+
+            int parts = writeRecords(client, 5000);
+            assertTrue(parts > 1);
+            assertEquals(parts, server.getParts("my_session").size());
+            assertEquals(parts + 1, server.getRequestCount("bulk_import/upload_part"));
+
+            plugin.completeBulkImportSession(client, schema, task, 0);
+        }
+        finally {
+            client.close();
+        }
+
+        assertEquals("committed", server.getSessionStatus("my_session"));
+        // columns except time are added
+        List<List<String>> tableSchema = server.getTableSchema("my_db", "my_table");
+        assertEquals(2, tableSchema.size());
+        assertEquals("_c0", tableSchema.get(0).get(0));
+        assertEquals("long", tableSchema.get(0).get(1));
+    }
+
+    @Test
+    public void throttleUploads()
+            throws Exception
+    {
+        server.setUploadBandwidth(256 * 1024);
+
+        long startNanos = System.nanoTime();
+        TDClient client = plugin.newTDClient(task);
+        try {
+            plugin.createTableIfNotExists(client, "my_db", "my_table");
+            plugin.startBulkImportSession(client, "my_session", "my_db", "my_table");
+            writeRecords(client, 5000);
+        }
+        finally {
+            client.close();
+        }
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+
+        long uploadedBytes = 0;
+        for (byte[] part : server.getParts("my_session").values()) {
+            uploadedBytes += part.length;
+        }
+        // upload_concurrency (2) parts are uploaded at a time
+        assertTrue(elapsedMillis >= uploadedBytes * 1000 / (256 * 1024) / 2);
+    }
+
+    @Test
+    public void streamPartsWithChunkedRequests()
+            throws Exception
+    {
+        // the first streamed part fails in the middle of its body, and is uploaded again by TDClient
+        server.failNextAfterBytes("bulk_import/upload_part", 500, 16 * 1024);
+
+        TDClient client = plugin.newTDClient(task);
+        try {
+            plugin.createTableIfNotExists(client, "my_db", "my_table");
+            plugin.startBulkImportSession(client, "my_session", "my_db", "my_table");
+
+            int parts = writeRecords(client, 5000, Optional.of(plugin.newStreamingPartUploader(task)));
+            assertTrue(parts > 1);
+            assertEquals(parts, server.getParts("my_session").size());
+            assertEquals(parts + 1, server.getRequestCount("bulk_import/upload_part"));
+            assertTrue(server.getChunkedRequestCount("bulk_import/upload_part") > 0);
+            assertEquals(5000, countRecords(server.getParts("my_session").values()));
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void disableStreamingIfChunkedRequestsAreRejected()
+            throws Exception
+    {
+        server.failNext("bulk_import/upload_part", 501, 1);
+
+        StreamingPartUploader uploader = plugin.newStreamingPartUploader(task);
+        TDClient client = plugin.newTDClient(task);
+        try {
+            plugin.createTableIfNotExists(client, "my_db", "my_table");
+            plugin.startBulkImportSession(client, "my_session", "my_db", "my_table");
+
+            int parts = writeRecords(client, 20000, Optional.of(uploader));
+            assertTrue(uploader.isDisabled());
+            // parts opened before the response of the first part are streamed
+            assertTrue(server.getChunkedRequestCount("bulk_import/upload_part") < parts);
+            assertEquals(parts, server.getParts("my_session").size());
+            assertEquals(20000, countRecords(server.getParts("my_session").values()));
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void disableStreamingIfPartIsIdle()
+            throws Exception
+    {
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("endpoint", "localhost")
+                .set("port", server.getPort())
+                .set("use_ssl", "false")
+                .set("streaming_upload_max_idle_millis", 100));
+        StreamingPartUploader uploader = plugin.newStreamingPartUploader(task);
+        FinalizableExecutorService uploads = new FinalizableExecutorService(1, 0);
+        try {
+            StreamingPartUploader.StreamingPart part = uploader.start("my_session", "idle_part", uploads);
+            part.write(new byte[1024], 0, 1024);
+            part.flush();
+            Thread.sleep(500);  // input is slower than the idle limit
+            part.close();
+            assertFalse(part.handOver());
+            assertFalse(part.awaitUploaded());
+            assertTrue(uploader.isDisabled());
+
+            // next parts are not streamed
+            StreamingPartUploader.StreamingPart next = uploader.start("my_session", "next_part", uploads);
+            next.write(new byte[1024], 0, 1024);
+            next.flush();
+            assertFalse(next.handOver());
+            assertTrue(uploads.tryReserve());
+        }
+        finally {
+            uploads.shutdown();
+            uploader.close();
+        }
+    }
+
+    private static long countRecords(Collection<byte[]> parts)
+            throws Exception
+    {
+        long records = 0;
+        for (byte[] part : parts) {
+            try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(new GZIPInputStream(new ByteArrayInputStream(part)))) {
+                while (unpacker.hasNext()) {
+                    unpacker.skipValue();
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    private int writeRecords(TDClient client, int records)
+            throws Exception
+    {
+        return writeRecords(client, records, Optional.empty());
+    }
+
+    // returns the number of uploaded parts
+    private int writeRecords(TDClient client, int records, Optional<StreamingPartUploader> streamingUploader)
+            throws Exception
+    {
+        Random random = new Random(0);
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < records; i++) {
+            values.addAll(Arrays.asList(1442595600L + i, (long) i, new BigInteger(400, random).toString(36)));
+        }
+
+        // the client is used after the writer is closed
+        RecordWriter recordWriter = new RecordWriter(task, 0, client, () -> { }, streamingUploader, fieldWriters(task, schema));
+        recordWriter.open(schema);
+        try {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values.toArray())) {
+                recordWriter.add(page);
+            }
+        }
+        finally {
+            recordWriter.finish();
+        }
+        return recordWriter.commit().get(Integer.class, TdOutputPlugin.TASK_REPORT_UPLOADED_PART_NUMBER);
+    }
+}
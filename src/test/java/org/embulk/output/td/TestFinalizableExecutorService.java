@@ -0,0 +1,303 @@
+package org.embulk.output.td;
+
+import org.embulk.output.td.metrics.Gauge;
+import org.embulk.output.td.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestFinalizableExecutorService
+{
+    private FinalizableExecutorService executor;
+    private List<String> finalized;
+
+    @Before
+    public void createResources()
+    {
+        executor = new FinalizableExecutorService(2, 1);
+        finalized = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void destroyResources()
+            throws IOException
+    {
+        executor.shutdown();
+    }
+
+    @Test
+    public void slowTaskDoesNotBlockSubmit()
+            throws Exception
+    {
+        CountDownLatch slowTaskLatch = new CountDownLatch(1);
+        executor.submit(awaitTask(slowTaskLatch), finalizer("slow"));
+
+        // 2 threads and 1 queued task: submit doesn't block while the slow task is running
+        for (int i = 0; i < 10; i++) {
+            executor.submit(awaitTask(new CountDownLatch(0)), finalizer("fast-" + i));
+        }
+        assertTrue(executor.getPendingTaskCount() <= 3);
+        assertTrue(finalized.size() >= 8);
+        assertFalse(finalized.contains("slow"));
+
+        slowTaskLatch.countDown();
+        executor.joinAll();
+        assertEquals(11, finalized.size());
+        assertEquals(0, executor.getPendingTaskCount());
+    }
+
+    @Test
+    public void limitRunningTasksOnSharedThreads()
+            throws Exception
+    {
+        ExecutorService sharedThreads = Executors.newCachedThreadPool();
+        FinalizableExecutorService limited = new FinalizableExecutorService(sharedThreads, () -> 2, 3);
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            for (int i = 0; i < 20; i++) {
+                limited.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        Thread.sleep(2);
+                        running.decrementAndGet();
+                        return null;
+                    }
+                }, finalizer("task-" + i));
+                assertTrue(limited.getPendingTaskCount() <= 5);
+            }
+            limited.joinAll();
+            assertEquals(20, finalized.size());
+            assertTrue(maxRunning.get() <= 2);
+        }
+        finally {
+            limited.shutdown();
+            sharedThreads.shutdown();
+        }
+    }
+
+    @Test
+    public void startThreadsUpToCurrentLimit()
+            throws Exception
+    {
+        final AtomicInteger limit = new AtomicInteger(1);
+        FinalizableExecutorService adaptive = new FinalizableExecutorService(4, limit::get, 0);
+        try {
+            final Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+            Callable<Void> recordThread = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception
+                {
+                    threads.add(Thread.currentThread());
+                    Thread.sleep(2);
+                    return null;
+                }
+            };
+            for (int i = 0; i < 10; i++) {
+                adaptive.submit(recordThread, finalizer("task-" + i));
+            }
+            adaptive.joinAll();
+            assertEquals(1, threads.size());
+
+            // threads are started when the limit is raised
+            limit.set(3);
+            final CountDownLatch running = new CountDownLatch(3);
+            for (int i = 0; i < 3; i++) {
+                adaptive.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        threads.add(Thread.currentThread());
+                        running.countDown();
+                        if (!running.await(10, TimeUnit.SECONDS)) {
+                            throw new IllegalStateException("timeout");
+                        }
+                        return null;
+                    }
+                }, finalizer("parallel-" + i));
+            }
+            adaptive.joinAll();
+            assertEquals(3, threads.size());
+        }
+        finally {
+            adaptive.shutdown();
+        }
+    }
+
+    @Test
+    public void reserveSlotForStreamedTask()
+            throws Exception
+    {
+        // 2 threads: a reserved slot and a running task use both of them
+        assertTrue(executor.tryReserve());
+        CountDownLatch latch = new CountDownLatch(1);
+        executor.submit(awaitTask(latch), finalizer("running"));
+        assertFalse(executor.tryReserve());
+
+        // a task submitted while the slots are used waits, and a slot can't be reserved before it runs
+        final AtomicInteger started = new AtomicInteger();
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                started.incrementAndGet();
+                return null;
+            }
+        }, finalizer("waiting"));
+        Thread.sleep(50);
+        assertEquals(0, started.get());
+
+        // the reserved task runs without waiting for the slots
+        CountDownLatch reservedLatch = new CountDownLatch(1);
+        executor.submitReserved(awaitTask(reservedLatch), finalizer("reserved"));
+        reservedLatch.countDown();
+        executor.joinPartial(2);
+        assertEquals(Collections.singletonList("reserved"), finalized);
+
+        // the slot of the reserved task is released when it completes
+        latch.countDown();
+        executor.joinAll();
+        assertEquals(1, started.get());
+        assertTrue(executor.tryReserve());
+        executor.cancelReservation();
+    }
+
+    @Test
+    public void joinFailedTask()
+            throws Exception
+    {
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                throw new IOException("upload failed");
+            }
+        }, finalizer("failed"));
+
+        try {
+            executor.joinAll();
+            fail();
+        }
+        catch (IOException e) {
+            assertEquals("upload failed", e.getCause().getMessage());
+        }
+        // the finalizer is called even if the task failed
+        assertEquals(Collections.singletonList("failed"), finalized);
+    }
+
+    @Test
+    public void finalizeAbortedTaskAfterItStops()
+            throws Exception
+    {
+        // a running task that takes a while to stop after interrupted, e.g. closing its part
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                }
+                catch (InterruptedException e) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+                    while (System.nanoTime() < deadline) {
+                        // keeps running
+                    }
+                    finalized.add("stopped");
+                }
+                return null;
+            }
+        }, finalizer("running"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                throw new IOException("upload failed");
+            }
+        }, finalizer("failed"));
+
+        try {
+            executor.shutdown();
+            fail();
+        }
+        catch (IOException e) {
+            assertEquals("upload failed", e.getCause().getMessage());
+        }
+        assertEquals(Arrays.asList("failed", "stopped", "running"), finalized);
+    }
+
+    @Test
+    public void updateGauges()
+            throws Exception
+    {
+        MetricRegistry registry = new MetricRegistry();
+        Gauge queued = registry.gauge("queued_uploads", "");
+        Gauge running = registry.gauge("running_uploads", "");
+        executor.setGauges(queued, running);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            executor.submit(awaitTask(latch), finalizer("task-" + i));
+        }
+        // 2 threads run 2 tasks and 1 task waits in the queue
+        for (int i = 0; i < 100 && running.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, running.get());
+        assertEquals(1, queued.get());
+
+        latch.countDown();
+        executor.joinAll();
+        assertEquals(0, running.get());
+        assertEquals(0, queued.get());
+    }
+
+    private static Callable<Void> awaitTask(final CountDownLatch latch)
+    {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                if (!latch.await(10, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("timeout");
+                }
+                return null;
+            }
+        };
+    }
+
+    private Closeable finalizer(final String name)
+    {
+        return new Closeable() {
+            @Override
+            public void close()
+            {
+                finalized.add(name);
+            }
+        };
+    }
+}
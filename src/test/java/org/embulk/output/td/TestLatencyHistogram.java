@@ -0,0 +1,66 @@
+package org.embulk.output.td;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLatencyHistogram
+{
+    @Test
+    public void percentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(900, histogram.getPercentile(90));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void smallValuesAreExact()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 0; v < 16; v++) {
+            histogram.record(v);
+        }
+        assertEquals(16, histogram.toMap().size());
+        assertEquals(7, histogram.getPercentile(50));
+        assertEquals(0, new LatencyHistogram().getPercentile(50));
+    }
+
+    @Test
+    public void merge()
+    {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (long v = 1; v <= 100; v++) {
+            a.record(v);
+            b.record(v * 100);
+        }
+
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(a.toMap());
+        merged.merge(b.toMap());
+        assertEquals(200, merged.getCount());
+        assertWithin(100, merged.getPercentile(50));
+        assertWithin(9900, merged.getPercentile(99));
+        assertTrue(merged.getMax() >= 10000);
+
+        Map<String, Long> summary = merged.getSummary();
+        assertEquals(200L, (long) summary.get("count"));
+    }
+
+    private static void assertWithin(long expected, long actual)
+    {
+        // the upper bound of a bucket is at most 1/8 larger than the values in it
+        assertTrue(actual + " is not close to " + expected, actual >= expected && actual <= expected * 9 / 8);
+    }
+}
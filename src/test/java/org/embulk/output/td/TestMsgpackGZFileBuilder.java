@@ -0,0 +1,68 @@
+package org.embulk.output.td;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestMsgpackGZFileBuilder
+{
+    @Test
+    public void countWrittenBytesOnce()
+            throws IOException
+    {
+        // file_split_size is compared with this size. Bytes were counted twice when arrays were written byte by byte.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MsgpackGZFileBuilder.DataSizeFilter out = new MsgpackGZFileBuilder.DataSizeFilter(bytes);
+        out.write(new byte[100], 10, 50);
+        out.write(1);
+        out.close();
+        assertEquals(51L, out.size());
+        assertEquals(51, bytes.size());
+    }
+
+    @Test
+    public void encodeStringAsPacker()
+            throws IOException
+    {
+        // lengths around the boundaries of fixstr, str8, str16 and str32, and multi-byte characters
+        int[] lengths = {0, 1, 31, 32, 255, 256, 65535, 65536, 70000};
+        for (int length : lengths) {
+            assertEncodedAsPacker(Strings.repeat("a", length));
+        }
+        assertEncodedAsPacker("日本語");
+        assertEncodedAsPacker(Strings.repeat("日本語", 100));
+        assertEncodedAsPacker("🍣");  // surrogate pair
+        assertEncodedAsPacker("\uD83C");  // unpaired surrogate is replaced
+    }
+
+    @Test
+    public void encodeValueAsPacker()
+            throws IOException
+    {
+        Value value = ValueFactory.newMap(
+                ValueFactory.newString("k"), ValueFactory.newArray(ValueFactory.newInteger(1L), ValueFactory.newFloat(1.5)),
+                ValueFactory.newString("日本語"), ValueFactory.newNil());
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            packer.packValue(value);
+            assertArrayEquals(packer.toByteArray(), MsgpackGZFileBuilder.encodeValue(value));
+        }
+    }
+
+    private static void assertEncodedAsPacker(String value)
+            throws IOException
+    {
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            packer.packString(value);
+            assertArrayEquals(packer.toByteArray(), MsgpackGZFileBuilder.encodeString(value));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.embulk.output.td;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPipelinedOutputStream
+{
+    private ExecutorService threads;
+
+    @Before
+    public void createResources()
+    {
+        threads = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void destroyResources()
+    {
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void measureTimeOfSink()
+            throws Exception
+    {
+        // the sink takes 2 ms per chunk on the drainer thread, while the writer only copies bytes
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream slowSink = new OutputStream() {
+            @Override
+            public void write(int b)
+            {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+                    throws IOException
+            {
+                try {
+                    Thread.sleep(2);
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.write(b, off, len);
+            }
+        };
+
+        byte[] data = new byte[10 * 1024];
+        new Random(0).nextBytes(data);
+        PipelinedOutputStream out = new PipelinedOutputStream(slowSink, threads, 1024, 2);
+        out.write(data);
+        out.close();
+
+        assertArrayEquals(data, written.toByteArray());
+        assertTrue(out.getCompressNanos() >= 10 * 2 * 1000000L);
+    }
+}
@@ -1,8 +1,13 @@
 package org.embulk.output.td;
 
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import com.google.common.collect.ImmutableMap;
 import com.treasuredata.client.TDClient;
+import com.treasuredata.client.TDClientHttpException;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
 import org.embulk.output.td.TdOutputPlugin.PluginTask;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageTestUtils;
@@ -15,13 +20,28 @@ import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessageUnpacker;
 import org.msgpack.value.Value;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.math.BigInteger;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.zip.GZIPInputStream;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.findAll;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static org.embulk.output.td.TestTdOutputPlugin.config;
 import static org.embulk.output.td.TestTdOutputPlugin.fieldWriters;
 import static org.embulk.output.td.TestTdOutputPlugin.plugin;
@@ -30,11 +50,20 @@ import static org.embulk.output.td.TestTdOutputPlugin.schema;
 import static org.embulk.output.td.TestTdOutputPlugin.recordWriter;
 import static org.embulk.output.td.TestTdOutputPlugin.tdClient;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.msgpack.value.ValueFactory.newString;
 
 public class TestRecordWriter
@@ -42,6 +71,11 @@ public class TestRecordWriter
     @Rule
     public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
 
+    private final int wireMockPort = 10889;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(options().port(wireMockPort), false);
+
     private Schema schema;
     private TdOutputPlugin plugin; // mock
     private PluginTask task;
@@ -109,6 +143,272 @@ public class TestRecordWriter
         }
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void reportMetrics()
+            throws Exception
+    {
+        TDClient client = spy(plugin.newTDClient(task));
+        doNothing().when(client).uploadBulkImportPart(anyString(), anyString(), any(File.class));
+
+        recordWriter = recordWriter(task, client, fieldWriters(task, schema));
+        recordWriter.open(schema);
+        try {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                    1442595600L, 0L, "v", true, 0.0, Instant.ofEpochSecond(1442595600L),
+                    1442595601L, 1L, "w", false, 1.0, Instant.ofEpochSecond(1442595601L))) {
+                recordWriter.add(page);
+            }
+        }
+        finally {
+            recordWriter.finish();
+        }
+
+        TaskReport report = recordWriter.commit();
+        assertEquals(2L, (long) report.get(Long.class, TdOutputPlugin.TASK_REPORT_ROWS));
+        assertTrue(report.get(Long.class, TdOutputPlugin.TASK_REPORT_UNCOMPRESSED_BYTES) > 0);
+        assertTrue(report.get(Long.class, TdOutputPlugin.TASK_REPORT_COMPRESSED_BYTES) > 0);
+        assertEquals(0L, (long) report.get(Long.class, TdOutputPlugin.TASK_REPORT_UPLOAD_RETRIES));
+        assertEquals(1, ((Number) report.get(Map.class, TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_MILLIS).get("count")).intValue());
+
+        // reports without metrics are ignored
+        Map<String, Object> summary = TaskMetrics.summarize(Arrays.asList(report, report,
+                TdOutputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport()));
+        assertEquals(2, summary.get("tasks"));
+        assertEquals(4L, summary.get(TdOutputPlugin.TASK_REPORT_ROWS));
+        assertEquals(2L, (long) ((Map<String, Long>) summary.get(TdOutputPlugin.TASK_REPORT_UPLOAD_LATENCY_MILLIS)).get("count"));
+    }
+
+    @Test
+    public void splitPartsByFileSplitSize()
+            throws Exception
+    {
+        assertPartSizesCloseToFileSplitSize(config());
+        // compressed bytes lag behind more when records are compressed in the background
+        assertPartSizesCloseToFileSplitSize(config().set("compression_threads", 2));
+        assertPartSizesCloseToFileSplitSize(config().set("parallel_gzip_threads", 2).set("parallel_gzip_block_size", 64));
+    }
+
+    private void assertPartSizesCloseToFileSplitSize(ConfigSource config)
+            throws Exception
+    {
+        final long fileSplitSize = 256 * 1024;
+        task = pluginTask(config.set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("file_split_size", fileSplitSize / 1024));
+        TDClient client = spy(plugin.newTDClient(task));
+        final List<Long> partSizes = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            partSizes.add(((File) invocation.getArguments()[2]).length());
+            return null;
+        }).when(client).uploadBulkImportPart(anyString(), anyString(), any(File.class));
+
+        Random random = new Random(0);
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            values.addAll(Arrays.asList(1442595600L + i, (long) i, new BigInteger(400, random).toString(36),
+                    i % 2 == 0, random.nextDouble(), Instant.ofEpochSecond(1442595600L + i)));
+        }
+
+        recordWriter = recordWriter(task, client, fieldWriters(task, schema));
+        recordWriter.open(schema);
+        try {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values.toArray())) {
+                recordWriter.add(page);
+            }
+        }
+        finally {
+            recordWriter.finish();
+        }
+
+        assertTrue(partSizes.size() > 2);
+        assertEquals(partSizes.size(), (int) recordWriter.commit().get(Integer.class, TdOutputPlugin.TASK_REPORT_UPLOADED_PART_NUMBER));
+        // parts except the last one (the smallest) are within a few percent of file_split_size, including the first part
+        // whose size is predicted by the sampled compression ratio
+        Collections.sort(partSizes);
+        for (long partSize : partSizes.subList(1, partSizes.size())) {
+            assertTrue(partSize > fileSplitSize * 0.95);
+            assertTrue(partSize < fileSplitSize * 1.05);
+        }
+    }
+
+    @Test
+    public void uploadPartsInMemory()
+            throws Exception
+    {
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("part_buffer_memory", 1024));
+        TDClient client = spy(plugin.newTDClient(task));
+        final List<byte[]> parts = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            parts.add(Arrays.copyOfRange((byte[]) args[2], (int) args[3], (int) args[3] + (int) args[4]));
+            return null;
+        }).when(client).uploadBulkImportPart(anyString(), anyString(), any(byte[].class), anyInt(), anyInt());
+
+        recordWriter = recordWriter(task, client, fieldWriters(task, schema));
+        recordWriter.open(schema);
+        try {
+            assertTrue(recordWriter.getBuilder().isInMemory());
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                    1442595600L, 0L, "v", true, 0.0, Instant.ofEpochSecond(1442595600L))) {
+                recordWriter.add(page);
+            }
+        }
+        finally {
+            recordWriter.finish();
+        }
+
+        verify(client, never()).uploadBulkImportPart(anyString(), anyString(), any(File.class));
+        assertEquals(1, parts.size());
+        MessageUnpacker u = MessagePack.newDefaultUnpacker(new GZIPInputStream(new ByteArrayInputStream(parts.get(0))));
+        Map<Value, Value> v = u.unpackValue().asMapValue().map();
+        assertEquals(1442595600L, v.get(newString("time")).asIntegerValue().toLong());
+        assertEquals("v", v.get(newString("_c1")).asStringValue().toString());
+    }
+
+    @Test
+    public void streamPartsWhileWriting()
+            throws Exception
+    {
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("endpoint", "localhost")
+                .set("port", wireMockPort)
+                .set("use_ssl", "false")
+                .set("streaming_upload", true));
+        stubFor(put(urlMatching("/v3/bulk_import/upload_part/.*"))
+                .willReturn(aResponse().withStatus(200).withBody("{}")));
+        TDClient client = spy(plugin.newTDClient(task));
+
+        recordWriter = spy(new RecordWriter(task, 0, client, client::close,
+                Optional.of(plugin.newStreamingPartUploader(task)), fieldWriters(task, schema)));
+        recordWriter.open(schema);
+        try {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                    1442595600L, 0L, "v", true, 0.0, Instant.ofEpochSecond(1442595600L))) {
+                recordWriter.add(page);
+            }
+        }
+        finally {
+            recordWriter.finish();
+        }
+
+        // the part is streamed, and not uploaded again by TDClient
+        verify(client, never()).uploadBulkImportPart(anyString(), anyString(), any(File.class));
+        List<LoggedRequest> requests = findAll(putRequestedFor(urlEqualTo("/v3/bulk_import/upload_part/my_session/task-0_0")));
+        assertEquals(1, requests.size());
+        MessageUnpacker u = MessagePack.newDefaultUnpacker(new GZIPInputStream(new ByteArrayInputStream(requests.get(0).getBody())));
+        Map<Value, Value> v = u.unpackValue().asMapValue().map();
+        assertEquals(1442595600L, v.get(newString("time")).asIntegerValue().toLong());
+        assertEquals("v", v.get(newString("_c1")).asStringValue().toString());
+    }
+
+    @Test
+    public void spillPartBufferToFile()
+            throws Exception
+    {
+        // part_buffer_memory is too small to keep the part
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("part_buffer_memory", 1));
+        recordWriter = recordWriter(task, tdClient(plugin, task), fieldWriters(task, schema));
+
+        try {
+            recordWriter.open(schema);
+
+            Random random = new Random(0);
+            List<Object> values = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                values.addAll(Arrays.asList(1442595600L + i, (long) i, new BigInteger(400, random).toString(36),
+                        true, 0.0, Instant.ofEpochSecond(1442595600L + i)));
+            }
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values.toArray())) {
+                recordWriter.add(page);
+            }
+
+            MsgpackGZFileBuilder builder = recordWriter.getBuilder();
+            builder.finish();
+
+            assertFalse(builder.isInMemory());
+            assertEquals(builder.getWrittenSize(), builder.getFile().length());
+
+            MessageUnpacker u = MessagePack.newDefaultUnpacker(new GZIPInputStream(new FileInputStream(builder.getFile())));
+            for (int i = 0; i < 100; i++) {
+                Map<Value, Value> v = u.unpackValue().asMapValue().map();
+                assertEquals((long) i, v.get(newString("_c0")).asIntegerValue().toLong());
+            }
+        }
+        finally {
+            recordWriter.close();
+        }
+    }
+
+    @Test
+    public void uploadWithAdaptiveConcurrency()
+            throws Exception
+    {
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("adaptive_upload_concurrency", true)
+                .set("max_upload_concurrency", 4));
+        TDClient client = spy(plugin.newTDClient(task));
+        doNothing().when(client).uploadBulkImportPart(anyString(), anyString(), any(File.class));
+
+        recordWriter = recordWriter(task, client, fieldWriters(task, schema));
+        recordWriter.open(schema);
+        try {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                    1442595600L, 0L, "v", true, 0.0, Instant.ofEpochSecond(1442595600L))) {
+                recordWriter.add(page);
+            }
+        }
+        finally {
+            recordWriter.finish();
+        }
+
+        TaskReport report = recordWriter.commit();
+        assertEquals(1, (int) report.get(Integer.class, TdOutputPlugin.TASK_REPORT_UPLOADED_PART_NUMBER));
+        // a window of upload_concurrency (2) uploads is not completed by a part
+        assertEquals(2, (int) report.get(Integer.class, TdOutputPlugin.TASK_REPORT_UPLOAD_CONCURRENCY));
+        assertTrue(report.has(TdOutputPlugin.TASK_REPORT_UPLOAD_CONCURRENCY_TIMELINE));
+    }
+
+    @Test
+    public void retryThrottledUploadWithAdaptiveConcurrency()
+            throws Exception
+    {
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("adaptive_upload_concurrency", true)
+                .set("upload_concurrency", 4)
+                .set("max_upload_concurrency", 4)
+                .set("retry_initial_interval_millis", 1));
+        TDClient client = spy(plugin.newTDClient(task));
+        TDClientHttpException unavailable = mock(TDClientHttpException.class);
+        when(unavailable.getStatusCode()).thenReturn(503);
+        doThrow(unavailable).doNothing().when(client).uploadBulkImportPart(anyString(), anyString(), any(File.class));
+
+        recordWriter = recordWriter(task, client, fieldWriters(task, schema));
+        recordWriter.open(schema);
+        try {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                    1442595600L, 0L, "v", true, 0.0, Instant.ofEpochSecond(1442595600L))) {
+                recordWriter.add(page);
+            }
+        }
+        finally {
+            recordWriter.finish();
+        }
+
+        // the throttled attempt halves the concurrency, and the part is uploaded by the retry
+        verify(client, times(2)).uploadBulkImportPart(anyString(), anyString(), any(File.class));
+        TaskReport report = recordWriter.commit();
+        assertEquals(1L, (long) report.get(Long.class, TdOutputPlugin.TASK_REPORT_UPLOAD_RETRIES));
+        assertEquals(2, (int) report.get(Integer.class, TdOutputPlugin.TASK_REPORT_UPLOAD_CONCURRENCY));
+    }
+
     @Test
     public void addNonNullValues()
             throws Exception
@@ -147,6 +447,135 @@ public class TestRecordWriter
         }
     }
 
+    @Test
+    public void addValuesWithCompressionThreads()
+            throws Exception
+    {
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("compression_threads", 2));
+        recordWriter = recordWriter(task, tdClient(plugin, task), fieldWriters(task, schema));
+
+        try {
+            recordWriter.open(schema);
+
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                    1442595600L, 0L, "v", true, 0.0, Instant.ofEpochSecond(1442595600L),
+                    1442595601L, 1L, "w", false, 1.0, Instant.ofEpochSecond(1442595601L))) {
+                recordWriter.add(page);
+            }
+
+            MsgpackGZFileBuilder builder = recordWriter.getBuilder();
+            builder.finish();
+
+            // record count 2
+            assertEquals(2, builder.getRecordCount());
+
+            MessageUnpacker u = MessagePack.newDefaultUnpacker(new GZIPInputStream(new FileInputStream(builder.getFile())));
+            Map<Value, Value> v0 = u.unpackValue().asMapValue().map();
+            Map<Value, Value> v1 = u.unpackValue().asMapValue().map();
+
+            // compare actual values
+            assertEquals(1442595600L, v0.get(newString("time")).asIntegerValue().toLong());
+            assertEquals("v", v0.get(newString("_c1")).asStringValue().toString());
+            assertEquals(1442595601L, v1.get(newString("time")).asIntegerValue().toLong());
+            assertEquals("w", v1.get(newString("_c1")).asStringValue().toString());
+            assertEquals("2015-09-18 17:00:01.000", v1.get(newString("_c4")).asStringValue().toString());
+        }
+        finally {
+            recordWriter.close();
+        }
+    }
+
+    @Test
+    public void addValuesWithParallelGzip()
+            throws Exception
+    {
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("parallel_gzip_threads", 2)
+                .set("parallel_gzip_block_size", 64));
+        recordWriter = recordWriter(task, tdClient(plugin, task), fieldWriters(task, schema));
+
+        try {
+            recordWriter.open(schema);
+
+            // records of several blocks of 64KB
+            final int records = 5000;
+            Random random = new Random(0);
+            List<Object> values = new ArrayList<>();
+            List<String> strings = new ArrayList<>();
+            for (int i = 0; i < records; i++) {
+                String string = new BigInteger(400, random).toString(36);
+                strings.add(string);
+                values.addAll(Arrays.asList(1442595600L + i, (long) i, string,
+                        true, 0.0, Instant.ofEpochSecond(1442595600L + i)));
+            }
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values.toArray())) {
+                recordWriter.add(page);
+            }
+
+            MsgpackGZFileBuilder builder = recordWriter.getBuilder();
+            builder.finish();
+
+            assertEquals(records, builder.getRecordCount());
+
+            // gzip members of the blocks are decoded as a single stream, and records are in order
+            MessageUnpacker u = MessagePack.newDefaultUnpacker(new GZIPInputStream(new FileInputStream(builder.getFile())));
+            for (int i = 0; i < records; i++) {
+                Map<Value, Value> v = u.unpackValue().asMapValue().map();
+                assertEquals(1442595600L + i, v.get(newString("time")).asIntegerValue().toLong());
+                assertEquals((long) i, v.get(newString("_c0")).asIntegerValue().toLong());
+                assertEquals(strings.get(i), v.get(newString("_c1")).asStringValue().toString());
+            }
+            assertFalse(u.hasNext());
+
+            // throughput of parallel gzip is reported
+            TaskReport report = recordWriter.commit();
+            long blocks = report.get(Long.class, TdOutputPlugin.TASK_REPORT_PARALLEL_GZIP_BLOCKS);
+            assertTrue(blocks > 1);
+            assertEquals((builder.getUncompressedSize() + 64 * 1024 - 1) / (64 * 1024), blocks);
+            assertTrue(report.has(TdOutputPlugin.TASK_REPORT_PARALLEL_GZIP_BYTES_PER_SEC));
+        }
+        finally {
+            recordWriter.close();
+        }
+    }
+
+    @Test
+    public void addValuesWithCompressionLevel()
+            throws Exception
+    {
+        task = pluginTask(config().set("session_name", "my_session")
+                .set("tmpdir", Optional.of(plugin.getEnvironmentTempDirectory()))
+                .set("compression_level", 9)
+                .set("compression_strategy", "filtered"));
+        recordWriter = recordWriter(task, tdClient(plugin, task), fieldWriters(task, schema));
+
+        try {
+            recordWriter.open(schema);
+
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                    1442595600L, 0L, "v", true, 0.0, Instant.ofEpochSecond(1442595600L))) {
+                recordWriter.add(page);
+            }
+
+            MsgpackGZFileBuilder builder = recordWriter.getBuilder();
+            builder.finish();
+
+            assertEquals(1, builder.getRecordCount());
+            assertTrue(builder.getUncompressedSize() > 0);
+            assertTrue(builder.getCompressionRatio() > 0.0);
+
+            MessageUnpacker u = MessagePack.newDefaultUnpacker(new GZIPInputStream(new FileInputStream(builder.getFile())));
+            Map<Value, Value> v = u.unpackValue().asMapValue().map();
+            assertEquals("v", v.get(newString("_c1")).asStringValue().toString());
+        }
+        finally {
+            recordWriter.close();
+        }
+    }
+
     @Test
     public void addNullValues()
             throws Exception
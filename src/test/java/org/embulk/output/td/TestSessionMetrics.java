@@ -0,0 +1,44 @@
+package org.embulk.output.td;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestSessionMetrics
+{
+    @Test
+    public void shareMetricsBySession()
+    {
+        SessionMetrics a = SessionMetrics.acquire("metrics_a", Optional.empty());
+        SessionMetrics b = SessionMetrics.acquire("metrics_a", Optional.empty());
+        SessionMetrics c = SessionMetrics.acquire("metrics_c", Optional.empty());
+        try {
+            assertSame(a, b);
+            assertNotSame(a, c);
+
+            // tasks of a session add to the same metrics
+            a.getRows().add(3);
+            b.getRows().add(4);
+            assertEquals(7, a.getRows().get());
+            assertEquals(0, c.getRows().get());
+        }
+        finally {
+            a.release();
+            b.release();
+            c.release();
+        }
+
+        SessionMetrics d = SessionMetrics.acquire("metrics_a", Optional.empty());
+        try {
+            assertNotSame(a, d);
+            assertEquals(0, d.getRows().get());
+        }
+        finally {
+            d.release();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.embulk.output.td;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSharedUploadScheduler
+{
+    @Test
+    public void shareSchedulerBySession()
+    {
+        SharedUploadScheduler a = SharedUploadScheduler.acquire("session_a", 2);
+        SharedUploadScheduler b = SharedUploadScheduler.acquire("session_a", 2);
+        SharedUploadScheduler c = SharedUploadScheduler.acquire("session_c", 2);
+        try {
+            assertSame(a, b);
+            assertNotSame(a, c);
+        }
+        finally {
+            a.release();
+            b.release();
+            c.release();
+        }
+
+        // a new scheduler is created after all tasks released it
+        SharedUploadScheduler d = SharedUploadScheduler.acquire("session_a", 2);
+        try {
+            assertNotSame(a, d);
+        }
+        finally {
+            d.release();
+        }
+    }
+
+    @Test
+    public void limitConcurrencyAcrossTasks()
+            throws Exception
+    {
+        SharedUploadScheduler scheduler = SharedUploadScheduler.acquire("limit_session", 2);
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            final CountDownLatch finished = new CountDownLatch(30);
+            for (int t = 0; t < 3; t++) {
+                Executor executor = scheduler.newTaskExecutor();
+                for (int i = 0; i < 10; i++) {
+                    executor.execute(() -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        sleep(2);
+                        running.decrementAndGet();
+                        finished.countDown();
+                    });
+                }
+            }
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertTrue(maxRunning.get() <= 2);
+        }
+        finally {
+            scheduler.release();
+        }
+    }
+
+    @Test
+    public void takeTurnsAmongTasks()
+            throws Exception
+    {
+        SharedUploadScheduler scheduler = SharedUploadScheduler.acquire("turn_session", 1);
+        try {
+            final List<String> order = Collections.synchronizedList(new ArrayList<>());
+            final CountDownLatch blocker = new CountDownLatch(1);
+            final CountDownLatch finished = new CountDownLatch(7);
+
+            // the only thread is blocked until all uploads are queued
+            Executor first = scheduler.newTaskExecutor();
+            first.execute(() -> {
+                await(blocker);
+                finished.countDown();
+            });
+            for (int i = 0; i < 4; i++) {
+                final String name = "a" + i;
+                first.execute(() -> {
+                    order.add(name);
+                    finished.countDown();
+                });
+            }
+            Executor second = scheduler.newTaskExecutor();
+            for (int i = 0; i < 2; i++) {
+                final String name = "b" + i;
+                second.execute(() -> {
+                    order.add(name);
+                    finished.countDown();
+                });
+            }
+
+            blocker.countDown();
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            // uploads of each task run in order, and the task queued later doesn't wait for all uploads of the first task
+            assertEquals(6, order.size());
+            assertTrue(order.indexOf("b1") < order.indexOf("a3"));
+            assertTrue(order.indexOf("a0") < order.indexOf("a1"));
+            assertTrue(order.indexOf("b0") < order.indexOf("b1"));
+        }
+        finally {
+            scheduler.release();
+        }
+    }
+
+    private static void sleep(long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
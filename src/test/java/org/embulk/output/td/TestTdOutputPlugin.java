@@ -1,6 +1,7 @@
 package org.embulk.output.td;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.treasuredata.client.ProxyConfig;
@@ -24,6 +25,7 @@ import org.embulk.config.TaskSource;
 import org.embulk.output.td.TdOutputPlugin.HttpProxyTask;
 import org.embulk.output.td.TdOutputPlugin.PluginTask;
 import org.embulk.output.td.TdOutputPlugin.ColumnOption;
+import org.embulk.output.td.TdOutputPlugin.CompressionStrategy;
 import org.embulk.output.td.TdOutputPlugin.UnixTimestampUnit;
 import org.embulk.output.td.writer.FieldWriterSet;
 import org.embulk.spi.Column;
@@ -44,6 +46,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.zip.Deflater;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
@@ -108,7 +111,18 @@ public class TestTdOutputPlugin
         assertEquals(TdOutputPlugin.UnixTimestampUnit.SEC, task.getUnixTimestampUnit());
         assertFalse(task.getTempDir().isPresent());
         assertEquals(2, task.getUploadConcurrency());
+        assertEquals(0, task.getSharedUploadConcurrency());
+        assertEquals(2, task.getUploadQueueCapacity());
         assertEquals(16384, task.getFileSplitSize());
+        assertFalse(task.getShareTdClient());
+        assertFalse(task.getStreamingUpload());
+        assertEquals(30000, task.getStreamingUploadMaxIdleMillis());
+        assertEquals(200, task.getStatusPollInitialIntervalMillis());
+        assertEquals(3000, task.getStatusPollMaxIntervalMillis());
+        assertFalse(task.getStatusPollTimeoutMillis().isPresent());
+        assertEquals(0, task.getCompressionThreads());
+        assertEquals(6, task.getCompressionLevel());
+        assertEquals(TdOutputPlugin.CompressionStrategy.DEFAULT, task.getCompressionStrategy());
         assertEquals("%Y-%m-%d %H:%M:%S.%3N", task.getDefaultTimestampFormat());
         assertTrue(task.getColumnOptions().isEmpty());
         assertFalse(task.getStopOnInvalidRecord());
@@ -170,6 +184,23 @@ public class TestTdOutputPlugin
         }
     }
 
+    @Test
+    public void checkCompressionStrategy()
+    {
+        assertEquals(Deflater.DEFAULT_STRATEGY, CompressionStrategy.of("default").getDeflaterStrategy());
+        assertEquals(Deflater.FILTERED, CompressionStrategy.of("filtered").getDeflaterStrategy());
+        assertEquals(Deflater.HUFFMAN_ONLY, CompressionStrategy.of("huffman_only").getDeflaterStrategy());
+        assertEquals("huffman_only", CompressionStrategy.HUFFMAN_ONLY.toString());
+
+        try {
+            CompressionStrategy.of("invalid_strategy");
+            fail();
+        }
+        catch (Throwable e) {
+            assertTrue(e instanceof ConfigException);
+        }
+    }
+
     @Test
     public void transaction()
     {
@@ -295,6 +326,57 @@ public class TestTdOutputPlugin
         }
     }
 
+    @Test
+    public void acquireTDClient()
+    {
+        PluginTask task = pluginTask(config.deepCopy().set("apikey", "shared_client_key").set("share_td_client", true));
+
+        TDClientCache.Lease lease1 = plugin.acquireTDClient(task);
+        TDClientCache.Lease lease2 = plugin.acquireTDClient(task);
+        TDClientCache.Lease other = plugin.acquireTDClient(pluginTask(config.deepCopy().set("apikey", "shared_client_key")
+                .set("share_td_client", true).set("http_proxy", ImmutableMap.of("host", "xxx", "port", "8080"))));
+        try {
+            // the same client is shared by the same configuration
+            assertTrue(lease1.getClient() == lease2.getClient());
+            assertFalse(lease1.getClient() == other.getClient());
+        }
+        finally {
+            lease1.close();
+            lease1.close(); // closing a lease twice doesn't release the client for the other lease
+            other.close();
+        }
+
+        TDClientCache.Lease lease3 = plugin.acquireTDClient(task);
+        try {
+            assertTrue(lease2.getClient() == lease3.getClient());
+        }
+        finally {
+            lease2.close();
+            lease3.close();
+        }
+
+        // the client is closed after all leases are closed. a new client is created.
+        TDClientCache.Lease lease4 = plugin.acquireTDClient(task);
+        try {
+            assertFalse(lease3.getClient() == lease4.getClient());
+        }
+        finally {
+            lease4.close();
+        }
+
+        // share_td_client: false (default)
+        PluginTask unsharedTask = pluginTask(config.deepCopy().set("apikey", "shared_client_key"));
+        TDClientCache.Lease unshared1 = plugin.acquireTDClient(unsharedTask);
+        TDClientCache.Lease unshared2 = plugin.acquireTDClient(unsharedTask);
+        try {
+            assertFalse(unshared1.getClient() == unshared2.getClient());
+        }
+        finally {
+            unshared1.close();
+            unshared2.close();
+        }
+    }
+
     @Test
     public void createTableIfNotExists()
     {
@@ -467,7 +549,7 @@ public class TestTdOutputPlugin
         PluginTask task = pluginTask(config);
         Schema schema = schema("c0", Types.LONG);
 
-        doReturn(session(UNKNOWN, false)).when(plugin).waitForStatusChange(any(TDClient.class), anyString(), any(ImportStatus.class), any(ImportStatus.class), anyString());
+        doReturn(session(UNKNOWN, false)).when(plugin).waitForStatusChange(any(TDClient.class), anyString(), any(ImportStatus.class), any(ImportStatus.class), anyString(), any(StatusPolling.class));
         doReturn(new HashMap<String, TDColumnType>()).when(plugin).updateSchema(any(TDClient.class), any(Schema.class), any(PluginTask.class));
 
         TDClient client = spy(plugin.newTDClient(task));
@@ -535,15 +617,55 @@ public class TestTdOutputPlugin
         PluginTask task = pluginTask(config);
         TDClient client = spy(plugin.newTDClient(task));
 
+        StatusPolling polling = StatusPolling.of(task);
+
         { // performing -> ready
             doReturn(session(PERFORMING, false)).doReturn(session(READY, false)).when(client).getBulkImportSession("my_session");
-            plugin.waitForStatusChange(client, "my_session", PERFORMING, READY, "");
+            plugin.waitForStatusChange(client, "my_session", PERFORMING, READY, "", polling);
         }
 
         { // committing -> committed
             doReturn(session(COMMITTING, false)).doReturn(session(COMMITTED, false)).when(client).getBulkImportSession("my_session");
-            plugin.waitForStatusChange(client, "my_session", COMMITTING, COMMITTED, "");
+            plugin.waitForStatusChange(client, "my_session", COMMITTING, COMMITTED, "", polling);
+        }
+
+        { // timeout
+            doReturn(session(PERFORMING, false)).when(client).getBulkImportSession("my_session");
+            try {
+                plugin.waitForStatusChange(client, "my_session", PERFORMING, READY, "perform",
+                        new StatusPolling(10, 100, Optional.of(300L)));
+                fail();
+            }
+            catch (RuntimeException e) {
+                assertTrue(e.getMessage().startsWith("Timed out to perform"));
+            }
         }
+
+        { // interrupted
+            doReturn(session(PERFORMING, false)).when(client).getBulkImportSession("my_session");
+            Thread.currentThread().interrupt();
+            try {
+                plugin.waitForStatusChange(client, "my_session", PERFORMING, READY, "perform", polling);
+                fail();
+            }
+            catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof InterruptedException);
+                assertTrue(Thread.interrupted()); // the interrupted status is kept
+            }
+        }
+    }
+
+    @Test
+    public void statusPollingIntervals()
+    {
+        StatusPolling polling = new StatusPolling(100, 1000, Optional.empty());
+        long[] expected = {100, 200, 400, 800, 1000, 1000};
+        for (int attempt = 0; attempt < expected.length; attempt++) {
+            long interval = polling.getIntervalMillis(attempt);
+            // +/-20% jitter
+            assertTrue(interval >= expected[attempt] * 0.8 && interval <= expected[attempt] * 1.2);
+        }
+        assertTrue(polling.getIntervalMillis(100) <= 1200);
     }
 
     @Test
@@ -624,6 +746,42 @@ public class TestTdOutputPlugin
         assertEquals("string", uploadedCols.get(2).getType().toString());
     }
 
+    @Test
+    public void testUpdateSchemaWillAddFlattenedColumns()
+    {
+        PluginTask task = mock(PluginTask.class);
+        doReturn("test_db").when(task).getDatabase();
+        doReturn("test_tbl").when(task).getTable();
+        doReturn("test_tbl").when(task).getLoadTargetTableName();
+
+        TDTable table = mock(TDTable.class);
+        TDClient client = mock(TDClient.class);
+        doReturn(table).when(client).showTable(anyString(), anyString());
+
+        Schema schema = schema("col1", Types.LONG, "payload", Types.JSON, "col3", Types.STRING);
+        ArgumentCaptor<List<TDColumn>> schemaCaptor = ArgumentCaptor.forClass((Class) List.class);
+        doNothing().when(client).appendTableSchema(anyString(), anyString(), schemaCaptor.capture());
+
+        ConfigSource flatten = TdOutputPlugin.CONFIG_MAPPER_FACTORY.newConfigSource().set("flatten", ImmutableList.of(
+                ImmutableMap.of("path", "user.id", "name", "user_id", "type", "long"),
+                ImmutableMap.of("path", "score", "name", "score", "type", "double"),
+                ImmutableMap.of("path", "items[0]", "name", "first_item")));
+        doReturn(ImmutableMap.of("payload", TdOutputPlugin.CONFIG_MAPPER.map(flatten, ColumnOption.class))).when(task).getColumnOptions();
+
+        plugin.updateSchema(client, schema, task);
+
+        List<TDColumn> uploadedCols = schemaCaptor.getValue();
+        assertEquals(6, uploadedCols.size());
+        assertEquals("payload", uploadedCols.get(1).getName());
+        assertEquals("user_id", uploadedCols.get(2).getName());
+        assertEquals("long", uploadedCols.get(2).getType().toString());
+        assertEquals("score", uploadedCols.get(3).getName());
+        assertEquals("double", uploadedCols.get(3).getType().toString());
+        assertEquals("first_item", uploadedCols.get(4).getName());
+        assertEquals("string", uploadedCols.get(4).getType().toString());
+        assertEquals("col3", uploadedCols.get(5).getName());
+    }
+
     @Test
     public void testTDClientSendsExtraHeader()
     {
@@ -0,0 +1,52 @@
+package org.embulk.output.td.metrics;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestJmxMetricsExporter
+{
+    @Test
+    public void exposeMetricsAsAttributes()
+            throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        MetricRegistry registry = new MetricRegistry();
+        Counter rows = registry.counter("rows_total", "Records written to parts");
+        Gauge runningUploads = registry.gauge("running_uploads", "Parts being uploaded");
+        registry.histogram("upload_latency_milliseconds", "Time to upload a part").record(100);
+
+        JmxMetricsExporter exporter = new JmxMetricsExporter("jmx_session");
+        try {
+            // registered with the attributes by the first export
+            assertFalse(server.isRegistered(exporter.getObjectName()));
+            exporter.export(registry);
+            assertTrue(server.isRegistered(exporter.getObjectName()));
+            assertEquals(registry.getMetrics().size() + 1 + 4, server.getMBeanInfo(exporter.getObjectName()).getAttributes().length);
+            rows.add(10);
+            runningUploads.add(2);
+
+            // counters and gauges are read when requested
+            assertEquals(10L, server.getAttribute(exporter.getObjectName(), "rows_total"));
+            assertEquals(2L, server.getAttribute(exporter.getObjectName(), "running_uploads"));
+            assertEquals(1L, server.getAttribute(exporter.getObjectName(), "upload_latency_milliseconds_count"));
+            assertEquals(100L, server.getAttribute(exporter.getObjectName(), "upload_latency_milliseconds_max"));
+
+            // rates are computed between exports
+            Thread.sleep(10);
+            exporter.export(registry);
+            double rate = (Double) server.getAttribute(exporter.getObjectName(), "rows_total_per_second");
+            assertTrue(rate > 0);
+        }
+        finally {
+            exporter.close();
+        }
+        assertFalse(server.isRegistered(exporter.getObjectName()));
+    }
+}
@@ -0,0 +1,74 @@
+package org.embulk.output.td.metrics;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPrometheusFileMetricsExporter
+{
+    @Test
+    public void formatMetrics()
+            throws IOException
+    {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("rows_total", "Records written to parts").add(42);
+        registry.gauge("running_uploads", "Parts being uploaded").add(3);
+        Histogram latency = registry.histogram("upload_latency_milliseconds", "Time to upload a part");
+        latency.record(5);
+        latency.record(7);
+
+        StringWriter writer = new StringWriter();
+        new PrometheusFileMetricsExporter(new File("metrics.prom").toPath(), "my_\"session\"").format(registry, writer);
+
+        String labels = "{session=\"my_\\\"session\\\"\"";
+        assertEquals("# HELP embulk_output_td_rows_total Records written to parts\n" +
+                "# TYPE embulk_output_td_rows_total counter\n" +
+                "embulk_output_td_rows_total" + labels + "} 42\n" +
+                "# HELP embulk_output_td_running_uploads Parts being uploaded\n" +
+                "# TYPE embulk_output_td_running_uploads gauge\n" +
+                "embulk_output_td_running_uploads" + labels + "} 3\n" +
+                "# HELP embulk_output_td_upload_latency_milliseconds Time to upload a part\n" +
+                "# TYPE embulk_output_td_upload_latency_milliseconds summary\n" +
+                "embulk_output_td_upload_latency_milliseconds" + labels + ",quantile=\"0.5\"} 5\n" +
+                "embulk_output_td_upload_latency_milliseconds" + labels + ",quantile=\"0.9\"} 7\n" +
+                "embulk_output_td_upload_latency_milliseconds" + labels + ",quantile=\"0.99\"} 7\n" +
+                "embulk_output_td_upload_latency_milliseconds_sum" + labels + "} 12\n" +
+                "embulk_output_td_upload_latency_milliseconds_count" + labels + "} 2\n",
+                writer.toString());
+    }
+
+    @Test
+    public void replaceFile()
+            throws IOException
+    {
+        Path dir = Files.createTempDirectory("metrics");
+        Path file = dir.resolve("embulk_output_td.prom");
+        MetricRegistry registry = new MetricRegistry();
+        Counter rows = registry.counter("rows_total", "Records written to parts");
+        PrometheusFileMetricsExporter exporter = new PrometheusFileMetricsExporter(file, "session");
+        try {
+            rows.add(1);
+            exporter.export(registry);
+            rows.add(1);
+            exporter.export(registry);
+
+            String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            assertTrue(content.contains("embulk_output_td_rows_total{session=\"session\"} 2\n"));
+            // temporary files are not left
+            assertEquals(1, dir.toFile().list().length);
+        }
+        finally {
+            exporter.close();
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+}
@@ -14,9 +14,12 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+
 import static org.embulk.output.td.TestTdOutputPlugin.config;
 import static org.embulk.output.td.TestTdOutputPlugin.pluginTask;
 import static org.embulk.output.td.TestTdOutputPlugin.schema;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -241,6 +244,70 @@ public class TestFieldWriterSet
         assertTrue(writers.getFieldWriter(5) instanceof StringFieldWriter);
     }
 
+    @Test
+    public void useFlattenOptions()
+    {
+        Schema schema = schema("_c0", Types.LONG, "payload", Types.JSON, "_c2", Types.STRING);
+        ImmutableMap<String, ObjectNode> columnOptions = ImmutableMap.of(
+                "payload", newFlattenColumnOption(
+                        newObjectNode().put("path", "user.id").put("name", "user_id").put("type", "long"),
+                        newObjectNode().put("path", "items[0]").put("name", "first_item")));
+
+        FieldWriterSet writers = FieldWriterSet.createWithValidation(pluginTask(config.deepCopy()
+                .set("column_options", columnOptions)), schema, false);
+        assertTrue(writers.getFieldWriter(1) instanceof JsonFlattenFieldWriter);
+        assertEquals(2, ((JsonFlattenFieldWriter) writers.getFieldWriter(1)).getFlattenedCount());
+
+        // a flattened column must be a json column and must not have a name of another column
+        ImmutableMap<String, ObjectNode> invalidOptions = ImmutableMap.of(
+                "_c2", newFlattenColumnOption(newObjectNode().put("path", "a").put("name", "a")));
+        assertInvalidColumnOptions(schema, invalidOptions);
+        for (String name : new String[] {"_c0", "time"}) {
+            invalidOptions = ImmutableMap.of(
+                    "payload", newFlattenColumnOption(newObjectNode().put("path", "a").put("name", name)));
+            assertInvalidColumnOptions(schema, invalidOptions);
+        }
+        invalidOptions = ImmutableMap.of(
+                "payload", newFlattenColumnOption(
+                        newObjectNode().put("path", "a").put("name", "a"),
+                        newObjectNode().put("path", "b").put("name", "a")));
+        assertInvalidColumnOptions(schema, invalidOptions);
+        invalidOptions = ImmutableMap.of(
+                "payload", newFlattenColumnOption(newObjectNode().put("path", "a..b").put("name", "a")));
+        assertInvalidColumnOptions(schema, invalidOptions);
+
+        // nor the name of a renamed column
+        Schema renamedSchema = schema("_c0", Types.LONG, "time", Types.LONG, "payload", Types.JSON);
+        invalidOptions = ImmutableMap.of(
+                "payload", newFlattenColumnOption(newObjectNode().put("path", "a").put("name", "time_")));
+        try {
+            FieldWriterSet.createWithValidation(pluginTask(config.deepCopy().set("time_column", "_c0")
+                    .set("column_options", invalidOptions)), renamedSchema, false);
+            fail();
+        }
+        catch (Throwable t) {
+            assertTrue(t instanceof ConfigException);
+        }
+    }
+
+    private void assertInvalidColumnOptions(Schema schema, ImmutableMap<String, ObjectNode> columnOptions)
+    {
+        try {
+            FieldWriterSet.createWithValidation(pluginTask(config.deepCopy().set("column_options", columnOptions)), schema, false);
+            fail();
+        }
+        catch (Throwable t) {
+            assertTrue(t instanceof ConfigException);
+        }
+    }
+
+    private static ObjectNode newFlattenColumnOption(ObjectNode... flattenOptions)
+    {
+        ObjectNode columnOption = newObjectNode();
+        columnOption.putArray("flatten").addAll(Arrays.asList(flattenOptions));
+        return columnOption;
+    }
+
     static ObjectNode newObjectNode()
     {
         return JsonNodeFactory.instance.objectNode();
@@ -8,11 +8,21 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
 import org.msgpack.value.impl.ImmutableStringValueImpl;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
-import static org.mockito.Mockito.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -64,8 +74,124 @@ public class TestJsonFieldWriter
     @Test
     public void testWriteJsonValue() throws IOException
     {
+        List<byte[]> written = captureEncoded();
         when(reader.getJson(column)).thenReturn(new ImmutableStringValueImpl("json_value"));
         writer.writeJsonValue(builder, reader, column);
-        verify(builder).writeString("\"json_value\"");
+        assertArrayEquals(MsgpackGZFileBuilder.encodeString("\"json_value\""), written.get(0));
+    }
+
+    @Test
+    public void testWriteJsonValueAsToJson() throws IOException
+    {
+        List<byte[]> written = captureEncoded();
+        char[] longChars = new char[70000];  // str32
+        Arrays.fill(longChars, 'a');
+        Value[] values = {
+                ValueFactory.newNil(),
+                ValueFactory.newBoolean(true),
+                ValueFactory.newInteger(0L),
+                ValueFactory.newInteger(Long.MIN_VALUE),
+                ValueFactory.newInteger(Long.MAX_VALUE),
+                ValueFactory.newInteger(new BigInteger("18446744073709551615")),
+                ValueFactory.newFloat(-0.0),
+                ValueFactory.newFloat(1.0E-5),
+                ValueFactory.newFloat(Double.NaN),
+                ValueFactory.newFloat(Double.POSITIVE_INFINITY),
+                ValueFactory.newString(""),
+                ValueFactory.newString("quote\" backslash\\ slash/ \n\r\t\f\b \u0000\u001f\u007f"),
+                ValueFactory.newString("\u00e9\u3042\ud83d\ude00\uffff"),
+                ValueFactory.newString(new String(longChars)),
+                ValueFactory.newBinary(new byte[] {'a', (byte) 0xff, (byte) 0xc0, (byte) 0x80, (byte) 0xed, (byte) 0xa0, (byte) 0x80}),
+                ValueFactory.newBinary(new byte[] {(byte) 0xe3, (byte) 0x81}),
+                ValueFactory.emptyArray(),
+                ValueFactory.emptyMap(),
+                ValueFactory.newArray(ValueFactory.newInteger(1L), ValueFactory.newString("a"),
+                        ValueFactory.newArray(ValueFactory.newNil(), ValueFactory.emptyMap())),
+                ValueFactory.newMap(
+                        ValueFactory.newString("k"), ValueFactory.newString("v"),
+                        ValueFactory.newInteger(1L), ValueFactory.newFloat(1.5),
+                        ValueFactory.newBoolean(false), ValueFactory.newNil(),
+                        ValueFactory.newNil(), ValueFactory.newArray(ValueFactory.newString("\u3042"))),
+        };
+        for (Value value : values) {
+            when(reader.getJson(column)).thenReturn(value);
+            writer.writeJsonValue(builder, reader, column);
+            assertArrayEquals(value.toJson(), MsgpackGZFileBuilder.encodeString(value.toJson()), written.get(written.size() - 1));
+        }
+
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            Value value = randomValue(random, 3);
+            when(reader.getJson(column)).thenReturn(value);
+            writer.writeJsonValue(builder, reader, column);
+            assertArrayEquals(value.toJson(), MsgpackGZFileBuilder.encodeString(value.toJson()), written.get(written.size() - 1));
+        }
+    }
+
+    private static Value randomValue(Random random, int depth)
+    {
+        switch (random.nextInt(depth > 0 ? 8 : 6)) {
+        case 0:
+            return ValueFactory.newNil();
+        case 1:
+            return ValueFactory.newBoolean(random.nextBoolean());
+        case 2:
+            return ValueFactory.newInteger(random.nextLong() >> random.nextInt(64));
+        case 3:
+            return ValueFactory.newFloat(Double.longBitsToDouble(random.nextLong()));
+        case 4:
+            return ValueFactory.newString(randomString(random));
+        case 5:
+            byte[] bytes = new byte[random.nextInt(8)];
+            random.nextBytes(bytes);
+            return ValueFactory.newBinary(bytes);
+        case 6:
+            Value[] elements = new Value[random.nextInt(4)];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = randomValue(random, depth - 1);
+            }
+            return ValueFactory.newArray(elements);
+        default:
+            Value[] kvs = new Value[random.nextInt(4) * 2];
+            for (int i = 0; i < kvs.length; i += 2) {
+                kvs[i] = random.nextInt(4) == 0 ? randomValue(random, 0) : ValueFactory.newString(randomString(random));
+                kvs[i + 1] = randomValue(random, depth - 1);
+            }
+            return ValueFactory.newMap(kvs);
+        }
+    }
+
+    // ASCII, control characters, BMP characters and surrogates including unpaired ones
+    private static String randomString(Random random)
+    {
+        char[] chars = new char[random.nextInt(40)];
+        for (int i = 0; i < chars.length; i++) {
+            switch (random.nextInt(4)) {
+            case 0:
+                chars[i] = (char) random.nextInt(0x80);
+                break;
+            case 1:
+                chars[i] = (char) random.nextInt(0x20);
+                break;
+            case 2:
+                chars[i] = (char) random.nextInt(0x10000);
+                break;
+            default:
+                chars[i] = (char) (0xd800 + random.nextInt(0x800));
+            }
+        }
+        return new String(chars);
+    }
+
+    private List<byte[]> captureEncoded() throws IOException
+    {
+        final List<byte[]> written = new ArrayList<>();
+        doAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            int offset = (Integer) args[1];
+            written.add(Arrays.copyOfRange((byte[]) args[0], offset, offset + (Integer) args[2]));
+            return null;
+        }).when(builder).writeEncoded(any(byte[].class), anyInt(), anyInt());
+        return written;
     }
 }
@@ -0,0 +1,192 @@
+package org.embulk.output.td.writer;
+
+import com.google.common.collect.ImmutableList;
+import org.embulk.config.ConfigException;
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.embulk.output.td.TdOutputPlugin;
+import org.embulk.output.td.TdOutputPlugin.FlattenOption;
+import org.embulk.output.td.TdOutputPlugin.FlattenType;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.type.Types;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TestJsonFlattenFieldWriter
+{
+    @Mock
+    private MsgpackGZFileBuilder builder;
+
+    @Mock
+    private PageReader reader;
+
+    @Mock
+    private Column column;
+
+    @Before
+    public void setUp()
+    {
+        when(column.getType()).thenReturn(Types.JSON);
+    }
+
+    @Test
+    public void writeFlattenedKeys() throws IOException
+    {
+        JsonFlattenFieldWriter writer = new JsonFlattenFieldWriter(new JsonFieldWriter("payload"), ImmutableList.of(
+                flatten("user.id", "user_id", "long"),
+                flatten("user.score", "score", "double"),
+                flatten("items[1].name", "second_item", "string"),
+                flatten("user", "user", "string"),
+                flatten("missing.key", "missing", "long")));
+        assertEquals(5, writer.getFlattenedCount());
+
+        Value value = ValueFactory.newMap(
+                ValueFactory.newString("user"), ValueFactory.newMap(
+                        ValueFactory.newString("id"), ValueFactory.newString("42"),
+                        ValueFactory.newString("score"), ValueFactory.newInteger(3L)),
+                ValueFactory.newString("items"), ValueFactory.newArray(
+                        ValueFactory.newMap(ValueFactory.newString("name"), ValueFactory.newString("a")),
+                        ValueFactory.newMap(ValueFactory.newString("name"), ValueFactory.newString("b"))));
+        when(reader.isNull(column)).thenReturn(false);
+        when(reader.getJson(column)).thenReturn(value);
+        writer.newColumnEncoder(column).encode(builder, reader);
+
+        InOrder inOrder = inOrder(builder);
+        inOrder.verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("user_id"));
+        inOrder.verify(builder).writeLong(42L);
+        inOrder.verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("score"));
+        inOrder.verify(builder).writeDouble(3.0);
+        inOrder.verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("second_item"));
+        inOrder.verify(builder).writeString("b");
+        inOrder.verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("user"));
+        inOrder.verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("missing"));
+        inOrder.verify(builder).writeNil();
+    }
+
+    @Test
+    public void writeNilIfColumnIsNullOrValueIsNotConvertible() throws IOException
+    {
+        JsonFlattenFieldWriter writer = new JsonFlattenFieldWriter(new JsonFieldWriter("payload"), ImmutableList.of(
+                flatten("a", "a", "long"),
+                flatten("b", "b", "double")));
+        when(reader.isNull(column)).thenReturn(true);
+        writer.writeKeyValue(builder, reader, column);
+
+        when(reader.isNull(column)).thenReturn(false);
+        when(reader.getJson(column)).thenReturn(ValueFactory.newMap(
+                ValueFactory.newString("a"), ValueFactory.newString("not a number"),
+                ValueFactory.newString("b"), ValueFactory.emptyArray()));
+        writer.writeKeyValue(builder, reader, column);
+
+        InOrder inOrder = inOrder(builder);
+        for (int i = 0; i < 2; i++) {
+            inOrder.verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("a"));
+            inOrder.verify(builder).writeNil();
+            inOrder.verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("b"));
+            inOrder.verify(builder).writeNil();
+        }
+    }
+
+    @Test
+    public void flattenPathsInSingleWalk()
+    {
+        JsonPathFlattener flattener = new JsonPathFlattener(Arrays.asList("a.b", "a", "a.b", "c[0][1]", "d", "[0]"));
+        Value b = ValueFactory.newInteger(1L);
+        Value a = ValueFactory.newMap(ValueFactory.newString("b"), b);
+        Value c01 = ValueFactory.newString("x");
+        Value value = ValueFactory.newMap(
+                ValueFactory.newString("a"), a,
+                ValueFactory.newString("c"), ValueFactory.newArray(ValueFactory.newArray(ValueFactory.newNil(), c01)),
+                ValueFactory.newString("a"), ValueFactory.newNil());  // duplicate keys use the first one
+
+        Value[] found = flattener.flatten(value);
+        assertSame(b, found[0]);
+        assertSame(a, found[1]);
+        assertSame(b, found[2]);
+        assertSame(c01, found[3]);
+        assertNull(found[4]);
+        assertNull(found[5]);
+
+        // paths are found again in the next value
+        found = flattener.flatten(ValueFactory.newMap(ValueFactory.newString("d"), b));
+        assertNull(found[0]);
+        assertSame(b, found[4]);
+    }
+
+    @Test
+    public void parsePaths()
+    {
+        assertPath("a", "a");
+        assertPath("user.id", "user", "id");
+        assertPath("items[0].name", "items", 0, "name");
+        assertPath("[1][2]", 1, 2);
+        assertPath("あ.b", "あ", "b");
+
+        for (String path : new String[] {"", ".", "a.", ".a", "a..b", "a.[0]", "a[", "a[x]", "a[-1]", "a[0]b"}) {
+            try {
+                JsonPathFlattener.parse(path);
+                fail("'" + path + "' must not be accepted");
+            }
+            catch (ConfigException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectUnknownType()
+    {
+        assertEquals(FlattenType.LONG, flatten("a", "a", "long").getType());
+        assertEquals(FlattenType.STRING, TdOutputPlugin.CONFIG_MAPPER.map(TdOutputPlugin.CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("path", "a").set("name", "a"), FlattenOption.class).getType());
+        for (String type : new String[] {"timestamp", "lnog"}) {
+            try {
+                flatten("a", "a", type);
+                fail("'" + type + "' must not be accepted");
+            }
+            catch (ConfigException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertPath(String path, Object... expected)
+    {
+        List<Object> segments = JsonPathFlattener.parse(path);
+        assertEquals(expected.length, segments.size());
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] instanceof String) {
+                assertArrayEquals(((String) expected[i]).getBytes(StandardCharsets.UTF_8), (byte[]) segments.get(i));
+            }
+            else {
+                assertEquals(expected[i], segments.get(i));
+            }
+        }
+    }
+
+    static FlattenOption flatten(String path, String name, String type)
+    {
+        return TdOutputPlugin.CONFIG_MAPPER.map(TdOutputPlugin.CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("path", path).set("name", name).set("type", type), FlattenOption.class);
+    }
+}
@@ -4,6 +4,7 @@ import org.embulk.output.td.MsgpackGZFileBuilder;
 import org.embulk.spi.Column;
 import org.embulk.spi.DataException;
 import org.embulk.spi.PageReader;
+import org.embulk.spi.type.Types;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -85,4 +86,25 @@ public class TestLongFieldWriter
     {
         writer.writeJsonValue(builder, reader, column);
     }
+
+    @Test
+    public void testNewColumnEncoder() throws IOException
+    {
+        when(column.getType()).thenReturn(Types.DOUBLE);
+        ColumnEncoder encoder = writer.newColumnEncoder(column);
+
+        // write the key and the converted value
+        {
+            when(reader.getDouble(column)).thenReturn(50.5);
+            encoder.encode(builder, reader);
+            verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString(KEY_NAME));
+            verify(builder).writeLong(50);
+        }
+        // write nil if the value is null
+        {
+            when(reader.isNull(column)).thenReturn(true);
+            encoder.encode(builder, reader);
+            verify(builder).writeNil();
+        }
+    }
 }
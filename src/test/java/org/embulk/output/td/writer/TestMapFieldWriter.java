@@ -7,10 +7,17 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
 import org.msgpack.value.impl.ImmutableStringValueImpl;
 
 import java.io.IOException;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -38,4 +45,61 @@ public class TestMapFieldWriter
         writer.writeJsonValue(builder, reader, column);
         verify(builder).writeValue(value);
     }
+
+    @Test
+    public void testWriteValueInstanceOfPageOnce() throws IOException
+    {
+        Value value = ValueFactory.newMap(ValueFactory.newString("k"), ValueFactory.newArray(ValueFactory.newInteger(1L)));
+        when(reader.getJson(column)).thenReturn(value);
+        writer.writeJsonValue(builder, reader, column);
+        writer.writeJsonValue(builder, reader, column);
+        writer.writeJsonValue(builder, reader, column);
+        verify(builder).writeValue(value);
+        verify(builder, times(2)).writeEncoded(MsgpackGZFileBuilder.encodeValue(value));
+    }
+
+    @Test
+    public void testEncodeValueInstanceOfPageOnce() throws IOException
+    {
+        PageValueCache cache = new PageValueCache();
+        Value value = ValueFactory.newArray(ValueFactory.newString("a value of a page"), ValueFactory.newNil());
+        // the first read of an instance is not encoded, and the second read is encoded
+        assertNull(cache.lookup(value));
+        byte[] encoded = cache.lookup(value);
+        assertArrayEquals(MsgpackGZFileBuilder.encodeValue(value), encoded);
+        assertSame(encoded, cache.lookup(value));
+        // equal values of different instances are not found
+        assertNull(cache.lookup(ValueFactory.newArray(ValueFactory.newString("a value of a page"), ValueFactory.newNil())));
+
+        // large values are written by writeValue
+        Value large = ValueFactory.newString(new String(new char[PageValueCache.MAX_ENCODED_SIZE]));
+        assertNull(cache.lookup(large));
+        assertNull(cache.lookup(large));
+    }
+
+    @Test
+    public void testDisablePageValueCacheForDistinctInstances() throws IOException
+    {
+        PageValueCache cache = new PageValueCache();
+        for (int i = 0; i < HitRateWindow.WINDOW; i++) {
+            assertNull(cache.lookup(ValueFactory.newInteger(i)));
+        }
+        assertFalse(cache.isEnabled());
+        Value value = ValueFactory.newInteger(1L);
+        cache.lookup(value);
+        assertNull(cache.lookup(value));
+    }
+
+    @Test
+    public void testDisablePageValueCacheForLargeValues() throws IOException
+    {
+        // reads of a value too large to be kept are misses even if the instance is seen again
+        PageValueCache cache = new PageValueCache();
+        Value large = ValueFactory.newArray(ValueFactory.newString(new String(new char[PageValueCache.MAX_ENCODED_SIZE / 2])),
+                ValueFactory.newString(new String(new char[PageValueCache.MAX_ENCODED_SIZE / 2])));
+        for (int i = 0; i < HitRateWindow.WINDOW; i++) {
+            assertNull(cache.lookup(large));
+        }
+        assertFalse(cache.isEnabled());
+    }
 }
@@ -0,0 +1,80 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.embulk.util.timestamp.TimestampFormatter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TestSqlTimestampEncoder
+{
+    private static final long MIN_SECOND = -62167219200L;  // 0000-01-01 00:00:00
+    private static final long MAX_SECOND = 253402300799L;  // 9999-12-31 23:59:59
+
+    @Mock
+    private MsgpackGZFileBuilder builder;
+
+    private final SqlTimestampEncoder encoder = SqlTimestampEncoder.create();
+    private final TimestampFormatter formatter = TimestampFormatter.builder("%Y-%m-%d %H:%M:%S.%3N", true)
+            .setDefaultZoneFromString("UTC").build();
+
+    @Test
+    public void supportDefaultFormatInUtc()
+    {
+        assertTrue(SqlTimestampEncoder.supports("%Y-%m-%d %H:%M:%S.%3N", "UTC"));
+        assertFalse(SqlTimestampEncoder.supports("%Y-%m-%d %H:%M:%S.%3N", "Asia/Tokyo"));
+        assertFalse(SqlTimestampEncoder.supports("%Y-%m-%d %H:%M:%S.%6N", "UTC"));
+    }
+
+    @Test
+    public void writeSameBytesAsFormatter() throws IOException
+    {
+        List<byte[]> written = WrittenBytes.capture(builder);
+
+        // boundaries of the range, eras, centuries, leap days and days
+        long[] seconds = {MIN_SECOND, MIN_SECOND + 1, MAX_SECOND - 1, MAX_SECOND, -1L, 0L, 1L,
+                951782400L /* 2000-02-29 */, 951868800L /* 2000-03-01 */, -2203891200L /* 1900-03-01 */,
+                -12219292800L /* 1582-10-15 */, 4107542400L /* 2100-03-01 */, 1442595600L};
+        int[] nanos = {0, 999999, 1000000, 123456789, 999999999};
+        for (long second : seconds) {
+            for (long s = second - 86401; s <= second + 86401; s += 3600) {
+                for (int nano : nanos) {
+                    assertWritten(Instant.ofEpochSecond(Math.max(MIN_SECOND, Math.min(MAX_SECOND, s)), nano), written);
+                }
+            }
+        }
+
+        // days sampled over the range, and random timestamps. The stride is prime so that days fall on any
+        // day of months, years and eras.
+        for (long day = MIN_SECOND / 86400; day <= MAX_SECOND / 86400; day += 97) {
+            assertWritten(Instant.ofEpochSecond(day * 86400 + 86399, 999999999), written);
+        }
+        Random random = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            long second = MIN_SECOND + (long) (random.nextDouble() * (MAX_SECOND - MIN_SECOND + 1));
+            assertWritten(Instant.ofEpochSecond(second, random.nextInt(1000000000)), written);
+        }
+
+        // years out of 0000 to 9999 are written by the formatter
+        assertWritten(Instant.ofEpochSecond(MIN_SECOND - 1), written);
+        assertWritten(Instant.ofEpochSecond(MAX_SECOND + 1, 500000000), written);
+    }
+
+    private void assertWritten(Instant instant, List<byte[]> written) throws IOException
+    {
+        encoder.write(builder, instant);
+        assertArrayEquals(instant.toString(), MsgpackGZFileBuilder.encodeString(formatter.format(instant)), written.get(written.size() - 1));
+        written.clear();
+    }
+}
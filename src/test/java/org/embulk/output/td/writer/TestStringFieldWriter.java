@@ -1,5 +1,6 @@
 package org.embulk.output.td.writer;
 
+import com.google.common.base.Strings;
 import org.embulk.output.td.MsgpackGZFileBuilder;
 import org.embulk.spi.Column;
 import org.embulk.spi.PageReader;
@@ -12,7 +13,21 @@ import org.msgpack.value.impl.ImmutableStringValueImpl;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -39,30 +54,82 @@ public class TestStringFieldWriter
         {
             when(reader.getBoolean(column)).thenReturn(true);
             writer.writeBooleanValue(builder, reader, column);
-            verify(builder).writeString("true");
+            verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("true"));
         }
         // write 'false' if the boolean value is false
         {
             when(reader.getBoolean(column)).thenReturn(false);
             writer.writeBooleanValue(builder, reader, column);
-            verify(builder).writeString("false");
+            verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("false"));
         }
     }
 
     @Test
     public void testWriteLongValue() throws IOException
     {
+        List<byte[]> written = captureEncoded();
         when(reader.getLong(column)).thenReturn(10L);
         writer.writeLongValue(builder, reader, column);
-        verify(builder).writeString("10");
+        assertArrayEquals(MsgpackGZFileBuilder.encodeString("10"), written.get(0));
     }
 
     @Test
     public void testWriteDoubleValue() throws IOException
     {
+        List<byte[]> written = captureEncoded();
         when(reader.getDouble(column)).thenReturn(50.5);
         writer.writeDoubleValue(builder, reader, column);
-        verify(builder).writeString("50.5");
+        assertArrayEquals(MsgpackGZFileBuilder.encodeString("50.5"), written.get(0));
+    }
+
+    @Test
+    public void testEncodeNumbersAsStringValueOf()
+    {
+        NumberStringEncoder encoder = new NumberStringEncoder();
+        long[] longs = {0L, 1L, -1L, 9L, 10L, -10L, 12345L, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE / 10, Long.MIN_VALUE / 10};
+        double[] doubles = {0.0, -0.0, 1.0, -1.0, 0.1, 50.5, 1e-3, 9.999e-4, 1e7, 9999999.0, 1.0E-5, 123456789.123,
+                Double.MAX_VALUE, Double.MIN_VALUE, Double.MIN_NORMAL, -2.2250738585072014E-308,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (long v : longs) {
+            encoder.encodeLong(v);
+            assertEncoded(String.valueOf(v), encoder);
+        }
+        for (double v : doubles) {
+            encoder.encodeDouble(v);
+            assertEncoded(String.valueOf(v), encoder);
+        }
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            long l = random.nextLong() >> random.nextInt(64);
+            encoder.encodeLong(l);
+            assertEncoded(String.valueOf(l), encoder);
+            double d = Double.longBitsToDouble(random.nextLong());
+            encoder.encodeDouble(d);
+            assertEncoded(String.valueOf(d), encoder);
+            d = random.nextDouble() * Math.pow(10, random.nextInt(20) - 10);
+            encoder.encodeDouble(d);
+            assertEncoded(String.valueOf(d), encoder);
+        }
+    }
+
+    private static void assertEncoded(String expected, NumberStringEncoder encoder)
+    {
+        byte[] encoded = Arrays.copyOfRange(encoder.getBuffer(), encoder.getOffset(), encoder.getOffset() + encoder.getLength());
+        assertArrayEquals(expected, MsgpackGZFileBuilder.encodeString(expected), encoded);
+    }
+
+    // copies bytes written by writeEncoded(byte[], int, int) because the buffer is reused
+    private List<byte[]> captureEncoded() throws IOException
+    {
+        final List<byte[]> written = new ArrayList<>();
+        doAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            int offset = (Integer) args[1];
+            written.add(Arrays.copyOfRange((byte[]) args[0], offset, offset + (Integer) args[2]));
+            return null;
+        }).when(builder).writeEncoded(any(byte[].class), anyInt(), anyInt());
+        return written;
     }
 
     @Test
@@ -70,7 +137,83 @@ public class TestStringFieldWriter
     {
         when(reader.getString(column)).thenReturn("a string");
         writer.writeStringValue(builder, reader, column);
-        verify(builder).writeString("a string");
+        verify(builder).writeEncoded(MsgpackGZFileBuilder.encodeString("a string"));
+    }
+
+    @Test
+    public void testWriteLongStringValueWithoutDictionary() throws IOException
+    {
+        String value = Strings.repeat("x", StringDictionary.MAX_STRING_LENGTH + 1);
+        when(reader.getString(column)).thenReturn(value);
+        writer.writeStringValue(builder, reader, column);
+        verify(builder).writeString(value);
+    }
+
+    @Test
+    public void testReuseEncodedLowCardinalityValues()
+    {
+        StringDictionary dictionary = new StringDictionary();
+        byte[] first = dictionary.lookup("JP");
+        for (int i = 0; i < HitRateWindow.WINDOW * 4; i++) {
+            dictionary.lookup(i % 2 == 0 ? "US" : "JP");
+        }
+        assertTrue(dictionary.isEnabled());
+        assertEquals(2, dictionary.size());
+        assertSame(first, dictionary.lookup("JP"));
+        assertArrayEquals(MsgpackGZFileBuilder.encodeString("JP"), first);
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsedValues()
+    {
+        StringDictionary dictionary = new StringDictionary();
+        // hits keep the dictionary enabled while new values evict old ones
+        for (int i = 0; i < StringDictionary.MAX_ENTRIES * 2; i++) {
+            dictionary.lookup("value-" + i);
+            dictionary.lookup("value-" + i);
+            dictionary.lookup("value-" + i);
+        }
+        assertTrue(dictionary.isEnabled());
+        assertEquals(StringDictionary.MAX_ENTRIES, dictionary.size());
+    }
+
+    @Test
+    public void testDisableDictionaryForHighCardinalityValues()
+    {
+        StringDictionary dictionary = new StringDictionary();
+        for (int i = 0; i < HitRateWindow.WINDOW; i++) {
+            assertNotNull(dictionary.lookup("value-" + i));
+        }
+        assertFalse(dictionary.isEnabled());
+        assertEquals(0, dictionary.size());
+        assertNull(dictionary.lookup("value-0"));
+    }
+
+    @Test
+    public void testEncodeStringInstanceOfPageOnce()
+    {
+        PageStringCache cache = new PageStringCache();
+        String value = new String("a string of a page");
+        // the first read of an instance is not encoded, and the second read is encoded
+        assertNull(cache.lookup(value));
+        byte[] encoded = cache.lookup(value);
+        assertArrayEquals(MsgpackGZFileBuilder.encodeString("a string of a page"), encoded);
+        assertSame(encoded, cache.lookup(value));
+        // equal strings of different instances are not found
+        assertNull(cache.lookup(new String("a string of a page")));
+    }
+
+    @Test
+    public void testDisablePageStringCacheForDistinctInstances()
+    {
+        PageStringCache cache = new PageStringCache();
+        for (int i = 0; i < HitRateWindow.WINDOW; i++) {
+            assertNull(cache.lookup(new String("value")));
+        }
+        assertFalse(cache.isEnabled());
+        String value = "value";
+        cache.lookup(value);
+        assertNull(cache.lookup(value));
     }
 
     @Test
@@ -0,0 +1,59 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+import org.embulk.util.timestamp.TimestampFormatter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TestTimestampStringEncoder
+{
+    @Mock
+    private MsgpackGZFileBuilder builder;
+
+    @Test
+    public void cacheRubyPatterns() throws IOException
+    {
+        assertSameAsFormatter("%Y-%m-%d %H:%M:%S.%3N", "UTC", true);
+        assertSameAsFormatter("%Y-%m-%d %H:%M:%S.%6N", "Asia/Tokyo", true);
+        assertSameAsFormatter("%Y-%m-%dT%H:%M:%S.%N%z", "America/Los_Angeles", true);
+        assertSameAsFormatter("%Y-%m-%d %H:%M:%S", "UTC", true);
+        assertSameAsFormatter("%Y-%m-%d %H:%M:%S.%L", "UTC", true);
+    }
+
+    @Test
+    public void formatUnsupportedPatterns() throws IOException
+    {
+        assertSameAsFormatter("java:yyyy-MM-dd HH:mm:ss.SSS", "UTC", false);
+        assertSameAsFormatter("%Q", "UTC", false);  // milliseconds since epoch
+        assertSameAsFormatter("%3N %3N", "UTC", false);
+    }
+
+    private void assertSameAsFormatter(String pattern, String zoneId, boolean cached) throws IOException
+    {
+        TimestampStringEncoder encoder = TimestampStringEncoder.create(pattern, zoneId);
+        TimestampFormatter formatter = TimestampFormatter.builder(pattern, true).setDefaultZoneFromString(zoneId).build();
+        assertEquals(pattern, cached, encoder.isCached());
+
+        List<byte[]> written = WrittenBytes.capture(builder);
+        Random random = new Random(0);
+        long second = 1442595600L;
+        for (int i = 0; i < 10000; i++) {
+            // mostly clustered in time, sometimes far
+            second += random.nextInt(100) == 0 ? random.nextInt(1000000) - 500000 : random.nextInt(2);
+            Instant instant = Instant.ofEpochSecond(second, random.nextInt(1000000000));
+            encoder.write(builder, instant);
+            assertArrayEquals(instant.toString(), MsgpackGZFileBuilder.encodeString(formatter.format(instant)), written.get(written.size() - 1));
+        }
+    }
+}
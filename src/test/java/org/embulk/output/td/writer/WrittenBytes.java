@@ -0,0 +1,42 @@
+package org.embulk.output.td.writer;
+
+import org.embulk.output.td.MsgpackGZFileBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+
+// Captures msgpack bytes written to a mocked builder by encoders, e.g. TimestampEncoder
+final class WrittenBytes
+{
+    private WrittenBytes()
+    {
+    }
+
+    // copies bytes written by any method because the buffer is reused
+    static List<byte[]> capture(MsgpackGZFileBuilder builder) throws IOException
+    {
+        final List<byte[]> written = new ArrayList<>();
+        doAnswer(invocation -> {
+            written.add(MsgpackGZFileBuilder.encodeString((String) invocation.getArguments()[0]));
+            return null;
+        }).when(builder).writeString(anyString());
+        doAnswer(invocation -> {
+            written.add(((byte[]) invocation.getArguments()[0]).clone());
+            return null;
+        }).when(builder).writeEncoded(any(byte[].class));
+        doAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            int offset = (Integer) args[1];
+            written.add(Arrays.copyOfRange((byte[]) args[0], offset, offset + (Integer) args[2]));
+            return null;
+        }).when(builder).writeEncoded(any(byte[].class), anyInt(), anyInt());
+        return written;
+    }
+}